@@ -0,0 +1,80 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class ColumnStoreBenchmark {
+    private static final String[] STATES = {"SA", "VIC", "NSW", "QLD", "WA", "TAS", "NT", "ACT"};
+    private static final String[] WIND_DIRS = {"N", "NE", "E", "SE", "S", "SW", "W", "NW"};
+
+    /**
+     * Compares aggregating a field across every station from the column store against
+     * the map-of-strings records the server kept before.
+     * Usage: java ColumnStoreBenchmark [stations]
+     */
+    public static void main(String[] args) {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = 20;
+
+        Random random = new Random(42);
+        Map<String, StationRecord> records = new HashMap<>();
+        ColumnStore store = new ColumnStore();
+        for (int i = 0; i < stations; i++) {
+            Map<String, String> fields = new LinkedHashMap<>();
+            fields.put("id", "IDS" + i);
+            fields.put("state", STATES[random.nextInt(STATES.length)]);
+            fields.put("lat", Double.toString(-44 + random.nextDouble() * 34));
+            fields.put("lon", Double.toString(113 + random.nextDouble() * 41));
+            fields.put("air_temp", Double.toString(Math.round(random.nextGaussian() * 80 + 150) / 10.0));
+            fields.put("press", Double.toString(Math.round(9900 + random.nextDouble() * 400) / 10.0));
+            fields.put("rel_hum", Integer.toString(random.nextInt(101)));
+            fields.put("wind_dir", WIND_DIRS[random.nextInt(WIND_DIRS.length)]);
+            records.put("IDS" + i, new StationRecord("", fields));
+            store.put("IDS" + i, fields);
+        }
+        System.out.println("Stations: " + stations);
+
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            double[] columns = store.aggregate("air_temp");
+            long columnNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            double[] maps = aggregateRecords(records, "air_temp");
+            long mapNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            store.countBy("state");
+            long countNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            store.top("air_temp", 20);
+            long topNanos = System.nanoTime() - start;
+
+            if (columns[0] != maps[0] || Math.abs(columns[3] - maps[3]) > 1e-6 * Math.abs(maps[3])) {
+                throw new IllegalStateException("Column and map aggregates disagree");
+            }
+            if (round == rounds - 1) {
+                System.out.printf("air_temp avg %.2f over %d stations%n", columns[3] / columns[0], (long) columns[0]);
+                System.out.printf("Column scan:      %8.2f ms%n", columnNanos / 1e6);
+                System.out.printf("Map-of-strings:   %8.2f ms%n", mapNanos / 1e6);
+                System.out.printf("Count by state:   %8.2f ms%n", countNanos / 1e6);
+                System.out.printf("Top 20 air_temp:  %8.3f ms%n", topNanos / 1e6);
+            }
+        }
+    }
+
+    private static double[] aggregateRecords(Map<String, StationRecord> records, String field) {
+        double count = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0;
+        for (StationRecord record : records.values()) {
+            double value = JSONParser.parseDouble(record.get(field));
+            if (!Double.isNaN(value)) {
+                count++;
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        return new double[]{count, min, max, sum};
+    }
+}
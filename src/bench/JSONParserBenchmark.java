@@ -0,0 +1,102 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+public class JSONParserBenchmark {
+    private static final int[] FIELD_COUNTS = {17, 100, 1_000, 10_000, 100_000};
+    private static final int ROUNDS = 5;
+
+    /**
+     * Compares converting station files of several sizes to JSON with the single-pass JSONParser
+     * against the previous conversion, which read the file into a StringBuilder and split it with
+     * String.split on every line. Each size is given the same total number of fields to convert,
+     * and the fastest of several rounds is reported.
+     * Usage: java JSONParserBenchmark [fields per size]
+     */
+    public static void main(String[] args) throws IOException {
+        int totalFields = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        Path dir = Files.createTempDirectory("stations");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long checksum = 0;
+
+        try {
+            for (int fields : FIELD_COUNTS) {
+                Path file = dir.resolve("station" + fields + ".txt");
+                Files.writeString(file, station(fields), StandardCharsets.UTF_8);
+                String fileName = file.toString();
+                int files = Math.max(1, totalFields / fields);
+
+                long splitNanos = Long.MAX_VALUE;
+                long streamNanos = Long.MAX_VALUE;
+                long splitBytes = 0;
+                long streamBytes = 0;
+                for (int round = 0; round < ROUNDS; round++) { // The fastest round is kept, the first ones warm up the JIT
+                    long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    long start = System.nanoTime();
+                    for (int i = 0; i < files; i++) {
+                        checksum += convertWithSplit(fileName).length();
+                    }
+                    splitNanos = Math.min(splitNanos, System.nanoTime() - start);
+                    splitBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+                    before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    start = System.nanoTime();
+                    for (int i = 0; i < files; i++) {
+                        checksum += JSONParser.convertFileToJSON(fileName).length();
+                    }
+                    streamNanos = Math.min(streamNanos, System.nanoTime() - start);
+                    streamBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+                }
+                System.out.println("Fields: " + fields + " (" + Files.size(file) + " bytes, " + files + " files)");
+                System.out.printf("  split:       %10d bytes/file, %10.0f ns/file%n", splitBytes / files, (double) splitNanos / files);
+                System.out.printf("  single-pass: %10d bytes/file, %10.0f ns/file%n", streamBytes / files, (double) streamNanos / files);
+                Files.delete(file);
+            }
+        } finally {
+            Files.deleteIfExists(dir);
+        }
+        System.out.println("(The split conversion drops lines whose value holds a colon, so its output is shorter)");
+        System.out.println("Checksum: " + checksum);
+    }
+
+    /**
+     * Builds a station file: the fields of a real station first, then numbered extra fields.
+     */
+    private static String station(int fields) {
+        String[] base = {
+                "id:IDS60901", "name:Adelaide (West Terrace /  ngayirdapira)", "state: SA", "time_zone:CST",
+                "lat:-30", "lon:138.7", "local_date_time:15/04:00pm", "local_date_time_full:20230715160000",
+                "air_temp:13.3", "apparent_t:9.5", "cloud:Partly cloudy", "dewpt:5.7", "press:1023.9",
+                "rel_hum:60", "wind_dir:S", "wind_spd_kmh:14", "wind_spd_kt:8"};
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < fields; i++) {
+            text.append(i < base.length ? base[i] : "field_" + i + ":" + (i * 0.1)).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String convertWithSplit(String fileName) throws IOException {
+        StringBuilder contentBuilder = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
+            String currentLine;
+            while ((currentLine = br.readLine()) != null) {
+                contentBuilder.append(currentLine).append("\n");
+            }
+        }
+
+        Map<String, String> map = new HashMap<>();
+        for (String line : contentBuilder.toString().split("\n")) {
+            String[] keyValue = line.split(":");
+            if (keyValue.length == 2) {
+                map.put(keyValue[0].trim(), keyValue[1].trim());
+            }
+        }
+        return JSONParser.convertToJSON(map);
+    }
+}
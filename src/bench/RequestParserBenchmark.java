@@ -0,0 +1,100 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+public class RequestParserBenchmark {
+    /**
+     * Compares the bytes allocated to parse a typical PUT with the byte-level RequestReader
+     * against the previous BufferedReader and StringBuilder parsing. Both decode the body into a
+     * String, which the server needs to parse the JSON. The RequestReader is measured on a plain
+     * PUT, whose body is read line by line up to a blank line, and on an HTTP/1.1 PUT, whose body
+     * is read in one go by its Content-Length with the server's body size limit.
+     * Usage: java RequestParserBenchmark [requests]
+     */
+    public static void main(String[] args) throws IOException {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        String json = new String(Files.readAllBytes(Paths.get("src/test/weather0check.txt")), StandardCharsets.UTF_8);
+        byte[] request = ("PUT\n7\nUser-Agent: ATOMClient/1/0\nContent-Type: application/json\nContent-Length: "
+                + json.length() + "\n\n" + json + "\n\n").getBytes(StandardCharsets.UTF_8);
+        byte[] framed = ("PUT HTTP/1.1\n7\nUser-Agent: ATOMClient/1/0\nContent-Type: application/json\nContent-Length: "
+                + json.getBytes(StandardCharsets.UTF_8).length + "\n\n" + json).getBytes(StandardCharsets.UTF_8);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long checksum = 0;
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                checksum += parseWithReaders(new ByteArrayInputStream(request));
+            }
+            long readerNanos = System.nanoTime() - start;
+            long readerBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+            before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                checksum += parseWithRequestReader(new ByteArrayInputStream(request));
+            }
+            long bufferNanos = System.nanoTime() - start;
+            long bufferBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+            before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                checksum += parseFramedWithRequestReader(new ByteArrayInputStream(framed));
+            }
+            long framedNanos = System.nanoTime() - start;
+            long framedBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+            if (round == 1) {
+                System.out.println("Requests: " + requests + " (" + request.length + " bytes each)");
+                System.out.printf("BufferedReader: %6d bytes/request, %6.0f ns/request%n", readerBytes / requests, (double) readerNanos / requests);
+                System.out.printf("RequestReader:  %6d bytes/request, %6.0f ns/request%n", bufferBytes / requests, (double) bufferNanos / requests);
+                System.out.printf("Content-Length: %6d bytes/request, %6.0f ns/request (%d bytes)%n", framedBytes / requests, (double) framedNanos / requests, framed.length);
+                System.out.println("(All include the input stream and the decoded body String)");
+            }
+        }
+        System.out.println("Checksum: " + checksum);
+    }
+
+    private static int parseWithReaders(InputStream input) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input));
+        String requestType = in.readLine();
+        int clock = Integer.parseInt(in.readLine());
+        StringBuilder headers = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            headers.append(line).append("\n");
+        }
+        StringBuilder jsonData = new StringBuilder();
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            jsonData.append(line).append("\n");
+        }
+        String json = jsonData.toString();
+        return requestType.length() + clock + headers.length() + json.length();
+    }
+
+    private static int parseWithRequestReader(InputStream input) throws IOException {
+        try (RequestReader in = new RequestReader(input)) {
+            String requestType = in.readRequestType();
+            int clock = in.readInt();
+            int headers = in.readHeaders();
+            in.readBody();
+            String json = in.sliceString();
+            return requestType.length() + clock + headers + json.length();
+        }
+    }
+
+    private static int parseFramedWithRequestReader(InputStream input) throws IOException {
+        try (RequestReader in = new RequestReader(input, AggregationServer.MAX_REQUEST_BYTES)) {
+            String requestType = in.readRequestType();
+            int clock = in.readInt();
+            int headers = in.readHeaders();
+            in.readFramedBody();
+            String json = in.sliceString();
+            return requestType.length() + clock + headers + json.length();
+        }
+    }
+}
@@ -7,16 +7,37 @@ import java.util.*;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.Path;
 import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class AggregationServer {
     private static volatile boolean running = false; // Flag to control server running state
     public static LamportClock lamportClock;
     private static ServerSocket serverSocket;
+    private static DatagramSocket heartbeatSocket; // Receives UDP heartbeats, if enabled
     private static ExecutorService threadPool;
     public static int port;
-    public static final Map<String, Long> lastContactMap = new ConcurrentHashMap<>();
+    public static final ContactTable lastContactMap = new ContactTable(); // Last contact time of each station, by station slot
+    public static final Map<String, StationRecord> recordMap = new ConcurrentHashMap<>(); // Latest parsed document per station
+    public static final Map<String, StationHistory> historyMap = new ConcurrentHashMap<>(); // Recent readings per station
+    public static final Map<String, StationRollup> rollupMap = new ConcurrentHashMap<>(); // Windowed aggregates per station
+    public static final VersionTable versionMap = new VersionTable(); // Lamport timestamp and sender of each station's latest PUT
+    public static final Map<String, Long> contentHashMap = new ConcurrentHashMap<>(); // Hash of each station's stored JSON, to spot unchanged PUTs
+    public static final Metrics metrics = new Metrics(); // Request counters, served by GET METRICS
+    static final StripedLocks stationLocks = new StripedLocks(Integer.getInteger("storage.stripes", 256)); // Orders the writers of each station
+    public static volatile ColumnStore columnStore = new ColumnStore(); // Primitive columns for scans and aggregations
+    public static volatile StateAggregates stateAggregates = new StateAggregates(); // Live per-state summaries
+    public static volatile ContactIndex contactIndex = new ContactIndex(); // Stations ordered by last contact, for TOPK stale
+    public static volatile SpatialIndex spatialIndex = new SpatialIndex(); // Station positions for NEAREST and BBOX queries
+
+    public static final Path SNAPSHOT_PATH = Paths.get("src/main/snapshot/aggregation.snapshot");
+    public static final int SNAPSHOT_SECONDS = Integer.getInteger("snapshot.seconds", 30); // How often the state is snapshotted
+    public static final int MAX_REQUEST_BYTES = Integer.getInteger("request.maxBytes", 1 << 20); // Largest request body accepted, a station document is a few hundred bytes
+    public static final boolean HEARTBEAT_UDP = Boolean.getBoolean("heartbeat.udp"); // Also accept heartbeats as UDP datagrams on the server port
 
     /**
      * Main method to start the Aggregation Server.
@@ -30,6 +51,7 @@ public class AggregationServer {
     public static void main(String[] args){
         startUp(args);
         startFileCleanupThread(); // start clean up
+        startSnapshotThread();
         running = true;
         listen(serverSocket);
     }
@@ -44,9 +66,13 @@ public class AggregationServer {
     public static void startUp(String[] args){
         System.out.println("Server is starting up...");
         lamportClock = new LamportClock();  // Starts with clock = 0
+        restoreState(); // Reload the stations on disk, using the snapshot where it is current
         port = getPortNumber(args); // get port number from input
         startShutdownListener();
         startSocket(port); // start socket on given port number
+        if (HEARTBEAT_UDP) {
+            startHeartbeatListener(port);
+        }
         threadPool = Executors.newCachedThreadPool();  // Use a thread pool to manage clients
     }
 
@@ -94,26 +120,57 @@ public class AggregationServer {
 
         Files.list(directory).forEach(file -> {
             String fileName = file.getFileName().toString();
+            if (!fileName.endsWith(".json")) {
+                return; // e.g. a station file still being written
+            }
             String fileId = fileName.substring(0, fileName.indexOf('.')); // Assuming fileId is part of the file name
 
             Long lastContactTime = lastContactMap.get(fileId);
             if (lastContactTime == null){
-                lastContactMap.put(fileId, System.currentTimeMillis());
+                recordContact(fileId, System.currentTimeMillis());
             }
             else if (lastContactTime < thresholdTime) {
                 // If no heartbeat has been received within the time limit, delete the file
+                ReentrantLock lock = stationLocks.forKey(fileId);
+                lock.lock();
                 try {
+                    Long latest = lastContactMap.get(fileId);
+                    if (latest == null || latest >= thresholdTime) {
+                        return; // A PUT arrived while waiting for the lock
+                    }
                     Files.delete(file);
                     System.out.println("Deleted inactive server file: " + file.getFileName());
                     lastContactMap.remove(fileId); // Also remove the file from the map
+                    versionMap.remove(fileId);
+                    contentHashMap.remove(fileId);
+                    contactIndex.remove(fileId);
+                    recordMap.remove(fileId);
+                    historyMap.remove(fileId);
+                    rollupMap.remove(fileId);
+                    spatialIndex.remove(fileId);
+                    columnStore.remove(fileId);
+                    stateAggregates.remove(fileId);
                 } catch (IOException e) {
                     System.err.println("Error deleting file: " + file.getFileName());
                     e.printStackTrace();
+                } finally {
+                    lock.unlock();
                 }
             }
         });
     }
 
+    /**
+     * Records contact with a station, from a PUT or a heartbeat.
+     *
+     * @param fileId The station ID.
+     * @param timestamp The contact time in milliseconds.
+     */
+    public static void recordContact(String fileId, long timestamp) {
+        lastContactMap.touch(fileId, timestamp);
+        contactIndex.touch(fileId, timestamp);
+    }
+
     /**
      * Starts a background thread to periodically clean up inactive files.
      *
@@ -140,7 +197,10 @@ public class AggregationServer {
      */
     public static void startSocket(int port) {
         try {
-            serverSocket = new ServerSocket(port);
+            // Open the socket through a channel, so accepted sockets have channels to transfer files to
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverSocket = serverChannel.socket();
             System.out.println("Aggregation Server started on port " + port);
         } catch (IOException e) {
             System.out.println("Error while creating server socket on port " + port);
@@ -148,6 +208,71 @@ public class AggregationServer {
         }
     }
 
+    /**
+     * Opens a UDP socket on the server's port and applies the batched heartbeats sent to it in a
+     * background thread. A datagram holds "HEARTBEATS" followed by one station ID per line; no
+     * answer is sent, so a lost datagram simply waits for the next one.
+     *
+     * @param port The port number to bind the datagram socket to.
+     */
+    public static void startHeartbeatListener(int port) {
+        try {
+            heartbeatSocket = new DatagramSocket(port);
+        } catch (SocketException e) {
+            System.out.println("Error while creating heartbeat socket on port " + port);
+            e.printStackTrace();
+            return;
+        }
+        DatagramSocket socket = heartbeatSocket;
+        new Thread(() -> {
+            byte[] buffer = new byte[65507]; // The largest UDP payload
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                    List<String> lines = RequestReader.lines(buffer, 0, packet.getLength());
+                    if (!lines.isEmpty() && lines.get(0).equals("HEARTBEATS")) {
+                        applyHeartbeats(lines.subList(1, lines.size()));
+                    }
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Records contact with every listed station that has data on this server. Each station is
+     * checked and touched under its lock, as cleanUpFiles removes it, so a heartbeat racing the
+     * expiry of its station cannot bring the station back into the contact tables.
+     *
+     * @param ids The station IDs.
+     * @return The IDs of the stations this server holds no data for, so their senders can resend it.
+     */
+    static List<String> applyHeartbeats(List<String> ids) {
+        long timestamp = System.currentTimeMillis(); // Use current time as the timestamp
+        List<String> unknown = new ArrayList<>();
+        for (String id : ids) {
+            ReentrantLock lock = stationLocks.forKey(id);
+            lock.lock();
+            try {
+                if (recordMap.containsKey(id)) {
+                    recordContact(id, timestamp);
+                } else {
+                    unknown.add(id);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        metrics.increment("heartbeat_frames");
+        metrics.add("heartbeats", ids.size() - unknown.size());
+        return unknown;
+    }
+
     /**
      * Listens for incoming client connections and assigns each connection to a new thread.
      *
@@ -218,11 +343,17 @@ public class AggregationServer {
             e.printStackTrace();
         }
 
+        if (heartbeatSocket != null) {
+            heartbeatSocket.close(); // Ends the heartbeat listener
+        }
+
         // Shutdown the client handler threads
         if (threadPool != null && !threadPool.isShutdown()) {
             threadPool.shutdownNow();  // Immediately stop all threads
         }
 
+        saveSnapshot(); // So the next start up doesn't have to re-read every station
+
         System.out.println("Server has been shut down.");
     }
 
@@ -237,10 +368,10 @@ public class AggregationServer {
     }
 
     /**
-     * Clears all the data stored in the Aggregation Server.
+     * Clears all the data stored in the Aggregation Server, including the snapshot and the in-memory state.
      * Used in testing.
      */
-    public static void RemoveTextFiles() {
+    public static synchronized void RemoveTextFiles() {
         // Specify the directory path
         String directoryPath = "src/main/aggr_data";
 
@@ -266,14 +397,211 @@ public class AggregationServer {
         } else {
             System.out.println("The directory is empty or does not exist.");
         }
+
+        try {
+            Files.deleteIfExists(SNAPSHOT_PATH);
+        } catch (IOException e) {
+            System.out.println("Failed to delete the snapshot");
+        }
+        resetState();
+    }
+
+    /**
+     * Starts a background thread that periodically snapshots the server's state.
+     */
+    public static void startSnapshotThread() {
+        new Thread(() -> {
+            while (running) {
+                try {
+                    TimeUnit.SECONDS.sleep(SNAPSHOT_SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (running) {
+                    saveSnapshot();
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Writes a binary snapshot of the station records, last contact times, versions and Lamport clock.
+     */
+    public static synchronized void saveSnapshot() {
+        if (lamportClock == null) {
+            return; // Never started, so there is nothing to save
+        }
+        try {
+            long start = System.nanoTime();
+            long savedAt = System.currentTimeMillis();
+            // Read before the state is copied, so a later change to the directory always shows up.
+            // A change within the last 2 seconds might share its timestamp with one still to come.
+            Path directory = Paths.get("src/main/aggr_data");
+            long dataModified = Files.exists(directory) ? Files.getLastModifiedTime(directory).toMillis() : -1;
+            int count = Snapshot.write(SNAPSHOT_PATH, savedAt, dataModified <= savedAt - 2000 ? dataModified : -1,
+                    lamportClock.getClock(), recordMap, lastContactMap, versionMap, contentHashMap);
+            System.out.println("Snapshot of " + count + " stations written in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            System.out.println("Failed to write snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rebuilds the in-memory state from the stations stored on disk. If the data directory has not
+     * changed since the snapshot was taken, every station is loaded from the memory-mapped snapshot
+     * without listing the directory: its parsed fields, hash, version and saved last contact time
+     * (so that stale stations still expire on time) are indexed as they are. Otherwise the directory
+     * is listed, stations whose file has not changed since the snapshot are still loaded from it,
+     * and any other station is read from its file, with the file's modification time as its last contact.
+     */
+    public static synchronized void restoreState() {
+        long start = System.nanoTime();
+        resetState();
+        try {
+            Files.createDirectories(Paths.get("src/main/aggr_data"));
+        } catch (IOException e) {
+            System.out.println("Failed to create the data directory");
+            return;
+        }
+
+        Snapshot snapshot = Snapshot.read(SNAPSHOT_PATH);
+        if (snapshot != null) {
+            lamportClock.update(snapshot.lamportClock);
+        }
+        if (snapshot != null && snapshot.isCurrent(Paths.get("src/main/aggr_data"))) {
+            for (Map.Entry<String, Snapshot.Entry> station : snapshot.entries.entrySet()) {
+                Snapshot.Entry entry = station.getValue();
+                restoreStation(station.getKey(), entry.lastContact, entry.version, entry.json, entry.hash, entry.fields);
+            }
+            System.out.println("Restored " + snapshot.entries.size() + " stations from the snapshot, data directory unchanged, in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return;
+        }
+        // Files written shortly before the snapshot may not have been recorded in it yet
+        long current = snapshot == null ? Long.MIN_VALUE : snapshot.savedAt - 2000;
+
+        int fromSnapshot = 0, fromDisk = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("src/main/aggr_data"), "*.json")) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                String fileId = fileName.substring(0, fileName.length() - ".json".length());
+                Snapshot.Entry entry = snapshot == null ? null : snapshot.entries.get(fileId);
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                try {
+                    if (entry != null && modified <= current) {
+                        restoreStation(fileId, entry.lastContact, entry.version, entry.json, entry.hash, entry.fields);
+                        fromSnapshot++;
+                    } else {
+                        byte[] json = Files.readAllBytes(file);
+                        String jsonString = new String(json, StandardCharsets.UTF_8);
+                        restoreStation(fileId, entry == null ? modified : Math.max(modified, entry.lastContact),
+                                entry == null ? new StationVersion(0, "") : entry.version, jsonString,
+                                RequestReader.hash(json, 0, json.length), JSONParser.parseJSON(jsonString));
+                        fromDisk++;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Skipping unreadable station file " + fileName);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to list the stored stations: " + e.getMessage());
+        }
+        System.out.println("Restored " + (fromSnapshot + fromDisk) + " stations (" + fromSnapshot + " from snapshot, "
+                + fromDisk + " from disk) in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Indexes a stored station at start up: its record, columns, state summary and spatial index.
+     * Histories and rollups are not part of the snapshot and start empty after a restart, so the
+     * restore does not allocate them for every station.
+     *
+     * @param weatherID The station ID.
+     * @param lastContact The station's last contact time.
+     * @param version The version of the stored data.
+     * @param jsonString The stored JSON data.
+     * @param hash The hash of the stored JSON data.
+     * @param fields The fields of the JSON data in order, as returned by JSONParser.parseJSON.
+     */
+    private static void restoreStation(String weatherID, long lastContact, StationVersion version, String jsonString,
+                                       long hash, Map<String, String> fields) {
+        recordContact(weatherID, lastContact);
+        versionMap.set(weatherID, version);
+        indexStation(weatherID, jsonString, fields);
+        contentHashMap.put(weatherID, hash);
+    }
+
+    /**
+     * Forgets every station held in memory.
+     */
+    private static synchronized void resetState() {
+        lastContactMap.clear();
+        versionMap.clear();
+        contentHashMap.clear();
+        recordMap.clear();
+        historyMap.clear();
+        rollupMap.clear();
+        columnStore = new ColumnStore();
+        stateAggregates = new StateAggregates();
+        contactIndex = new ContactIndex();
+        spatialIndex = new SpatialIndex();
+    }
+
+    /**
+     * Sets a station's version and adds its data to the station's record, columns, state summary,
+     * history, rollups and spatial index.
+     *
+     * @param weatherID The station ID.
+     * @param version The version of the data.
+     * @param jsonString The JSON data.
+     */
+    static void recordReading(String weatherID, StationVersion version, String jsonString) {
+        versionMap.set(weatherID, version);
+        indexReading(weatherID, version.lamport, jsonString);
+    }
+
+    /**
+     * Adds an accepted PUT to the station's record, columns, state summary, history, rollups and
+     * spatial index. The station's version has already been moved forward by the PUT.
+     *
+     * @param weatherID The station ID.
+     * @param lamport The Lamport timestamp the PUT was sent with.
+     * @param jsonString The JSON data of the PUT.
+     */
+    static void indexReading(String weatherID, int lamport, String jsonString) {
+        Map<String, String> fields = JSONParser.parseJSON(jsonString);
+        indexStation(weatherID, jsonString, fields);
+
+        long time = StationHistory.parseTime(fields.get("local_date_time_full"));
+        if (time < 0) {
+            System.out.println("No valid local_date_time_full, reading not added to history");
+            return;
+        }
+        historyMap.computeIfAbsent(weatherID, key -> new StationHistory()).add(time, lamport, fields);
+        rollupMap.computeIfAbsent(weatherID, key -> new StationRollup()).add(time, fields);
     }
 
+    /**
+     * Replaces a station's record, and its entries in the columns, state summary and spatial index.
+     *
+     * @param weatherID The station ID.
+     * @param jsonString The JSON data.
+     * @param fields The fields of the JSON data in order, as returned by JSONParser.parseJSON.
+     */
+    private static void indexStation(String weatherID, String jsonString, Map<String, String> fields) {
+        recordMap.put(weatherID, new StationRecord(jsonString, fields));
+        columnStore.put(weatherID, fields);
+        stateAggregates.put(weatherID, fields);
+        spatialIndex.put(weatherID, JSONParser.parseDouble(fields.get("lat")), JSONParser.parseDouble(fields.get("lon")));
+    }
 
 } // Aggregation Server
 
 
 class ClientHandler extends AggregationServer implements Runnable{
+    private static final int KEEP_ALIVE_MILLIS = Integer.getInteger("keepalive.seconds", 30) * 1000; // Idle time before a kept-alive connection is closed
+
     private final Socket clientSocket;
+    private ResponseFramer framer; // Frames the responses on this connection
 
     /**
      * ClientHandler handles client connections and processes their requests
@@ -297,34 +625,70 @@ class ClientHandler extends AggregationServer implements Runnable{
      */
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
+        try (RequestReader in = new RequestReader(clientSocket.getInputStream(), AggregationServer.MAX_REQUEST_BYTES);
+             ResponseFramer framer = new ResponseFramer(clientSocket.getOutputStream());
+             PrintWriter out = framer.newWriter()) {
+            this.framer = framer;
 
-            // Increment clock on request receipt
-            AggregationServer.lamportClock.increment();
+            boolean keepAlive = true;
+            for (int requests = 0; keepAlive; requests++) {
+                // Increment clock on request receipt
+                AggregationServer.lamportClock.increment();
 
-            // get request type
-            String requestType = in.readLine();
+                // get request type
+                String requestType = in.readRequestType();
 
-            // Check if the input is null or invalid (this happens when we trigger shutdown)
-            if (requestType == null || requestType.trim().isEmpty()) {
-                System.out.println("Received invalid or null input. Closing client connection.");
-                return; // Exit the handler gracefully
-            }
+                // Check if the input is null or invalid (this happens when we trigger shutdown)
+                if (requestType == null || requestType.trim().isEmpty()) {
+                    if (requests == 0) {
+                        System.out.println("Received invalid or null input. Closing client connection.");
+                    }
+                    return; // Exit the handler gracefully
+                }
 
-            switch (requestType) {
-                case "PUT" -> {
-                    System.out.println("Request type: PUT");
-                    processPut(in, out);
+                // HTTP/1.1 requests get responses with a known length, so the connection can be reused
+                framer.setFraming(in.isHttp11());
+                try {
+                    switch (requestType) {
+                        case "PUT" -> {
+                            System.out.println("Request type: PUT");
+                            processPut(in, out);
+                        }
+                        case "PATCH" -> {
+                            System.out.println("Request type: PATCH");
+                            processPatch(in, out);
+                        }
+                        case "GET" -> {
+                            System.out.println("Request type: GET");
+                            processGet(in, out);
+                        }
+                        case "HEARTBEAT" -> processHeartbeat(in, out);
+                        case "HEARTBEATS" -> processHeartbeats(in, out);
+                        default -> out.println("HTTP/1.1 400 Invalid request type");
+                    }
+                } catch (RequestReader.BodyTooLargeException e) {
+                    // The body is left unread, so answer and close rather than read the next request from its middle
+                    System.out.println(e.getMessage());
+                    metrics.increment("requests_too_large");
+                    out.println("HTTP/1.1 413 Payload Too Large");
+                    out.println("Connection: close");
+                    out.println("Content-Length: 0");
+                    out.println(); // End of headers
+                    out.flush();
+                    framer.finish();
+                    return;
                 }
-                case "GET" -> {
-                    System.out.println("Request type: GET");
-                    processGet(in, out);
+                out.flush();
+                framer.finish();
+
+                keepAlive = in.isHttp11() && !in.isConnectionClose();
+                if (keepAlive) {
+                    clientSocket.setSoTimeout(KEEP_ALIVE_MILLIS); // Don't hold a thread for an idle connection forever
                 }
-                case "HEARTBEAT" -> processHeartbeat(in, out);
-                default -> out.println("HTTP/1.1 400 Invalid request type");
             }
 
+        } catch (SocketTimeoutException e) {
+            System.out.println("Closing idle keep-alive connection.");
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -345,22 +709,24 @@ class ClientHandler extends AggregationServer implements Runnable{
      * value, updates the server's clock, and stores the weather data in a
      * file named after the weather ID.
      *
-     * @param in BufferedReader to read input from the client.
+     * @param in RequestReader to read input from the client.
      * @param out PrintWriter to send output back to the client.
      * @throws IOException If an error occurs while reading input or writing output.
      */
-    public void processPut(BufferedReader in, PrintWriter out) throws IOException {
+    public void processPut(RequestReader in, PrintWriter out) throws IOException {
         // Read lamport clock value from content server
-        String receivedClockString = in.readLine();
-        int receivedClock = Integer.parseInt(receivedClockString);
+        int receivedClock = in.readInt();
         AggregationServer.lamportClock.update(receivedClock);
 
-        // Read & print headers
-        StringBuilder responseHeaders = readHeaders(in);
-        System.out.println(responseHeaders);
+        // Read & print headers, straight from the request buffer
+        in.readHeaders();
+        in.printSlice(System.out);
+        System.out.println();
+        StationVersion version = new StationVersion(receivedClock, in.header("Sender-ID"));
 
-        // read & print json data
-        String jsonString = readJson(in);
+        // read & print json data, by Content-Length or chunks for HTTP/1.1 and up to a blank line otherwise
+        in.readFramedBody();
+        String jsonString = in.sliceString();
         System.out.println("Received JSON data: " + jsonString);
         System.out.println("Lamport Clock before processing PUT: " + AggregationServer.lamportClock.getClock());
 
@@ -374,27 +740,46 @@ class ClientHandler extends AggregationServer implements Runnable{
         // get weather ID
         String weatherID = getWeatherID(jsonString);
         if (weatherID == null) {
-            throw new IllegalArgumentException("ID not found in JSON data");
+            // Answer rather than drop the connection, so PUTs pipelined after this one still get through
+            System.out.println("ID not found in JSON data");
+            out.println("HTTP/1.1 400 Bad Request");
+            return;
         }
 
+        metrics.increment("puts");
         try {
-            // Store the data in a file named after the weather ID
-            Path filePath = Paths.get("src/main/aggr_data/" + weatherID + ".json");
-
             long timestamp = System.currentTimeMillis(); // Use current time as the timestamp
-            lastContactMap.put(weatherID, timestamp);
+            recordContact(weatherID, timestamp);
 
-            // Send success response (HTTP 201 for new, HTTP 200 for update)
-            if (!Files.exists(filePath)) {
-                // Create the file and write content
-                Files.writeString(filePath, jsonString, StandardOpenOption.CREATE);
-                out.println("HTTP/1.1 201 Created");
+            // Only a PUT newer than the station's current version may replace its data
+            long hash = in.sliceHash();
+            StationVersion current = versionMap.advance(weatherID, version);
+            String status;
+            if (current == null) {
+                status = storeReading(weatherID, version, hash, in.sliceBuffer(), jsonString);
+            } else if (isStored(weatherID, hash)) {
+                System.out.println("Unchanged data for " + weatherID + ", skipping write");
+                metrics.increment("puts_deduplicated");
+                status = "HTTP/1.1 200 OK"; // A retry of data that is already stored
             } else {
-                // File already exists, update its content
-                Files.writeString(filePath, jsonString, StandardOpenOption.TRUNCATE_EXISTING);
-                out.println("HTTP/1.1 200 OK");
+                System.out.println("Rejecting PUT " + version + " for " + weatherID + ", already at version " + current);
+                metrics.increment("puts_rejected_stale");
+                String error = "{\"error\": \"Stale PUT\", \"lamport\": \"" + current.lamport + "\", \"sender\": \"" + current.sender + "\"}";
+                out.println("HTTP/1.1 409 Conflict");
+                out.println("Lamport-Clock: " + AggregationServer.lamportClock.getClock()); // So the sender can catch up
+                out.println("Station-Version: " + current);
+                out.println("Content-Type: application/json");
+                out.println("Content-Length: " + (error.getBytes(StandardCharsets.UTF_8).length + 1));
+                out.println(); // End of headers
+                out.println(error);
+                out.flush();
+                AggregationServer.lamportClock.increment(); // Increment clock after processing PUT
+                return;
             }
 
+            // Send success response (HTTP 201 for new, HTTP 200 for update)
+            out.println(status);
+            out.println("Content-Length: " + (in.getSliceLength() + 1)); // The echoed data and its newline
             out.println(); // End of headers
             out.println(jsonString); // Send back the JSON data
             out.flush();  // Ensure all the output is flushed
@@ -406,47 +791,252 @@ class ClientHandler extends AggregationServer implements Runnable{
         AggregationServer.lamportClock.increment(); // Increment clock after processing PUT
     }
 
+    /**
+     * Processes a delta PUT: a PATCH whose body holds only the fields that changed since the
+     * version named in its Base-Version header. The fields are applied to the station's stored
+     * record, and the merged document is stored like the body of a full PUT.
+     *
+     * The delta is only applied if the station is still at the base version, the delta changes
+     * no field the document does not have, and the merged document hashes to the sender's
+     * Document-Hash. Otherwise the server answers 412 Precondition Failed and the sender falls
+     * back to a full PUT.
+     *
+     * @param in RequestReader to read input from the client.
+     * @param out PrintWriter to send output back to the client.
+     * @throws IOException If an error occurs while reading input or writing output.
+     */
+    public void processPatch(RequestReader in, PrintWriter out) throws IOException {
+        // Read lamport clock value from content server
+        int receivedClock = in.readInt();
+        AggregationServer.lamportClock.update(receivedClock);
+
+        in.readHeaders();
+        in.printSlice(System.out);
+        System.out.println();
+        StationVersion version = new StationVersion(receivedClock, in.header("Sender-ID"));
+        String base = in.header("Base-Version");
+        String documentHash = in.header("Document-Hash");
+
+        in.readFramedBody();
+        String delta = in.sliceString();
+        System.out.println("Received delta: " + delta);
+
+        String weatherID = getWeatherID(delta);
+        if (weatherID == null) {
+            System.out.println("ID not found in delta");
+            out.println("HTTP/1.1 400 Bad Request");
+            return;
+        }
+
+        metrics.increment("patches");
+        StationVersion current = versionMap.get(weatherID);
+        StationRecord record = recordMap.get(weatherID);
+        String merged = null;
+        if (current != null && record != null && current.toString().equals(base)) {
+            merged = applyDelta(record.getJson(), JSONParser.parseJSON(delta));
+        }
+        byte[] body = merged == null ? null : merged.getBytes(StandardCharsets.UTF_8);
+        long hash = body == null ? 0 : RequestReader.hash(body, 0, body.length);
+        if (body == null || !Long.toHexString(hash).equals(documentHash) || versionMap.advance(weatherID, version) != null) {
+            System.out.println("Rejecting delta on " + base + " for " + weatherID + ", station is at " + current);
+            metrics.increment("patches_rejected");
+            out.println("HTTP/1.1 412 Precondition Failed");
+            out.println("Lamport-Clock: " + AggregationServer.lamportClock.getClock());
+            if (current != null) {
+                out.println("Station-Version: " + current);
+            }
+            out.println("Content-Length: 0");
+            out.println(); // End of headers
+            AggregationServer.lamportClock.increment();
+            return;
+        }
+
+        recordContact(weatherID, System.currentTimeMillis());
+        String status;
+        try {
+            status = storeReading(weatherID, version, hash, ByteBuffer.wrap(body), merged);
+        } catch (IOException | RuntimeException e) {
+            // Nothing was stored, so the station stays at the base version for the sender's retry
+            System.out.println("Failed to store delta for " + weatherID + ": " + e);
+            versionMap.rollBack(weatherID, version, current);
+            status = "HTTP/1.1 500 Internal Server Error";
+        }
+        out.println(status);
+        out.println("Content-Length: 0");
+        out.println(); // End of headers
+        AggregationServer.lamportClock.increment(); // Increment clock after processing PATCH
+    }
+
+    /**
+     * Applies changed fields to a stored document, keeping its field order and layout.
+     *
+     * @param json The stored document.
+     * @param changes The changed fields.
+     * @return The merged document, or null if a change names a field the document does not have.
+     */
+    static String applyDelta(String json, Map<String, String> changes) {
+        Map<String, String> fields = JSONParser.parseJSON(json);
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (fields.replace(change.getKey(), change.getValue()) == null) {
+                return null;
+            }
+        }
+        return JSONParser.convertToJSON(fields) + "\n";
+    }
+
+    /**
+     * Stores a PUT whose version was accepted. Writers of the same station hold the station's
+     * lock, so they write one at a time; different stations almost never share a lock. A writer
+     * that was overtaken by a newer PUT while it waited leaves the newer data in place.
+     *
+     * The file is written next to the station's file and moved over it, so a GET that opens the
+     * file sees either the old or the new document, never a partly written one. The in-memory
+     * record is immutable and swapped in whole, so readers never take the lock.
+     *
+     * @param weatherID The station ID.
+     * @param version The accepted version of the PUT.
+     * @param hash The hash of the body.
+     * @param body The body bytes, written to the file as they are.
+     * @param jsonString The body as text.
+     * @return The status line of the response.
+     * @throws IOException If the file cannot be written.
+     */
+    private static String storeReading(String weatherID, StationVersion version, long hash, ByteBuffer body,
+                                       String jsonString) throws IOException {
+        ReentrantLock lock = stationLocks.forKey(weatherID);
+        lock.lock();
+        try {
+            if (!version.equals(versionMap.get(weatherID))) {
+                System.out.println("PUT " + version + " for " + weatherID + " was overtaken by a newer PUT");
+                metrics.increment("puts_superseded");
+                return "HTTP/1.1 200 OK";
+            }
+            // The same document again (e.g. a content file touched but not edited) only counts as contact
+            if (isStored(weatherID, hash)) {
+                System.out.println("Unchanged data for " + weatherID + ", skipping write");
+                metrics.increment("puts_deduplicated");
+                return "HTTP/1.1 200 OK";
+            }
+
+            // Store the data in a file named after the weather ID
+            Path filePath = Paths.get("src/main/aggr_data/" + weatherID + ".json");
+            Path tempPath = filePath.resolveSibling(weatherID + ".tmp");
+            boolean created = !Files.exists(filePath);
+            // Write the body bytes as received, then replace the old file in one step
+            try (FileChannel file = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (body.hasRemaining()) {
+                    file.write(body);
+                }
+            }
+            Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            indexReading(weatherID, version.lamport, jsonString);
+            contentHashMap.put(weatherID, hash);
+            return created ? "HTTP/1.1 201 Created" : "HTTP/1.1 200 OK";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether a station's stored document has the given hash.
+     *
+     * @param weatherID The station ID.
+     * @param hash The hash of a PUT's body.
+     * @return True if the station is stored with exactly this document.
+     */
+    private static boolean isStored(String weatherID, long hash) {
+        Long storedHash = contentHashMap.get(weatherID);
+        return storedHash != null && storedHash == hash && recordMap.containsKey(weatherID);
+    }
+
     /**
      * Processes the GET request sent by the client, either retrieving the
      * most recent weather data or data for a specific weather ID. It reads
      * the client's Lamport clock value, updates the server's clock, and
      * sends the appropriate weather data back to the client.
      *
-     * @param in BufferedReader to read input from the client.
+     * @param in RequestReader to read input from the client.
      * @param out PrintWriter to send output back to the client.
      * @throws IOException If an error occurs while reading input or writing output.
      */
-    public void processGet(BufferedReader in, PrintWriter out) throws IOException {
+    public void processGet(RequestReader in, PrintWriter out) throws IOException {
         // Read lamport clock value from content server
-        String receivedClockString = in.readLine();
-        int receivedClock = Integer.parseInt(receivedClockString);
+        int receivedClock = in.readInt();
         AggregationServer.lamportClock.update(receivedClock);
 
         // if no ID specified, return latest data
-        String id = in.readLine();
+        String id = in.readLineString();
+        if (in.isHttp11()) {
+            in.readHeaders(); // HTTP/1.1 GETs follow the target with headers, e.g. Connection: close
+        }
         System.out.println("ID: " + id);
         System.out.println("Lamport Clock before processing GET: " + AggregationServer.lamportClock.getClock());
 
-        if (id.equals("MOST_RECENT")){ // Send the most recently updated weather file
+        // Split off any query parameters, e.g. IDS60901?from=20230715000000&to=20230715235959
+        Map<String, String> params = parseQuery(id);
+        if (id.indexOf('?') != -1) {
+            id = id.substring(0, id.indexOf('?'));
+        }
+        Set<String> fields = JSONParser.parseFields(params.get("fields")); // null unless a projection was requested
+
+        if (params.containsKey("from") || params.containsKey("to")) { // Send a range of the station's history
+            processHistoryGet(id, params, fields, out);
+        } else if (id.startsWith("ROLLUP ")) { // Send the windowed aggregates of a station
+            processRollupGet(id, out);
+        } else if (id.startsWith("NEAREST ") || id.startsWith("BBOX ")) { // Send the stations matching a spatial query
+            processSpatialGet(id, fields, out);
+        } else if (id.startsWith("STATS ")) { // Send an aggregate of one field across all stations
+            processStatsGet(id, out);
+        } else if (id.equals("METRICS")) { // Send the request counters
+            System.out.println("Sending metrics");
+            out.println("HTTP/1.1 200 OK");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            metrics.writeTo(out);
+            out.println(); // End of message
+        } else if (id.equals("STATES") || id.startsWith("STATES ")) { // Send the per-state summaries
+            String state = id.length() > "STATES".length() ? id.substring("STATES ".length()).trim() : null;
+            System.out.println("Sending state summaries");
+            out.println("HTTP/1.1 200 OK");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            stateAggregates.writeTo(state, out);
+            out.println(); // End of message
+        } else if (id.startsWith("TOPK ")) { // Send the top ranked stations of a field
+            processTopKGet(id, out);
+        } else if (id.startsWith("WHERE ")) { // Send the stations matching a filter
+            processWhereGet(id, fields, out);
+        } else if (id.indexOf(',') != -1) { // Send several stations at once
+            System.out.println("Sending stations: " + id);
+            out.println("HTTP/1.1 200 OK");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            writeStations(Arrays.asList(id.split(",")).iterator(), fields, out);
+            out.println(); // End of message
+        } else if (id.equals("MOST_RECENT")){ // Send the most recently updated weather file
             String most_recent_file = getMostRecentFileId();
-            Path filePath = Paths.get("src/main/aggr_data/" + most_recent_file + ".json");
             System.out.println(most_recent_file);
 
-            String jsonResponse;
+            if (!most_recent_file.equals("empty") && fields == null
+                    && sendStoredFile(most_recent_file, "No ID Specified. Sending Most Recent Data", out)) {
+                AggregationServer.lamportClock.increment(); // Increment clock after processing GET
+                return;
+            }
+            String jsonResponse = most_recent_file.equals("empty") ? null : readStation(most_recent_file, fields);
 
-            if (most_recent_file.equals("empty") || !Files.exists(filePath)) {
+            if (jsonResponse == null) {
                 // If the aggregation server is empty, send a 404 Not Found response
                 jsonResponse = "{\"error\": \"No data in aggregation server\"}";
                 out.println("HTTP/1.1 404 Not Found");
                 out.println("Content-Type: application/json");
 
             } else {
-                jsonResponse = Files.readString(filePath);
                 System.out.println("Sending JSON Data associated with ID :" + id);
                 // Send the JSON data to the client
                 out.println("HTTP/1.1 200 OK");
                 out.println("Content-Type: application/json");
-                out.println("Content-Length: " + jsonResponse.length());
+                out.println("Content-Length: " + (jsonResponse.getBytes(StandardCharsets.UTF_8).length + 2)); // The data and the two line ends after it
                 out.println("No ID Specified. Sending Most Recent Data");
             }
             out.println(); // End of headers
@@ -455,23 +1045,24 @@ class ClientHandler extends AggregationServer implements Runnable{
         } else {
             // Retrieve stored JSON data WITH ID
             System.out.println("Searching for ID: " + id);
+            if (fields == null && sendStoredFile(id, null, out)) {
+                AggregationServer.lamportClock.increment(); // Increment clock after processing GET
+                return;
+            }
 
-            Path filePath = Paths.get("src/main/aggr_data/" + id + ".json");
-            String jsonResponse;
+            String jsonResponse = readStation(id, fields);
 
-            if (!Files.exists(filePath)){ // if we cant find this file
+            if (jsonResponse == null){ // if we cant find this file
                 // If the file does not exist, send a 404 Not Found response
                 jsonResponse = "{\"error\": \"Not Found\"}";
                 out.println("HTTP/1.1 404 Not Found");
                 out.println("Content-Type: application/json");
             } else {
-                // Read the contents of the JSON file
-                jsonResponse = Files.readString(filePath);
                 System.out.println("Sending JSON Data associated with ID :" + id);
                 // Send the JSON data to the client
                 out.println("HTTP/1.1 200 OK");
                 out.println("Content-Type: application/json");
-                out.println("Content-Length: " + jsonResponse.length());
+                out.println("Content-Length: " + (jsonResponse.getBytes(StandardCharsets.UTF_8).length + 2)); // The data and the two line ends after it
             }
             out.println(); // End of headers
             out.println(jsonResponse);
@@ -480,25 +1071,444 @@ class ClientHandler extends AggregationServer implements Runnable{
         AggregationServer.lamportClock.increment(); // Increment clock after processing GET
     }
 
+    /**
+     * Sends the readings of a station whose local_date_time_full lies within the requested range,
+     * ordered by local_date_time_full and Lamport timestamp. Either bound may be left out.
+     *
+     * @param id The station ID.
+     * @param params The query parameters holding the from and to bounds.
+     * @param fields The numeric fields to send, or null for all of them.
+     * @param out PrintWriter to send output back to the client.
+     */
+    private void processHistoryGet(String id, Map<String, String> params, Set<String> fields, PrintWriter out) {
+        long from = params.containsKey("from") ? StationHistory.parseTime(params.get("from")) : 0;
+        long to = params.containsKey("to") ? StationHistory.parseTime(params.get("to")) : Long.MAX_VALUE;
+        StationHistory history = historyMap.get(id);
+
+        if (from < 0 || to < 0) {
+            out.println("HTTP/1.1 400 Bad Request");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            out.println("{\"error\": \"from and to must be in yyyyMMddHHmmss format\"}");
+        } else if (history == null) {
+            out.println("HTTP/1.1 404 Not Found");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            out.println("{\"error\": \"Not Found\"}");
+        } else {
+            System.out.println("Sending history of ID: " + id);
+            out.println("HTTP/1.1 200 OK");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            history.writeRange(id, from, to, fields, out); // Streamed without a Content-Length, so the framer chunks it on a kept-alive connection
+        }
+        out.println(); // End of message
+    }
+
+    /**
+     * Sends the windowed min/max/avg rollups of a station. The target is "ROLLUP <id>" for every
+     * configured window size, or "ROLLUP <id> <minutes>" for a single one.
+     *
+     * @param target The GET target.
+     * @param out PrintWriter to send output back to the client.
+     */
+    private void processRollupGet(String target, PrintWriter out) {
+        String[] parts = target.trim().split("\\s+");
+        int window = 0;
+        try {
+            if (parts.length > 2) {
+                window = Integer.parseInt(parts[2]);
+            }
+        } catch (NumberFormatException e) {
+            window = -1;
+        }
+        StationRollup rollup = parts.length > 1 ? rollupMap.get(parts[1]) : null;
+
+        if (window != 0 && !StationRollup.isWindow(window)) {
+            out.println("HTTP/1.1 400 Bad Request");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            out.println("{\"error\": \"No rollups kept for that window size\"}");
+        } else if (rollup == null) {
+            out.println("HTTP/1.1 404 Not Found");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            out.println("{\"error\": \"Not Found\"}");
+        } else {
+            System.out.println("Sending rollups of ID: " + parts[1]);
+            out.println("HTTP/1.1 200 OK");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            rollup.writeTo(parts[1], window, out);
+        }
+        out.println(); // End of message
+    }
+
+    /**
+     * Sends an aggregate of one field across all stations, computed by scanning its column.
+     * The target is "STATS <field>": numeric fields give count/min/max/avg, categorical
+     * fields give the number of stations per value.
+     *
+     * @param target The GET target.
+     * @param out PrintWriter to send output back to the client.
+     */
+    private void processStatsGet(String target, PrintWriter out) {
+        String field = target.substring("STATS ".length()).trim();
+        double[] aggregate = columnStore.aggregate(field);
+        Map<String, Integer> counts = aggregate == null ? columnStore.countBy(field) : null;
+
+        if (aggregate == null && counts == null) {
+            out.println("HTTP/1.1 400 Bad Request");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            out.println("{\"error\": \"No column for field " + field + "\"}");
+            out.println(); // End of message
+            return;
+        }
+
+        out.println("HTTP/1.1 200 OK");
+        out.println("Content-Type: application/json");
+        out.println(); // End of headers
+        out.println("{");
+        out.print("  \"field\": \"" + field + "\"");
+        if (aggregate != null) {
+            out.println(",");
+            out.println("  \"count\": \"" + (long) aggregate[0] + "\"" + (aggregate[0] > 0 ? "," : ""));
+            if (aggregate[0] > 0) {
+                out.println("  \"min\": \"" + StationHistory.formatValue(aggregate[1]) + "\",");
+                out.println("  \"max\": \"" + StationHistory.formatValue(aggregate[2]) + "\",");
+                out.println("  \"avg\": \"" + StationHistory.formatValue(aggregate[3] / aggregate[0]) + "\"");
+            }
+        } else {
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                out.println(",");
+                out.print("  \"" + entry.getKey() + "\": \"" + entry.getValue() + "\"");
+            }
+            out.println();
+        }
+        out.println("}");
+        out.println(); // End of message
+    }
+
+    /**
+     * Sends the k stations ranking highest on a numeric field, highest first, or the k stations
+     * that have gone longest without contact. The target is "TOPK <field> <k>" or "TOPK stale <k>".
+     * The rankings are read from indexes kept up to date on every PUT, heartbeat and expiry, so
+     * the cost depends on k and not on the number of stations.
+     *
+     * @param target The GET target.
+     * @param out PrintWriter to send output back to the client.
+     */
+    private void processTopKGet(String target, PrintWriter out) {
+        String[] parts = target.trim().split("\\s+");
+        int k;
+        try {
+            k = parts.length > 2 ? Integer.parseInt(parts[2]) : 10;
+        } catch (NumberFormatException e) {
+            k = -1;
+        }
+        boolean stale = parts.length > 1 && parts[1].equals("stale");
+        if (parts.length < 2 || k < 0 || (!stale && ColumnStore.numericColumn(parts[1]) < 0)) {
+            out.println("HTTP/1.1 400 Bad Request");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            out.println("{\"error\": \"Expected TOPK <numeric field> <k> or TOPK stale <k>\"}");
+            out.println(); // End of message
+            return;
+        }
+
+        out.println("HTTP/1.1 200 OK");
+        out.println("Content-Type: application/json");
+        out.println(); // End of headers
+        out.println("[");
+        boolean first = true;
+        if (stale) {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Long> entry : contactIndex.stalest(k).entrySet()) {
+                out.print((first ? "" : ",\n") + "  {\"id\": \"" + entry.getKey() + "\", \"seconds_since_contact\": \""
+                        + (now - entry.getValue()) / 1000 + "\"}");
+                first = false;
+            }
+        } else {
+            for (Map.Entry<String, Double> entry : columnStore.top(parts[1], k).entrySet()) {
+                out.print((first ? "" : ",\n") + "  {\"id\": \"" + entry.getKey() + "\", \"" + parts[1] + "\": \""
+                        + StationHistory.formatValue(entry.getValue()) + "\"}");
+                first = false;
+            }
+        }
+        out.println();
+        out.println("]");
+        out.println(); // End of message
+    }
+
+    /**
+     * Sends the stations matching a filter such as "WHERE state=SA AND air_temp>30". The
+     * secondary indexes of the column store pick the candidate stations, and the matching
+     * stations are streamed to the client one at a time.
+     *
+     * @param target The GET target.
+     * @param fields The fields to send for each station, or null for all of them.
+     * @param out PrintWriter to send output back to the client.
+     * @throws IOException If an error occurs while reading the stored data.
+     */
+    private void processWhereGet(String target, Set<String> fields, PrintWriter out) throws IOException {
+        Iterator<String> ids;
+        try {
+            ids = columnStore.matching(ColumnStore.parseWhere(target.substring("WHERE ".length())));
+        } catch (IllegalArgumentException e) {
+            out.println("HTTP/1.1 400 Bad Request");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            out.println("{\"error\": \"" + JSONParser.escape(e.getMessage()) + "\"}");
+            out.println(); // End of message
+            return;
+        }
+
+        System.out.println("Sending stations matching " + target);
+        out.println("HTTP/1.1 200 OK");
+        out.println("Content-Type: application/json");
+        out.println(); // End of headers
+        writeStations(ids, fields, out); // Each match is written as the iterator finds it
+        out.println(); // End of message
+    }
+
+    /**
+     * Sends the stations matching a spatial query. The target is either "NEAREST <lat>,<lon> <k>" for the
+     * k closest stations, closest first, or "BBOX <minLat>,<minLon>,<maxLat>,<maxLon>" for the stations
+     * within a box.
+     *
+     * @param target The GET target.
+     * @param fields The fields to send for each station, or null for all of them.
+     * @param out PrintWriter to send output back to the client.
+     * @throws IOException If an error occurs while reading the stored data.
+     */
+    private void processSpatialGet(String target, Set<String> fields, PrintWriter out) throws IOException {
+        String[] parts = target.trim().split("\\s+");
+        List<String> ids;
+        try {
+            String[] coordinates = parts[1].split(",");
+            if (parts[0].equals("NEAREST") && coordinates.length == 2) {
+                int k = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
+                ids = spatialIndex.nearest(Double.parseDouble(coordinates[0]), Double.parseDouble(coordinates[1]), k);
+            } else if (parts[0].equals("BBOX") && coordinates.length == 4) {
+                ids = spatialIndex.withinBox(Double.parseDouble(coordinates[0]), Double.parseDouble(coordinates[1]),
+                        Double.parseDouble(coordinates[2]), Double.parseDouble(coordinates[3]));
+            } else {
+                ids = null;
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            ids = null;
+        }
+
+        if (ids == null) {
+            out.println("HTTP/1.1 400 Bad Request");
+            out.println("Content-Type: application/json");
+            out.println(); // End of headers
+            out.println("{\"error\": \"Expected NEAREST <lat>,<lon> <k> or BBOX <minLat>,<minLon>,<maxLat>,<maxLon>\"}");
+            out.println(); // End of message
+            return;
+        }
+
+        System.out.println("Sending " + ids.size() + " stations matching " + target);
+        out.println("HTTP/1.1 200 OK");
+        out.println("Content-Type: application/json");
+        out.println(); // End of headers
+        writeStations(ids.iterator(), fields, out);
+        out.println(); // End of message
+    }
+
+    /**
+     * Streams the stored JSON data of several stations as a JSON array, in the given order.
+     * Each station is written as soon as the iterator hands it over. Stations that are not
+     * stored (or were removed in the meantime) are skipped.
+     *
+     * @param ids The station IDs.
+     * @param fields The fields to send for each station, or null for all of them.
+     * @param out PrintWriter to send output back to the client.
+     * @throws IOException If an error occurs while reading the stored data.
+     */
+    private void writeStations(Iterator<String> ids, Set<String> fields, PrintWriter out) throws IOException {
+        out.println("[");
+        boolean first = true;
+        while (ids.hasNext()) {
+            String stationId = ids.next();
+            if (fields == null) { // Whole documents go straight from the stored files to the socket
+                try (FileChannel file = openStoredFile(stationId.trim())) {
+                    if (file == null) {
+                        continue;
+                    }
+                    if (!first) {
+                        out.println(",");
+                    }
+                    first = false;
+                    transfer(file, contentEnd(file), out);
+                }
+                continue;
+            }
+            StationRecord record = getRecord(stationId.trim());
+            if (record == null) {
+                continue;
+            }
+            if (!first) {
+                out.println(",");
+            }
+            first = false;
+            out.print(record.project(fields));
+        }
+        out.println();
+        out.println("]");
+    }
+
+    /**
+     * Returns the JSON data of a station, projected onto the requested fields.
+     * The projection is built from the parsed record; whole documents are sent with sendStoredFile.
+     *
+     * @param id The station ID.
+     * @param fields The fields to send.
+     * @return The JSON data, or null if the station is not stored.
+     */
+    private String readStation(String id, Set<String> fields) {
+        StationRecord record = getRecord(id);
+        return record == null ? null : record.project(fields);
+    }
+
+    /**
+     * Sends a successful response whose body is a station's stored file. The headers are written
+     * through the PrintWriter, then the file is transferred from its channel to the socket without
+     * being decoded or copied onto the heap.
+     *
+     * @param id The station ID.
+     * @param note An extra header line, or null for none.
+     * @param out PrintWriter to send output back to the client.
+     * @return False, with nothing sent, if the station is not stored.
+     * @throws IOException If an error occurs while sending the file.
+     */
+    private boolean sendStoredFile(String id, String note, PrintWriter out) throws IOException {
+        try (FileChannel file = openStoredFile(id)) {
+            if (file == null) {
+                return false;
+            }
+            long size = file.size();
+            System.out.println("Sending JSON Data associated with ID :" + id);
+            out.println("HTTP/1.1 200 OK");
+            out.println("Content-Type: application/json");
+            out.println("Content-Length: " + (size + 2)); // The file and the two line ends after it
+            if (note != null) {
+                out.println(note);
+            }
+            out.println(); // End of headers
+            transfer(file, size, out);
+            out.println();
+            out.println(); // End of message
+            return true;
+        }
+    }
+
+    /**
+     * Opens a station's stored file for reading.
+     *
+     * @param id The station ID.
+     * @return The file's channel, or null if the station is not stored.
+     * @throws IOException If the file exists but cannot be opened.
+     */
+    private static FileChannel openStoredFile(String id) throws IOException {
+        try {
+            return FileChannel.open(Paths.get("src/main/aggr_data/" + id + ".json"), StandardOpenOption.READ);
+        } catch (NoSuchFileException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Transfers the first bytes of a file to the client. Anything buffered in the PrintWriter is
+     * flushed first so the file lands after it. Sockets accepted through the server's channel
+     * get a direct channel-to-channel transfer; other sockets fall back to a copying stream.
+     * The framer sends the file as a chunk of its own if the response is being chunked.
+     *
+     * @param file The file to send.
+     * @param length The number of bytes to send.
+     * @param out PrintWriter to the client, flushed before the transfer.
+     * @throws IOException If an error occurs while sending the file.
+     */
+    private void transfer(FileChannel file, long length, PrintWriter out) throws IOException {
+        out.flush();
+        WritableByteChannel target = clientSocket.getChannel() != null
+                ? clientSocket.getChannel()
+                : Channels.newChannel(clientSocket.getOutputStream());
+        framer.transferFrom(file, length, target);
+    }
+
+    /**
+     * Returns the length of a stored file without its trailing whitespace, so documents can be
+     * joined into an array the same way the in-memory records are.
+     *
+     * @param file The stored file.
+     * @return The length up to the last non-whitespace byte.
+     * @throws IOException If the file cannot be read.
+     */
+    private static long contentEnd(FileChannel file) throws IOException {
+        long end = file.size();
+        ByteBuffer tail = ByteBuffer.allocate((int) Math.min(end, 16));
+        file.read(tail, end - tail.capacity());
+        for (int i = tail.position() - 1; i >= 0 && Character.isWhitespace(tail.get(i)); i--) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Returns the parsed record of a station. Every stored station is indexed as it is written and
+     * when the server starts, so the record map is authoritative: a station missing from it has
+     * expired (or was never stored) and is not brought back from disk.
+     *
+     * @param id The station ID.
+     * @return The record, or null if the station is not stored.
+     */
+    static StationRecord getRecord(String id) {
+        return recordMap.get(id);
+    }
+
+    /**
+     * Parses the query parameters following a '?' in a GET target, e.g. "IDS60901?from=1&to=2".
+     *
+     * @param target The GET target.
+     * @return The parameters in order, empty if there are none.
+     */
+    static Map<String, String> parseQuery(String target) {
+        Map<String, String> params = new LinkedHashMap<>();
+        int queryStart = target.indexOf('?');
+        if (queryStart == -1) {
+            return params;
+        }
+        for (String param : target.substring(queryStart + 1).split("&")) {
+            int equals = param.indexOf('=');
+            if (equals > 0) {
+                params.put(param.substring(0, equals), param.substring(equals + 1));
+            }
+        }
+        return params;
+    }
+
     /**
      * Processes the HEARTBEAT request sent by the content server to update
      * the last contact time of a weather station. It reads the weather
      * station ID from the request and updates its timestamp in the
      * lastContactMap.
      *
-     * @param in BufferedReader to read input from the client.
+     * @param in RequestReader to read input from the client.
      * @param out PrintWriter to send output back to the client.
      * @throws IOException If an error occurs while reading input or writing output.
      */
-    private void processHeartbeat(BufferedReader in, PrintWriter out) throws IOException {
-        String filePath = in.readLine(); // Read the attached file ID
-        int startIndex = filePath.lastIndexOf('/') + 1; // Start after the last '/'
-        int endIndex = filePath.lastIndexOf('.'); // End before the '.txt'
-        String fileId = filePath.substring(startIndex, endIndex);
+    private void processHeartbeat(RequestReader in, PrintWriter out) throws IOException {
+        String fileId = in.readFileId(); // Read the attached file path, keeping the name between the last '/' and '.txt'
+        if (fileId == null) {
+            out.println("HTTP/1.1 400 Bad Request");
+            return;
+        }
 
         long timestamp = System.currentTimeMillis(); // Use current time as the timestamp
 
-        lastContactMap.put(fileId, timestamp);
+        recordContact(fileId, timestamp);
 
         // Respond with acknowledgment
         out.println("HTTP/1.1 200 OK");
@@ -506,39 +1516,29 @@ class ClientHandler extends AggregationServer implements Runnable{
     }
 
     /**
-     * Reads and returns the HTTP headers sent by the client in a request.
+     * Processes a batched heartbeat: a body holding one station ID per line, sent by content
+     * servers over a kept-alive connection. The response body lists the stations this server
+     * holds no data for, one per line, so their content servers know to resend it.
      *
-     * @param in BufferedReader to read input from the client.
-     * @return A StringBuilder containing the request headers.
-     * @throws IOException If an error occurs while reading input.
+     * @param in RequestReader to read input from the client.
+     * @param out PrintWriter to send output back to the client.
+     * @throws IOException If an error occurs while reading input or writing output.
      */
-    private StringBuilder readHeaders(BufferedReader in) throws IOException {
-        StringBuilder responseHeaders = new StringBuilder();
-        String line;
-        // Read headers line by line until an empty line is encountered
-        while ((line = in.readLine()) != null && !line.isEmpty()) {
-            responseHeaders.append(line).append("\n");
-        }
-        return responseHeaders;
-    }
+    private void processHeartbeats(RequestReader in, PrintWriter out) throws IOException {
+        in.readHeaders();
+        in.readFramedBody();
+        List<String> ids = in.sliceLines();
+        List<String> unknown = applyHeartbeats(ids);
 
-    /**
-     * Reads and returns the JSON data sent by the client in a request.
-     *
-     * @param in BufferedReader to read input from the client.
-     * @return A string containing the JSON data.
-     * @throws IOException If an error occurs while reading input.
-     */
-    private String readJson(BufferedReader in) throws IOException {
-        StringBuilder jsonData = new StringBuilder();
-        String line;
-        // Read the entire JSON data from the BufferedReader
-        while ((line = in.readLine()) != null && !line.isEmpty()) {
-            jsonData.append(line).append("\n"); // Append each line to the JSON data
+        StringBuilder body = new StringBuilder();
+        for (String id : unknown) {
+            body.append(id).append('\n');
         }
-
-        // Convert the JSON data to a single string
-        return jsonData.toString();
+        out.println("HTTP/1.1 200 OK");
+        out.println("Content-Length: " + body.toString().getBytes(StandardCharsets.UTF_8).length);
+        out.println(); // End of headers
+        out.print(body);
+        System.out.println("Received heartbeats from " + (ids.size() - unknown.size()) + " stations");
     }
 
     /**
@@ -548,17 +1548,7 @@ class ClientHandler extends AggregationServer implements Runnable{
      * @return The extracted weather ID, or null if the ID is not found.
      */
     private String getWeatherID(String jsonString){
-        String weatherID = null;
-        // Extract the weather ID from the JSON string
-        int idIndex = jsonString.indexOf("\"id\":");
-        if (idIndex != -1) {
-            int startIndex = jsonString.indexOf("\"", idIndex + 5) + 1; // Skip past "id": "
-            int endIndex = jsonString.indexOf("\"", startIndex); // Find the closing quote
-            if (endIndex != -1) {
-                weatherID = jsonString.substring(startIndex, endIndex); // Extract the ID value
-            }
-        }
-        return weatherID;
+        return JSONParser.getValue(jsonString, "id"); // Honours escaped quotes in the value
     }
 
     /**
@@ -572,11 +1562,8 @@ class ClientHandler extends AggregationServer implements Runnable{
             System.out.println("No files currently in aggregation server");
             return "empty";
         }
-        return lastContactMap.entrySet()
-                .stream()
-                .max(Map.Entry.comparingByValue()) // Get the entry with the highest contact time (most recent)
-                .map(Map.Entry::getKey) // Extract the key (fileId)
-                .orElse("empty"); // Return empty if the map is empty
+        String mostRecent = lastContactMap.mostRecent(); // The station with the highest contact time
+        return mostRecent == null ? "empty" : mostRecent;
     }
 }
 
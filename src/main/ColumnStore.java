@@ -0,0 +1,525 @@
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class ColumnStore {
+    // Fields stored as primitive columns, NaN where a station has no (numeric) value
+    public static final String[] NUMERIC_FIELDS = {"lat", "lon", "air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh", "wind_spd_kt"};
+    // Fields stored as dictionary codes, -1 where a station has no value
+    public static final String[] CATEGORICAL_FIELDS = {"state", "time_zone", "wind_dir", "cloud"};
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> slots = new HashMap<>(); // Station ID to row
+    private final Deque<Integer> freeSlots = new ArrayDeque<>(); // Rows of removed stations, reused first
+    private int rowCount = 0; // Rows ever handed out, live or free
+
+    private String[] ids = new String[INITIAL_CAPACITY];
+    private final double[][] numeric = new double[NUMERIC_FIELDS.length][INITIAL_CAPACITY];
+    private final int[][] categorical = new int[CATEGORICAL_FIELDS.length][INITIAL_CAPACITY];
+    private final Dictionary[] dictionaries = new Dictionary[CATEGORICAL_FIELDS.length];
+
+    // Secondary indexes, maintained on every put and remove
+    private final List<List<BitSet>> categoryRows = new ArrayList<>(); // Rows per dictionary code, per categorical column
+    private final List<TreeMap<Double, Set<Integer>>> sortedRows = new ArrayList<>(); // Rows per value, per numeric column
+
+    public ColumnStore() {
+        for (int c = 0; c < CATEGORICAL_FIELDS.length; c++) {
+            dictionaries[c] = new Dictionary();
+            categoryRows.add(new ArrayList<>());
+        }
+        for (int f = 0; f < NUMERIC_FIELDS.length; f++) {
+            sortedRows.add(new TreeMap<>());
+        }
+    }
+
+    /**
+     * Stores a station's fields in its row, giving the station a row if it has none yet.
+     *
+     * @param id The station ID.
+     * @param fields The station's fields.
+     * @return The station's row.
+     */
+    public int put(String id, Map<String, String> fields) {
+        // Parse outside the lock, so writers only hold it for the array stores
+        double[] numbers = new double[NUMERIC_FIELDS.length];
+        for (int f = 0; f < NUMERIC_FIELDS.length; f++) {
+            numbers[f] = JSONParser.parseDouble(fields.get(NUMERIC_FIELDS[f]));
+        }
+
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.get(id);
+            if (slot == null) {
+                slot = freeSlots.isEmpty() ? rowCount++ : freeSlots.pop();
+                ensureCapacity(slot + 1);
+                slots.put(id, slot);
+                ids[slot] = id;
+            } else {
+                unindex(slot);
+            }
+            for (int f = 0; f < NUMERIC_FIELDS.length; f++) {
+                numeric[f][slot] = numbers[f];
+            }
+            for (int c = 0; c < CATEGORICAL_FIELDS.length; c++) {
+                String value = fields.get(CATEGORICAL_FIELDS[c]);
+                categorical[c][slot] = value == null ? -1 : dictionaries[c].encode(value);
+            }
+            index(slot);
+            return slot;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a station, freeing its row for reuse.
+     *
+     * @param id The station ID.
+     */
+    public void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.remove(id);
+            if (slot == null) {
+                return;
+            }
+            unindex(slot);
+            ids[slot] = null;
+            for (int f = 0; f < NUMERIC_FIELDS.length; f++) {
+                numeric[f][slot] = Double.NaN;
+            }
+            for (int c = 0; c < CATEGORICAL_FIELDS.length; c++) {
+                categorical[c][slot] = -1;
+            }
+            freeSlots.push(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of stored stations.
+     *
+     * @return The station count.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the column index of a numeric field.
+     *
+     * @param field The field name.
+     * @return The column index, or -1 if the field is not stored as a numeric column.
+     */
+    public static int numericColumn(String field) {
+        return Arrays.asList(NUMERIC_FIELDS).indexOf(field);
+    }
+
+    /**
+     * Returns the column index of a categorical field.
+     *
+     * @param field The field name.
+     * @return The column index, or -1 if the field is not stored as a categorical column.
+     */
+    public static int categoricalColumn(String field) {
+        return Arrays.asList(CATEGORICAL_FIELDS).indexOf(field);
+    }
+
+    /**
+     * Scans a numeric column of every station, skipping missing values.
+     *
+     * @param field The numeric field.
+     * @return {count, min, max, sum} of the values, or null if the field is not a numeric column.
+     */
+    public double[] aggregate(String field) {
+        int column = numericColumn(field);
+        if (column < 0) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            double[] values = numeric[column];
+            double count = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0;
+            for (int row = 0; row < rowCount; row++) {
+                double value = values[row];
+                if (value == value) { // Not NaN, which also covers free rows
+                    count++;
+                    sum += value;
+                    if (value < min) {
+                        min = value;
+                    }
+                    if (value > max) {
+                        max = value;
+                    }
+                }
+            }
+            return new double[]{count, min, max, sum};
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts the stations holding each value of a categorical column.
+     *
+     * @param field The categorical field.
+     * @return The count per value, or null if the field is not a categorical column.
+     */
+    public Map<String, Integer> countBy(String field) {
+        int column = categoricalColumn(field);
+        if (column < 0) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            int[] counts = new int[dictionaries[column].size()];
+            int[] codes = categorical[column];
+            for (int row = 0; row < rowCount; row++) {
+                if (codes[row] >= 0) {
+                    counts[codes[row]]++;
+                }
+            }
+            Map<String, Integer> result = new TreeMap<>();
+            for (int code = 0; code < counts.length; code++) {
+                if (counts[code] > 0) {
+                    result.put(dictionaries[column].decode(code), counts[code]);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the stations matching every predicate one at a time, so they can be sent as they
+     * are found. Equality on a categorical field is answered from its hash index and a range on
+     * a numeric field from its sorted index, picking the candidate rows up front; the remaining
+     * predicates are checked against the columns of a candidate row, under a short read lock,
+     * only when the iterator reaches it, so the store is never locked while the caller writes
+     * out a match. A station put or removed in the
+     * meantime is seen as it is when its row is reached.
+     *
+     * @param predicates The predicates, all of which must hold.
+     * @return An iterator over the IDs of the matching stations.
+     */
+    public Iterator<String> matching(List<Predicate> predicates) {
+        BitSet candidates;
+        lock.readLock().lock();
+        try {
+            candidates = candidates(predicates);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return new Iterator<>() {
+            private int row = -1;
+            private String next = advance();
+
+            private String advance() {
+                while ((row = candidates.nextSetBit(row + 1)) >= 0) {
+                    lock.readLock().lock();
+                    try {
+                        if (row < rowCount && ids[row] != null && matches(row, predicates)) {
+                            return ids[row];
+                        }
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                String id = next;
+                next = advance();
+                return id;
+            }
+        };
+    }
+
+    /**
+     * Picks the candidate rows for a filter from the indexes, as a new set the indexes do not
+     * share. Must be called under the read lock.
+     */
+    private BitSet candidates(List<Predicate> predicates) {
+        BitSet candidates = null;
+        for (Predicate predicate : predicates) {
+            if (predicate.categoricalColumn >= 0 && predicate.operator.equals("=")) {
+                BitSet rows = categoryRows(predicate.categoricalColumn, dictionaries[predicate.categoricalColumn].lookup(predicate.value));
+                if (candidates == null) {
+                    candidates = (BitSet) rows.clone();
+                } else {
+                    candidates.and(rows);
+                }
+            }
+        }
+        if (candidates == null) {
+            for (Predicate predicate : predicates) {
+                if (predicate.numericColumn >= 0 && !predicate.operator.equals("!=")) {
+                    candidates = rangeRows(predicate);
+                    break;
+                }
+            }
+        }
+        if (candidates == null) { // Nothing indexable, so every row is a candidate
+            candidates = new BitSet(rowCount);
+            candidates.set(0, rowCount);
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns the stations with the highest values of a numeric field, highest first, read
+     * from the field's sorted index so only the top k entries are visited.
+     *
+     * @param field The numeric field.
+     * @param k The number of stations to return.
+     * @return The station IDs mapped to their values, or null if the field is not a numeric column.
+     */
+    public Map<String, Double> top(String field, int k) {
+        int column = numericColumn(field);
+        if (column < 0) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            Map<String, Double> result = new LinkedHashMap<>();
+            for (Map.Entry<Double, Set<Integer>> entry : sortedRows.get(column).descendingMap().entrySet()) {
+                for (int row : entry.getValue()) {
+                    if (result.size() >= k) {
+                        return result;
+                    }
+                    result.put(ids[row], entry.getKey());
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Parses a WHERE clause such as "state=SA AND air_temp>30".
+     *
+     * @param clause The clause, predicates joined by AND.
+     * @return The parsed predicates.
+     * @throws IllegalArgumentException If a predicate is malformed or its field is not a column.
+     */
+    public static List<Predicate> parseWhere(String clause) {
+        List<Predicate> predicates = new ArrayList<>();
+        for (String text : clause.trim().split("(?i)\\s+AND\\s+")) {
+            predicates.add(Predicate.parse(text));
+        }
+        return predicates;
+    }
+
+    private boolean matches(int row, List<Predicate> predicates) {
+        for (Predicate predicate : predicates) {
+            if (predicate.numericColumn >= 0) {
+                double value = numeric[predicate.numericColumn][row];
+                if (value != value || !compare(value, predicate.operator, predicate.number)) {
+                    return false;
+                }
+            } else {
+                int code = categorical[predicate.categoricalColumn][row];
+                boolean equal = code >= 0 && dictionaries[predicate.categoricalColumn].decode(code).equals(predicate.value);
+                if (code < 0 || equal != predicate.operator.equals("=")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean compare(double value, String operator, double bound) {
+        switch (operator) {
+            case "=": return value == bound;
+            case "!=": return value != bound;
+            case "<": return value < bound;
+            case "<=": return value <= bound;
+            case ">": return value > bound;
+            default: return value >= bound; // ">="
+        }
+    }
+
+    private BitSet rangeRows(Predicate predicate) {
+        TreeMap<Double, Set<Integer>> sorted = sortedRows.get(predicate.numericColumn);
+        double bound = predicate.number;
+        Map<Double, Set<Integer>> range;
+        switch (predicate.operator) {
+            case "=": range = sorted.subMap(bound, true, bound, true); break;
+            case "<": range = sorted.headMap(bound, false); break;
+            case "<=": range = sorted.headMap(bound, true); break;
+            case ">": range = sorted.tailMap(bound, false); break;
+            default: range = sorted.tailMap(bound, true); break; // ">="
+        }
+        BitSet rows = new BitSet(rowCount);
+        for (Set<Integer> valueRows : range.values()) {
+            for (int row : valueRows) {
+                rows.set(row);
+            }
+        }
+        return rows;
+    }
+
+    private BitSet categoryRows(int column, int code) {
+        List<BitSet> rows = categoryRows.get(column);
+        if (code < 0 || code >= rows.size()) {
+            return new BitSet();
+        }
+        return rows.get(code);
+    }
+
+    private void index(int row) {
+        for (int f = 0; f < NUMERIC_FIELDS.length; f++) {
+            double value = numeric[f][row];
+            if (value == value) {
+                sortedRows.get(f).computeIfAbsent(value, key -> new HashSet<>()).add(row);
+            }
+        }
+        for (int c = 0; c < CATEGORICAL_FIELDS.length; c++) {
+            int code = categorical[c][row];
+            if (code >= 0) {
+                List<BitSet> rows = categoryRows.get(c);
+                while (rows.size() <= code) {
+                    rows.add(new BitSet());
+                }
+                rows.get(code).set(row);
+            }
+        }
+    }
+
+    private void unindex(int row) {
+        for (int f = 0; f < NUMERIC_FIELDS.length; f++) {
+            double value = numeric[f][row];
+            if (value == value) {
+                Set<Integer> rows = sortedRows.get(f).get(value);
+                rows.remove(row);
+                if (rows.isEmpty()) {
+                    sortedRows.get(f).remove(value);
+                }
+            }
+        }
+        for (int c = 0; c < CATEGORICAL_FIELDS.length; c++) {
+            int code = categorical[c][row];
+            if (code >= 0) {
+                categoryRows.get(c).get(code).clear(row);
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length) {
+            return;
+        }
+        // Rows past rowCount are never scanned, so the new space needs no filling
+        int newCapacity = Math.max(capacity, ids.length * 2);
+        ids = Arrays.copyOf(ids, newCapacity);
+        for (int f = 0; f < NUMERIC_FIELDS.length; f++) {
+            numeric[f] = Arrays.copyOf(numeric[f], newCapacity);
+        }
+        for (int c = 0; c < CATEGORICAL_FIELDS.length; c++) {
+            categorical[c] = Arrays.copyOf(categorical[c], newCapacity);
+        }
+    }
+
+    /**
+     * Maps the distinct values of a categorical field to small integer codes.
+     */
+    static class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int encode(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        int lookup(String value) {
+            Integer code = codes.get(value);
+            return code == null ? -1 : code;
+        }
+
+        String decode(int code) {
+            return values.get(code);
+        }
+
+        int size() {
+            return values.size();
+        }
+    }
+
+    /**
+     * A single comparison of a WHERE clause, e.g. "air_temp>30".
+     */
+    public static class Predicate {
+        private static final String[] OPERATORS = {"<=", ">=", "!=", "=", "<", ">"}; // Two-character operators first
+
+        final String field;
+        final String operator;
+        final String value;
+        final int numericColumn;
+        final int categoricalColumn;
+        final double number;
+
+        private Predicate(String field, String operator, String value) {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+            this.numericColumn = numericColumn(field);
+            this.categoricalColumn = categoricalColumn(field);
+            this.number = numericColumn >= 0 ? JSONParser.parseDouble(value) : Double.NaN;
+        }
+
+        /**
+         * Parses a comparison such as "state=SA" or "air_temp>=30".
+         *
+         * @param text The comparison.
+         * @return The parsed predicate.
+         * @throws IllegalArgumentException If the comparison is malformed or its field is not a column.
+         */
+        public static Predicate parse(String text) {
+            for (String operator : OPERATORS) {
+                int at = text.indexOf(operator);
+                if (at <= 0) {
+                    continue;
+                }
+                Predicate predicate = new Predicate(text.substring(0, at).trim(), operator, text.substring(at + operator.length()).trim());
+                if (predicate.numericColumn < 0 && predicate.categoricalColumn < 0) {
+                    throw new IllegalArgumentException("No index for field " + predicate.field);
+                }
+                if (predicate.numericColumn >= 0 && Double.isNaN(predicate.number)) {
+                    throw new IllegalArgumentException(predicate.field + " must be compared with a number");
+                }
+                if (predicate.categoricalColumn >= 0 && !operator.equals("=") && !operator.equals("!=")) {
+                    throw new IllegalArgumentException(predicate.field + " only supports = and !=");
+                }
+                return predicate;
+            }
+            throw new IllegalArgumentException("Malformed predicate " + text);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ConnectionPool {
+    private static final int MAX_IDLE = 4; // Idle connections kept per aggregation server
+    private static final long MAX_IDLE_MS = 20000; // Below the server's keep-alive timeout, so pooled connections are still open
+    static final int TIMEOUT_MS = 5000; // Time allowed to connect, and for each read of a response
+
+    private final Map<String, Deque<Connection>> idle = new ConcurrentHashMap<>();
+
+    /**
+     * Takes an idle connection to an aggregation server, or opens a new one if there is none.
+     *
+     * @param host The aggregation server address.
+     * @param port The aggregation server port.
+     * @return A connection for the caller's sole use until it is released or discarded.
+     * @throws IOException If a new connection cannot be opened.
+     */
+    public Connection borrow(String host, int port) throws IOException {
+        Deque<Connection> connections = idle.computeIfAbsent(host + ":" + port, key -> new ArrayDeque<>());
+        long now = System.currentTimeMillis();
+        synchronized (connections) {
+            Connection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                if (now - connection.lastUsed < MAX_IDLE_MS && !connection.socket.isClosed()) {
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close(); // The server has most likely closed it already
+            }
+        }
+        return new Connection(host, port, connect(host, port));
+    }
+
+    /**
+     * Opens a connection to an aggregation server with connect and read timeouts, so a server that
+     * stops answering fails the caller instead of holding it forever.
+     *
+     * @param host The aggregation server address.
+     * @param port The aggregation server port.
+     * @return The connected socket.
+     * @throws IOException If the connection cannot be opened in time.
+     */
+    static Socket connect(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Returns a connection whose responses have all been read, so the next borrower can use it.
+     *
+     * @param connection The connection.
+     */
+    public void release(Connection connection) {
+        connection.lastUsed = System.currentTimeMillis();
+        Deque<Connection> connections = idle.computeIfAbsent(connection.host + ":" + connection.port, key -> new ArrayDeque<>());
+        synchronized (connections) {
+            if (connections.size() < MAX_IDLE) {
+                connections.addFirst(connection); // Most recently used first, so the others age out
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Closes every idle connection.
+     */
+    public void clear() {
+        for (Deque<Connection> connections : idle.values()) {
+            synchronized (connections) {
+                connections.forEach(Connection::close);
+                connections.clear();
+            }
+        }
+    }
+
+    /**
+     * A kept-alive connection to an aggregation server.
+     */
+    public static class Connection {
+        final String host;
+        final int port;
+        final Socket socket;
+        public final OutputStream out;
+        public final RequestReader in;
+        private boolean reused = false; // Taken from the pool rather than newly opened
+        private long lastUsed;
+
+        private Connection(String host, int port, Socket socket) throws IOException {
+            this.host = host;
+            this.port = port;
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.in = new RequestReader(socket.getInputStream());
+        }
+
+        /**
+         * Checks whether the connection was used before, in which case the server may have
+         * closed it in the meantime and a failure is worth one retry on a new connection.
+         *
+         * @return True for a pooled connection.
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Closes the connection, e.g. after an error left it in an unknown state.
+         */
+        public void close() {
+            in.close();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already broken, nothing left to release
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.*;
+
+public class ContactIndex {
+    private final Map<String, Long> lastContact = new HashMap<>();
+    // Stations ordered by last contact time, oldest first, ties broken by ID
+    private final TreeSet<Contact> byTime = new TreeSet<>(
+            Comparator.comparingLong((Contact c) -> c.time).thenComparing(c -> c.id));
+
+    /**
+     * Records contact with a station, moving it to the fresh end of the ordering.
+     *
+     * @param id The station ID.
+     * @param time The contact time in milliseconds.
+     */
+    public synchronized void touch(String id, long time) {
+        Long previous = lastContact.put(id, time);
+        if (previous != null) {
+            byTime.remove(new Contact(id, previous));
+        }
+        byTime.add(new Contact(id, time));
+    }
+
+    /**
+     * Forgets a station.
+     *
+     * @param id The station ID.
+     */
+    public synchronized void remove(String id) {
+        Long previous = lastContact.remove(id);
+        if (previous != null) {
+            byTime.remove(new Contact(id, previous));
+        }
+    }
+
+    /**
+     * Returns the stations that have gone longest without contact, stalest first.
+     * Only the first k entries of the ordering are visited.
+     *
+     * @param k The number of stations to return.
+     * @return The station IDs mapped to their last contact time in milliseconds.
+     */
+    public synchronized Map<String, Long> stalest(int k) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Contact contact : byTime) {
+            if (result.size() >= k) {
+                break;
+            }
+            result.put(contact.id, contact.time);
+        }
+        return result;
+    }
+
+    private static class Contact {
+        final String id;
+        final long time;
+
+        Contact(String id, long time) {
+            this.id = id;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class ContactTable {
+    private static final int PAGE_SIZE = 4096; // Slots per page of timestamps
+    private static final int TIME_BITS = 44; // Contact times up to the year 2500, in milliseconds
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    private static final long NONE = 0; // Time bits of a free slot; a stored time is kept plus one
+
+    // Station ID to its slot (low 32 bits) and the slot's generation when it was handed out (high 32 bits)
+    private final Map<String, Long> slots = new ConcurrentHashMap<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>(); // Slots of removed stations, reused first
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0]; // Per slot its generation and time
+    private int slotCount = 0;
+
+    /**
+     * Records contact with a station. A known station costs one hash lookup and one compare-and-set
+     * on a primitive array; a new station is given the next free slot first. Every slot carries a
+     * generation that is bumped when its station is removed, so a touch that raced the removal
+     * finds the generation changed and cannot write into the slot's next owner.
+     *
+     * @param id The station ID.
+     * @param time The contact time in milliseconds.
+     */
+    public void touch(String id, long time) {
+        Long handle = slots.get(id);
+        if (handle == null) {
+            handle = slots.computeIfAbsent(id, key -> allocate());
+        }
+        int slot = (int) (long) handle;
+        long generation = handle >>> 32;
+        AtomicLongArray page = pages[slot / PAGE_SIZE];
+        long current;
+        do {
+            current = page.get(slot % PAGE_SIZE);
+            if (current >>> TIME_BITS != generation) {
+                return; // Removed meanwhile, the slot is no longer this station's
+            }
+        } while (!page.compareAndSet(slot % PAGE_SIZE, current, generation << TIME_BITS | ((time + 1) & TIME_MASK)));
+    }
+
+    /**
+     * Returns the last contact time of a station.
+     *
+     * @param id The station ID.
+     * @return The time in milliseconds, or null for an unknown station.
+     */
+    public Long get(String id) {
+        Long handle = slots.get(id);
+        if (handle == null) {
+            return null;
+        }
+        long time = timeOf(handle);
+        return time == NONE ? null : time - 1;
+    }
+
+    /**
+     * Forgets a station and frees its slot for reuse, under the slot's next generation.
+     *
+     * @param id The station ID.
+     */
+    public synchronized void remove(String id) {
+        Long handle = slots.remove(id);
+        if (handle != null) {
+            int slot = (int) (long) handle;
+            long next = ((handle >>> 32) + 1) & 0xFFFFF; // Wraps after a million reuses of one slot
+            pages[slot / PAGE_SIZE].set(slot % PAGE_SIZE, next << TIME_BITS | NONE);
+            freeSlots.push(slot);
+        }
+    }
+
+    /**
+     * Forgets every station.
+     */
+    public synchronized void clear() {
+        slots.clear();
+        freeSlots.clear();
+        pages = new AtomicLongArray[0];
+        slotCount = 0;
+    }
+
+    /**
+     * Checks whether any station has been in contact.
+     *
+     * @return True if no station is known.
+     */
+    public boolean isEmpty() {
+        return slots.isEmpty();
+    }
+
+    /**
+     * Finds the station heard from most recently.
+     *
+     * @return The station ID, or null if no station is known.
+     */
+    public String mostRecent() {
+        String latest = null;
+        long latestTime = NONE;
+        for (Map.Entry<String, Long> station : slots.entrySet()) {
+            long time = timeOf(station.getValue());
+            if (time != NONE && (latest == null || time > latestTime)) {
+                latest = station.getKey();
+                latestTime = time;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Reads the stored time of a slot handle, or NONE if the slot has since been freed.
+     */
+    private long timeOf(long handle) {
+        int slot = (int) handle;
+        long value = pages[slot / PAGE_SIZE].get(slot % PAGE_SIZE);
+        return value >>> TIME_BITS == handle >>> 32 ? value & TIME_MASK : NONE;
+    }
+
+    /**
+     * Hands out a slot with its current generation, growing the table by a page when every slot
+     * is taken. Pages are never moved, so a concurrent touch always lands in the page the slot
+     * belongs to.
+     */
+    private synchronized long allocate() {
+        int slot;
+        if (!freeSlots.isEmpty()) {
+            slot = freeSlots.pop();
+        } else {
+            slot = slotCount++;
+            if (slot / PAGE_SIZE == pages.length) {
+                AtomicLongArray[] grown = new AtomicLongArray[pages.length + 1];
+                System.arraycopy(pages, 0, grown, 0, pages.length);
+                grown[pages.length] = new AtomicLongArray(PAGE_SIZE);
+                pages = grown;
+            }
+        }
+        long generation = pages[slot / PAGE_SIZE].get(slot % PAGE_SIZE) >>> TIME_BITS;
+        return generation << 32 | slot;
+    }
+}
@@ -1,248 +1,773 @@
-
-
 import java.io.*;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class ContentServer {
-    private static LamportClock lamportClock;
-    public static String serverName = "localhost"; // Aggregation server address
-    public static int port = 4567; // Aggregation server port
-    public static String file;
-    private static long lastModified; // Store last modified time
-    private static boolean running = true; // Track server state
+    private static final String OUTBOX_DIR = "src/main/outbox";
+    private static final int OUTBOX_BATCH_SIZE = 64; // Entries pipelined per connection
+    private static final boolean HEARTBEAT_UDP = Boolean.getBoolean("heartbeat.udp"); // Send heartbeats as UDP datagrams
+    private static final int SCHEDULER_THREADS = 2; // Shared by every content server in the process
+    private static final int DEBOUNCE_MS = 50; // Quiet time after a file event before the files are checked
+    private static final int POLL_SECONDS = 5; // Change detection interval when file events are unavailable
+
+    // Shared by every content server in the process
+    private static final List<ContentServer> instances = new CopyOnWriteArrayList<>();
+    private static final ConnectionPool connectionPool = new ConnectionPool();
+    private static final AtomicBoolean shutdownListenerStarted = new AtomicBoolean(false);
+    private static ScheduledExecutorService scheduler;
+
+    private final LamportClock lamportClock = new LamportClock();
+    private String senderId; // Breaks ties between PUTs with the same Lamport timestamp, kept in the outbox across restarts
+    private final Map<Path, Station> stations = new ConcurrentHashMap<>(); // Station files being published
+    private final Map<String, Acknowledged> acknowledged = new ConcurrentHashMap<>(); // Last reading each server stored per station
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+    private final AtomicBoolean checkPending = new AtomicBoolean(false); // A debounced change check is scheduled
+    private final Consumer<Path> fileListener = this::onFileEvent;
+    private Path watchedDirectory; // Directory registered with the file watcher, null when polling
+    private String source; // The station file, or a directory of station files
+    private EndpointPool endpointPool; // Aggregation servers in order of preference
+    private volatile EndpointPool.Endpoint deliveredTo; // Endpoint holding our latest data, null if a resend is pending
+    private Outbox outbox; // Durable spool of PUTs not yet delivered
+    private volatile boolean running = false; // Track server state
 
     public static void main(String[] args) throws IOException {
-        lamportClock = new LamportClock();
+        new ContentServer().start(args);
+    }
 
+    /**
+     * Starts publishing a station file, or every station file in a directory, to the aggregation servers.
+     *
+     * Change detection, heartbeats and the outbox sender run as tasks on a scheduler shared by every
+     * content server in the process, and PUTs go over a shared pool of kept-alive connections, so
+     * a single process can publish thousands of stations.
+     *
+     * @param args An array containing one or more aggregation servers and the file or directory path.
+     * @throws IOException If the arguments are invalid or the outbox cannot be opened.
+     */
+    public void start(String[] args) throws IOException {
         // Get file from input
         initVariables(args);
 
-        // Initialize last modified time
-        lastModified = new File(file).lastModified();
+        // Open the outbox, replaying anything left undelivered by a previous run
+        openOutbox();
+
+        // Find the station files and record their current data
+        running = true;
+        instances.add(this);
+        scanStations();
+        for (Station station : stations.values()) {
+            record(station);
+        }
 
-        // Start separate threads for monitoring file changes,
-        // listening for shutdown command, and sending heartbeat messages
-        startFileMonitoring();
+        // Watch for changes, schedule heartbeats and the outbox sender, and listen for the shutdown command
+        ScheduledExecutorService shared = scheduler();
+        boolean watching = watchFiles();
+        synchronized (tasks) {
+            if (!watching) {
+                tasks.add(shared.scheduleWithFixedDelay(this::checkForChanges, POLL_SECONDS, POLL_SECONDS, TimeUnit.SECONDS));
+            }
+            tasks.add(shared.scheduleWithFixedDelay(this::sendHeartbeat, 10, 10, TimeUnit.SECONDS));
+            tasks.add(shared.scheduleWithFixedDelay(this::sendPending, 1, 1, TimeUnit.SECONDS));
+        }
         startShutdownListener();
-        startHeartbeat();
 
         // Send the initial JSON data to the aggregation server
-        sendJsonData();
+        drainOutbox(3);
 
-        System.out.println("Server initialized and monitoring " + file);
+        System.out.println("Server initialized and monitoring " + source + " (" + stations.size() + " station files)");
     }
 
     /**
      * Initializes server and file details from command-line arguments.
      *
-     * @param args An array containing server address and port as <servername>:<port> and the file path.
+     * @param args An array containing one or more aggregation servers and the file path.
      * @throws IOException If the arguments are missing or improperly formatted.
      *
-     * Expected Input: args[0] should be <servername>:<port> and args[1] should be the file path to monitor.
+     * Expected Input: args[0] should be <servername>:<port>, or a comma separated list of them in order
+     * of preference, and args[1] should be the file path to monitor, or a directory of .txt station files.
      * Special Case: If args are missing, the server fails to start.
      */
-    private static void initVariables(String[] args) throws IOException {
+    private void initVariables(String[] args) throws IOException {
         if (args.length < 2) {
-            System.out.println("Usage: <servername>:<port> <file>");
+            System.out.println("Usage: <servername>:<port>[,<servername>:<port>...] <file|directory>");
             throw new IOException();
         }
 
-        // Get the first argument and split by ':'
-        String serverAndPort = args[0];
-        String[] parts = serverAndPort.split(":");
-
-        if (parts.length != 2) {
+        // Get the first argument and split it into endpoints
+        try {
+            endpointPool = EndpointPool.parse(args[0]);
+        } catch (IllegalArgumentException e) {
             System.out.println("Invalid format for server and port. Expected format: <servername>:<port>");
-            return;
+            throw new IOException(e.getMessage());
         }
-
-        // Extract the server name and port
-        serverName = parts[0];
-        port = Integer.parseInt(parts[1]);
-        file = args[1];
+        source = args[1];
+        deliveredTo = null;
 
         // Print to verify the extracted values
-        System.out.println("Server Name: " + serverName);
-        System.out.println("Port: " + port);
-        System.out.println("File: " + file);
+        System.out.println("Servers: " + endpointPool.getEndpoints());
+        System.out.println("File: " + source);
     }
 
     /**
-     * Monitors the file for any changes. If the file is modified, resends the updated data to the aggregation server.
+     * Opens the outbox for the monitored file or directory. Entries that were not delivered before
+     * a restart are kept, the Lamport clock resumes from the highest recorded timestamp, and the
+     * sender ID recorded with the outbox is reused. An outbox named after the file name alone, as
+     * earlier versions named it, is taken over.
      *
-     * This method runs in a separate thread, checking the file's last modified time periodically.
-     * Special Case: The thread runs indefinitely while the server is running, and the file is monitored every 5 seconds.
+     * @throws IOException If the outbox log cannot be opened.
      */
-    private static void startFileMonitoring() {
-        new Thread(() -> {
-            while (running) {
-                try {
-                    // Sleep for 5 seconds before checking the file's last modified time
-                    Thread.sleep(5000);
-                    long currentModified = new File(file).lastModified();
-
-                    // If the file has been modified, resend the data
-                    if (currentModified > lastModified) {
-                        System.out.println("File modified, resending data...");
-                        lastModified = currentModified; // Update last modified time
-                        sendJsonData();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
+    private void openOutbox() throws IOException {
+        Path outboxPath = outboxPath(source);
+        Path unhashed = Paths.get(OUTBOX_DIR, Paths.get(source).getFileName() + ".outbox");
+        if (!Files.exists(outboxPath) && Files.exists(unhashed)) {
+            Files.move(unhashed, outboxPath);
+        }
+        outbox = new Outbox(outboxPath);
+        senderId = outbox.getSenderId();
+        if (outbox.getMaxLamport() > 0) {
+            lamportClock.update(outbox.getMaxLamport());
+        }
+    }
+
+    /**
+     * Returns the outbox log of a monitored file or directory. It is named after the source's file
+     * name and a hash of its full normalised path, so same-named files in different directories
+     * keep separate outboxes.
+     *
+     * @param source The monitored file or directory.
+     * @return The outbox log file.
+     */
+    static Path outboxPath(String source) {
+        Path path = Paths.get(source).toAbsolutePath().normalize();
+        byte[] key = path.toString().getBytes(StandardCharsets.UTF_8);
+        return Paths.get(OUTBOX_DIR, path.getFileName() + "-" + Long.toHexString(RequestReader.hash(key, 0, key.length)) + ".outbox");
+    }
+
+    /**
+     * Brings the station list up to date with the source: the file itself, or every .txt file in
+     * the directory. Files added to the directory are picked up and removed files are dropped, so
+     * their stations stop sending heartbeats and expire on the aggregation server.
+     *
+     * @return The stations that were added.
+     */
+    private List<Station> scanStations() {
+        List<Station> added = new ArrayList<>();
+        Path path = Paths.get(source);
+        if (!Files.isDirectory(path)) {
+            if (stations.isEmpty()) {
+                Station station = new Station(path);
+                stations.put(path, station);
+                added.add(station);
             }
-        }).start();
+            return added;
+        }
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(path, "*.txt")) {
+            listing.forEach(files::add);
+        } catch (IOException e) {
+            System.out.println("Error listing " + source + ": " + e.getMessage());
+            return added;
+        }
+        for (Path file : files) {
+            if (!stations.containsKey(file)) {
+                Station station = new Station(file);
+                stations.put(file, station);
+                added.add(station);
+            }
+        }
+        if (stations.keySet().retainAll(files)) {
+            System.out.println("Station files removed from " + source);
+        }
+        return added;
     }
 
     /**
-     * Listens for a "shutdown" command from the terminal to gracefully stop the server.
+     * Registers the monitored file's directory, or the monitored directory, with the shared file watcher.
      *
-     * This method runs in a separate thread and continuously checks user input for the "shutdown" command.
-     * Special Case: Once "shutdown" is entered, the running state is set to false, terminating the server.
+     * @return True if change events will be delivered, false if the files have to be polled instead.
+     */
+    private boolean watchFiles() {
+        FileWatcher watcher = FileWatcher.shared();
+        if (watcher == null) {
+            return false;
+        }
+        Path path = Paths.get(source).toAbsolutePath();
+        Path directory = Files.isDirectory(path) ? path : path.getParent();
+        try {
+            watcher.register(directory, fileListener);
+            watchedDirectory = directory;
+            return true;
+        } catch (IOException e) {
+            System.out.println("Cannot watch " + directory + ", polling instead: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Called by the file watcher when an entry of the watched directory changes. A burst of events,
+     * such as an editor writing a file in several steps, is coalesced into a single check once the
+     * debounce delay has passed, so each change is read once its writes have settled.
+     *
+     * @param changed The changed entry, or null if events were lost.
+     */
+    private void onFileEvent(Path changed) {
+        if (changed != null && !isStationFile(changed)) {
+            return;
+        }
+        if (running && checkPending.compareAndSet(false, true)) {
+            try {
+                scheduler().schedule(() -> {
+                    checkPending.set(false);
+                    checkForChanges();
+                }, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                checkPending.set(false); // Shutting down
+            }
+        }
+    }
+
+    private boolean isStationFile(Path file) {
+        Path path = Paths.get(source).toAbsolutePath().normalize();
+        if (path.equals(file.getParent())) {
+            return file.getFileName().toString().endsWith(".txt");
+        }
+        return path.equals(file);
+    }
+
+    /**
+     * Checks the station files for changes and sends the data of every new or modified file.
+     *
+     * This method runs on the shared scheduler after file change events, or every 5 seconds when
+     * events are unavailable, checking each file's last modified time.
+     */
+    private void checkForChanges() {
+        if (!running) {
+            return;
+        }
+        List<Station> changed = scanStations();
+        for (Station station : stations.values()) {
+            long currentModified = station.file.toFile().lastModified();
+            // If the file has been modified (or replaced by an older copy), resend the data
+            if (currentModified != 0 && currentModified != station.lastModified && !changed.contains(station)) {
+                System.out.println("File modified, resending data...");
+                changed.add(station);
+            }
+        }
+        if (!changed.isEmpty()) {
+            publish(changed);
+        }
+    }
+
+    /**
+     * Listens for a "shutdown" command from the terminal to gracefully stop every content server in the process.
+     *
+     * This method runs in a separate thread, started once per process, and checks user input for the "shutdown" command.
      */
     private static void startShutdownListener() {
+        if (!shutdownListenerStarted.compareAndSet(false, true)) {
+            return;
+        }
         new Thread(() -> {
             Scanner scanner = new Scanner(System.in);
-            while (running) {
+            while (true) {
                 String input = scanner.nextLine();
                 if (input.equalsIgnoreCase("shutdown")) {
-                    running = false; // Stop the server loop
                     System.out.println("Shutting down the server...");
+                    shutdown(); // Stop the server loop
+                    break;
                 }
             }
             scanner.close();
         }).start();
     }
 
+    /**
+     * Stops every content server in the process.
+     */
     public static void shutdown(){
+        for (ContentServer server : instances) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Stops this content server: its scheduled tasks are cancelled and its outbox closed, leaving
+     * anything undelivered for the next run. The shared scheduler stops with the last server.
+     */
+    public void stop() {
         running = false;
+        synchronized (tasks) {
+            tasks.forEach(task -> task.cancel(false));
+            tasks.clear();
+        }
+        if (watchedDirectory != null) {
+            FileWatcher.shared().unregister(watchedDirectory, fileListener);
+        }
+        instances.remove(this);
+        synchronized (ContentServer.class) {
+            if (instances.isEmpty() && scheduler != null) {
+                scheduler.shutdown();
+                scheduler = null;
+                connectionPool.clear();
+            }
+        }
+        synchronized (this) { // Waits for a delivery in progress
+            try {
+                if (outbox != null) {
+                    outbox.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error closing outbox");
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS);
+        }
+        return scheduler;
     }
 
     /**
-     * Sends JSON data to the aggregation server by establishing a socket connection.
+     * Records the current contents of the given station files in the outbox and sends them to the aggregation server.
      *
-     * This method reads the file contents, converts them to JSON, and retries sending the data up to 3 times
-     * if the connection fails. It includes a retry mechanism for handling socket connection errors.
-     * Special Case: If the maximum number of retries is reached, the server shuts down.
+     * Special Case: If the data cannot be delivered it stays in the outbox, and the background sender
+     * delivers it once an aggregation server is reachable again.
+     *
+     * @param changed The stations to send.
+     */
+    private void publish(Collection<Station> changed) {
+        boolean recorded = false;
+        for (Station station : changed) {
+            recorded |= record(station);
+        }
+        if (recorded) {
+            drainOutbox(3);
+        }
+    }
+
+    /**
+     * Reads a station file, converts it to JSON and stamps it with the Lamport clock in the outbox.
+     *
+     * @param station The station to record.
+     * @return True if the reading was recorded.
      */
-    private static void sendJsonData() {
-        String jsonData = JSONParser.convertFileToJSON(file);
+    private boolean record(Station station) {
+        station.lastModified = station.file.toFile().lastModified();
+        String jsonData = JSONParser.convertFileToJSON(station.file.toString());
         if (jsonData == null) {
             System.out.println("Invalid input");
-            return;
+            return false;
         }
 
-        int maxTries = 3; // Retry attempts allowed
-        int attempts = 0;
-        boolean success = false;
-
-        while (attempts < maxTries && !success) {
-            attempts++;
-            try (Socket socket = new Socket(serverName, port);
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-                // Send data to the Aggregation Server
-                sendData(in, out, jsonData);
-                success = true; // Data sent successfully
+        // Fall back to the file name as the station key if the data carries no ID
+        String id = JSONParser.getValue(jsonData, "id");
+        if (id != null) {
+            station.id = id;
+        }
+        return record(id != null ? id : station.file.toString(), jsonData);
+    }
 
+    /**
+     * Stamps a reading with the Lamport clock and appends it to the outbox.
+     *
+     * @param stationId The station the reading belongs to.
+     * @param jsonData The JSON data of the reading.
+     * @return True if the reading was recorded.
+     */
+    private boolean record(String stationId, String jsonData) {
+        synchronized (lamportClock) {
+            try {
+                lamportClock.increment(); // Recording the PUT is an event
+                outbox.append(stationId, lamportClock.getClock(), jsonData);
+                return true;
             } catch (IOException e) {
-                System.out.println("Error in socket, attempt " + attempts);
+                System.out.println("Error writing to outbox");
                 e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Sends the pending outbox entries to the aggregation server, oldest first, in batches.
+     *
+     * Each entry is sent to the available aggregation servers in order of preference, failing over to
+     * the next one when a connection fails. Entries are only removed from the outbox once delivered,
+     * and delivery stops at the first entry that cannot be sent so that ordering is kept.
+     *
+     * @param maxTries The number of rounds to attempt before leaving the rest for later.
+     * @return True if the outbox was emptied.
+     */
+    private synchronized boolean drainOutbox(int maxTries) {
+        int attempts = 0;
+
+        while (running && outbox.size() > 0) {
+            List<Outbox.Entry> batch = outbox.pending(OUTBOX_BATCH_SIZE);
+            if (deliverBatch(batch) < batch.size()) {
+                attempts++;
                 if (attempts >= maxTries) {
                     System.out.println("Max retries reached. Unable to send data.");
-                    running = false; // Stop server on failure
-                    return;
-                } else {
-                    System.out.println("Retrying...");
-                    try {
-                        Thread.sleep(1000); // Wait 1 second before retrying
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
+                    deliveredTo = null; // Resend on the next heartbeat
+                    return false;
+                }
+                System.out.println("Retrying...");
+                try {
+                    Thread.sleep(1000); // Wait 1 second before retrying
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                // Start again from the oldest pending entry
+            }
+        }
+        return outbox.size() == 0;
+    }
+
+    /**
+     * Delivers a batch of outbox entries to the first available aggregation server that accepts a connection.
+     *
+     * The entries are pipelined over a kept-alive connection from the shared pool: every PUT is written
+     * before the responses are read back in order, and each entry is acknowledged in the outbox as its
+     * response arrives. If the connection fails part way, the entries already answered stay delivered.
+     * A pooled connection the server has since closed is replaced by a new one once.
+     *
+     * @param batch The outbox entries to deliver, oldest first.
+     * @return The number of entries delivered, counted from the start of the batch.
+     */
+    private int deliverBatch(List<Outbox.Entry> batch) {
+        for (EndpointPool.Endpoint endpoint : endpointPool.available()) {
+            int delivered = 0;
+            for (int attempt = 0; ; attempt++) {
+                ConnectionPool.Connection connection = null;
+                try {
+                    connection = connectionPool.borrow(endpoint.getHost(), endpoint.getPort());
+
+                    // Send data to the Aggregation Server, as a delta where the server holds an earlier reading
+                    for (Outbox.Entry entry : batch) {
+                        String delta = delta(entry, endpoint);
+                        if (delta != null) {
+                            sendDelta(connection.out, entry, delta);
+                        } else {
+                            sendData(connection.out, entry.jsonData, entry.lamport);
+                        }
+                    }
+                    connection.out.flush();
+
+                    for (Outbox.Entry entry : batch) {
+                        boolean resend = readResponse(connection.in, entry, endpoint);
+                        acknowledge(entry);
+                        if (resend) {
+                            record(entry.stationId, entry.jsonData); // Sent again, in full, after this batch
+                        }
+                        delivered++;
+                    }
+                    connectionPool.release(connection);
+                    endpoint.recordSuccess();
+                    deliveredTo = endpoint;
+                } catch (IOException e) {
+                    if (connection != null) {
+                        connection.close();
                     }
+                    if (delivered == 0 && connection != null && connection.isReused() && attempt == 0) {
+                        continue; // The server closed the idle connection, try a new one
+                    }
+                    if (delivered == 0) {
+                        endpoint.recordFailure();
+                        System.out.println("Error in socket to " + endpoint);
+                        e.printStackTrace();
+                        break;
+                    }
+                    System.out.println("Connection to " + endpoint + " lost after " + delivered + " of " + batch.size() + " entries");
+                    deliveredTo = endpoint;
+                }
+
+                if (delivered == batch.size()) { // A partial delivery was reported above
+                    System.out.println("Data sent successfully to " + endpoint + ".");
                 }
+                return delivered;
             }
         }
-        System.out.println("Data sent successfully.");
+        return 0;
+    }
+
+    private void acknowledge(Outbox.Entry entry) {
+        try {
+            outbox.acknowledge(entry);
+        } catch (IOException e) {
+            System.out.println("Error writing to outbox");
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Sends a PUT request containing JSON data and the Lamport clock value to the aggregation server.
+     * Drains the outbox in the background, so data recorded during an outage is delivered
+     * as soon as an aggregation server is reachable again.
      *
-     * @param in BufferedReader to read responses from the server.
-     * @param out PrintWriter to send data to the server.
+     * This method runs on the shared scheduler and checks the outbox every second.
+     */
+    private void sendPending() {
+        if (running && outbox.size() > 0) {
+            drainOutbox(1);
+        }
+    }
+
+    /**
+     * Writes a PUT request containing JSON data and the Lamport clock value to the aggregation server.
+     *
+     * @param out Stream to send data to the server, flushed by the caller.
      * @param jsonData The JSON-formatted weather data to be sent.
-     * @throws IOException If an I/O error occurs while sending or receiving data.
+     * @param lamport The Lamport timestamp the PUT was recorded with.
+     * @throws IOException If an I/O error occurs while sending data.
      *
      * Special Case: The method includes sending HTTP-like headers such as User-Agent and Content-Length,
-     * along with the JSON data and Lamport clock value. The response from the server is printed.
+     * along with the JSON data and Lamport clock value. The body is exactly Content-Length bytes, so
+     * several PUTs can follow each other on one connection.
      */
-    private static void sendData(BufferedReader in, PrintWriter out, String jsonData) throws IOException {
-        lamportClock.increment(); // Increment before sending
+    private void sendData(OutputStream out, String jsonData, int lamport) throws IOException {
+        byte[] body = (jsonData + "\n").getBytes(StandardCharsets.UTF_8);
+        String headers = "PUT HTTP/1.1\n"
+                + lamport + "\n" // Send the clock value recorded with the PUT
+                + "User-Agent: ATOMClient/1/0\n"
+                + "Content-Type: application/json\n"
+                + "Content-Length: " + body.length + "\n"
+                + "Sender-ID: " + senderId + "\n"
+                + "\n"; // End of headers
+        out.write(headers.getBytes(StandardCharsets.UTF_8));
+        out.write(body); // Send the json data
+    }
 
-        // Send PUT request with headers and JSON data
-        out.println("PUT");
-        out.println(lamportClock.getClock()); // Send clock value
-        out.println("User-Agent: ATOMClient/1/0");
-        out.println("Content-Type: application/json");
-        out.println("Content-Length: " + jsonData.length());
-        out.println(); // End of headers
-        out.println(jsonData); // Send the json data
-        out.println(); // End of message
-        out.flush();
+    /**
+     * Builds a delta PUT body holding only the fields of a reading that changed since the last
+     * reading the server stored for the station: the changed values and the station ID.
+     *
+     * @param entry The reading to send.
+     * @param endpoint The server it is sent to.
+     * @return The delta, or null if the reading has to be sent in full because the server holds no
+     *         earlier reading from us or the reading adds or removes fields.
+     */
+    private String delta(Outbox.Entry entry, EndpointPool.Endpoint endpoint) {
+        Acknowledged base = acknowledged.get(entry.stationId);
+        if (base == null || base.endpoint != endpoint) {
+            return null;
+        }
+        Map<String, String> fields = JSONParser.parseJSON(entry.jsonData);
+        if (!fields.keySet().equals(base.fields.keySet()) || !fields.containsKey("id")) {
+            return null;
+        }
+        Map<String, String> changes = new LinkedHashMap<>();
+        changes.put("id", fields.get("id"));
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (!field.getValue().equals(base.fields.get(field.getKey()))) {
+                changes.put(field.getKey(), field.getValue());
+            }
+        }
+        return JSONParser.convertToJSON(changes);
+    }
+
+    /**
+     * Writes a delta PUT: a PATCH request carrying the changed fields of a reading, the version of
+     * the reading they apply to, and the hash of the whole document, so the server can check that
+     * applying the delta gives exactly the document a full PUT would have sent.
+     *
+     * @param out Stream to send data to the server, flushed by the caller.
+     * @param entry The reading being sent.
+     * @param delta The changed fields, as built by delta.
+     * @throws IOException If an I/O error occurs while sending data.
+     */
+    private void sendDelta(OutputStream out, Outbox.Entry entry, String delta) throws IOException {
+        Acknowledged base = acknowledged.get(entry.stationId);
+        byte[] document = (entry.jsonData + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] body = (delta + "\n").getBytes(StandardCharsets.UTF_8);
+        String headers = "PATCH HTTP/1.1\n"
+                + entry.lamport + "\n"
+                + "User-Agent: ATOMClient/1/0\n"
+                + "Content-Type: application/json\n"
+                + "Content-Length: " + body.length + "\n"
+                + "Sender-ID: " + senderId + "\n"
+                + "Base-Version: " + base.lamport + " " + senderId + "\n"
+                + "Document-Hash: " + Long.toHexString(RequestReader.hash(document, 0, document.length)) + "\n"
+                + "\n"; // End of headers
+        out.write(headers.getBytes(StandardCharsets.UTF_8));
+        out.write(body);
+    }
+
+    /**
+     * Reads one response to a PUT and prints its status line and headers. The body is read by
+     * its Content-Length (or chunks) so the next response on the connection starts where it ends.
+     *
+     * A 409 Conflict means the server already holds a newer version of the station. The Lamport
+     * clock catches up with the server's, so the next reading is stamped after that version, and
+     * the rejected reading is dropped: either it was a late retry of ours, or another sender's
+     * newer data won and must not be overwritten. The sender ID and clock are restored from the
+     * outbox after a restart, so an earlier run of this content server never holds a version newer
+     * than the readings of this one.
+     *
+     * A stored reading becomes the base of the next delta PUT of its station. A 412 Precondition
+     * Failed means a delta could not be applied, so the reading is sent again in full.
+     *
+     * @param in Reader over the server's responses.
+     * @param entry The reading the response is for.
+     * @param endpoint The server that sent the response.
+     * @return True if the PUT was a delta that could not be applied, and should be resent in full.
+     * @throws IOException If the connection ends before a complete response arrives.
+     */
+    private boolean readResponse(RequestReader in, Outbox.Entry entry, EndpointPool.Endpoint endpoint) throws IOException {
+        String status = in.readLineString();
+        if (status == null) {
+            throw new EOFException("Connection closed before a response arrived");
+        }
+        in.readHeaders();
+        System.out.println(status);
+        in.printSlice(System.out);
+        System.out.println();
 
-        // Read and print the response from the server
-        StringBuilder responseHeaders = new StringBuilder();
-        String line;
-        while ((line = in.readLine()) != null && !line.isEmpty()) {
-            responseHeaders.append(line).append("\n");
+        boolean resend = false;
+        if (status.startsWith("HTTP/1.1 2")) {
+            acknowledged.put(entry.stationId, new Acknowledged(endpoint, entry.lamport, JSONParser.parseJSON(entry.jsonData)));
+        } else if (status.startsWith("HTTP/1.1 409")) {
+            String serverClock = in.header("Lamport-Clock");
+            String current = in.header("Station-Version");
+            if (serverClock != null && serverClock.matches("\\d+")) {
+                synchronized (lamportClock) {
+                    lamportClock.update(Integer.parseInt(serverClock));
+                }
+            }
+            System.out.println("Dropping reading of " + entry.stationId + ", the server holds newer version " + current);
+            if (current == null || !current.endsWith(" " + senderId)) {
+                acknowledged.remove(entry.stationId); // Another sender's data is the base now, so the next reading goes in full
+            }
+        } else if (status.startsWith("HTTP/1.1 412")) {
+            acknowledged.remove(entry.stationId);
+            resend = true;
         }
-        System.out.println(responseHeaders);
+
+        if (in.isChunked()) {
+            in.readChunkedBody();
+        } else if (in.getContentLength() >= 0) {
+            in.readBody(in.getContentLength());
+        }
+        return resend;
     }
 
     /**
-     * Sends periodic heartbeat messages to the aggregation server to indicate that the content server is still alive.
+     * Sends a heartbeat message to the aggregation server to signal that the stations are still running.
      *
-     * This method runs in a separate thread and sends a "HEARTBEAT" message every 10 seconds.
-     * Special Case: If two consecutive attempts to send the heartbeat fail, the server shuts down.
+     * This method runs on the shared scheduler every 10 seconds. One HEARTBEATS frame lists every station,
+     * sent to the most preferred available server over a connection shared by every content server in the
+     * process, or as UDP datagrams with -Dheartbeat.udp=true. It doubles as a health probe for the circuit
+     * breakers. If the server that answers may not hold our latest data (after a fail-over, a recovery of
+     * the preferred server, or a failed send), the readings still pending in the outbox are delivered first,
+     * along with those of the stations whose latest reading another server stored. Any station the server
+     * reports it has no data for is resent too.
+     * Special Case: If the connection fails, an error is logged and the next server is tried.
      */
-    private static void startHeartbeat() {
-        AtomicInteger failed_attempts = new AtomicInteger();
-        new Thread(() -> {
-            while (running) {
-                try {
-                    Thread.sleep(10000); // Send heartbeat every 10 seconds
-                    sendHeartbeat(); // Call method to send heartbeat message
-                } catch (InterruptedException e) {
-                    failed_attempts.getAndIncrement();
-                    if (failed_attempts.get() >= 2) {
-                        running = false; // Stop the server loop
-                        System.out.println("Shutting down the server...");
+    private void sendHeartbeat() {
+        if (!running) {
+            return;
+        }
+        List<EndpointPool.Endpoint> available = endpointPool.available();
+        if (available.isEmpty()) {
+            System.out.println("No aggregation server available for heartbeat");
+            return;
+        }
+
+        for (EndpointPool.Endpoint endpoint : available) {
+            if (endpoint != deliveredTo) {
+                // This server may not hold our latest data: deliver what is still pending, and resend the
+                // stations whose latest reading another server stored. The heartbeat reports any others.
+                for (Station station : stations.values()) {
+                    Acknowledged base = station.id == null ? null : acknowledged.get(station.id);
+                    if (base != null && base.endpoint != endpoint) {
+                        record(station);
                     }
                 }
+                if (outbox.size() == 0) {
+                    deliveredTo = endpoint;
+                } else if (!drainOutbox(3)) {
+                    return; // Still undelivered, try again on the next heartbeat
+                }
             }
-        }).start();
+
+            List<String> ids = new ArrayList<>();
+            for (Station station : stations.values()) {
+                if (station.id != null) {
+                    ids.add(station.id);
+                }
+            }
+            if (ids.isEmpty()) {
+                return; // No file has a station ID, so there is nothing to keep alive
+            }
+            HeartbeatChannel channel = HeartbeatChannel.to(endpoint.getHost(), endpoint.getPort());
+            try {
+                if (HEARTBEAT_UDP) {
+                    channel.sendDatagram(ids);
+                    return;
+                }
+                // Send a batched heartbeat over the shared, kept-alive connection
+                List<String> unknown = channel.send(ids);
+                endpoint.recordSuccess();
+                if (!unknown.isEmpty()) {
+                    System.out.println(endpoint + " has no data for " + unknown + ", resending");
+                    List<Station> missing = new ArrayList<>();
+                    for (Station station : stations.values()) {
+                        if (unknown.contains(station.id)) {
+                            missing.add(station);
+                        }
+                    }
+                    publish(missing);
+                }
+                return;
+            } catch (IOException e) {
+                endpoint.recordFailure();
+                System.out.println("Error sending heartbeat to " + endpoint);
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
-     * Sends a simple heartbeat message to the aggregation server to signal that the server is still running.
-     *
-     * Special Case: If the connection fails, an error is logged.
+     * The last reading of a station that an aggregation server acknowledged storing.
      */
-    private static void sendHeartbeat() {
-        // Implement the logic to send a heartbeat message to the aggregation server
-        try (Socket socket = new Socket(serverName, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+    private static class Acknowledged {
+        final EndpointPool.Endpoint endpoint;
+        final int lamport;
+        final Map<String, String> fields;
 
-            // Send a simple heartbeat message
-            out.println("HEARTBEAT");
-            out.println(file);
-        } catch (IOException e) {
-            System.out.println("Error sending heartbeat");
-            e.printStackTrace();
+        Acknowledged(EndpointPool.Endpoint endpoint, int lamport, Map<String, String> fields) {
+            this.endpoint = endpoint;
+            this.lamport = lamport;
+            this.fields = fields;
         }
     }
 
+    /**
+     * A station file being published.
+     */
+    private static class Station {
+        final Path file;
+        volatile long lastModified; // Modification time of the data last recorded
+        volatile String id; // ID of the station in the file, once it has been read
+
+        Station(Path file) {
+            this.file = file;
+        }
+    }
 }
@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class EndpointPool {
+    private static final int FAILURE_THRESHOLD = 3; // Consecutive failures before a circuit opens
+    private static final long BASE_COOLDOWN_MS = 2000; // First open period, doubled on each failed probe
+    private static final long MAX_COOLDOWN_MS = 30000; // Upper bound for the open period
+
+    private final List<Endpoint> endpoints;
+
+    /**
+     * Creates a pool over an ordered list of aggregation server endpoints.
+     * The first endpoint is the preferred one, later entries are fail-over targets.
+     *
+     * @param endpoints The endpoints in order of preference.
+     */
+    public EndpointPool(List<Endpoint> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+    }
+
+    /**
+     * Parses a comma separated list of <servername>:<port> pairs into a pool.
+     *
+     * @param spec The endpoint list, e.g. "localhost:4567,backup:4567".
+     * @return The endpoint pool in the given order of preference.
+     * @throws IllegalArgumentException If any entry is not of the form <servername>:<port>.
+     */
+    public static EndpointPool parse(String spec) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid endpoint '" + entry + "'. Expected format: <servername>:<port>");
+            }
+            endpoints.add(new Endpoint(parts[0], Integer.parseInt(parts[1])));
+        }
+        return new EndpointPool(endpoints);
+    }
+
+    /**
+     * Returns the endpoints whose circuit currently allows a request, in order of preference.
+     *
+     * Endpoints are always scanned in order of preference, so once the preferred
+     * endpoint's cool-down has passed it is probed again and, on success, used in
+     * favour of any fail-over target.
+     *
+     * @return The endpoints to try, empty if every circuit is open.
+     */
+    public List<Endpoint> available() {
+        long now = System.currentTimeMillis();
+        List<Endpoint> available = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.allowRequest(now)) {
+                available.add(endpoint);
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Returns all endpoints in order of preference.
+     *
+     * @return An unmodifiable list of endpoints.
+     */
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * A single aggregation server endpoint with its own circuit breaker.
+     *
+     * CLOSED: requests flow normally. OPEN: requests are skipped until the cool-down
+     * has elapsed. HALF_OPEN: probe requests are let through, the first outcome
+     * either closes the circuit again or re-opens it with a longer cool-down.
+     */
+    public static class Endpoint {
+        public enum State { CLOSED, OPEN, HALF_OPEN }
+
+        private final String host;
+        private final int port;
+        private State state = State.CLOSED;
+        private int consecutiveFailures = 0;
+        private long openedAt = 0;
+        private long cooldown = BASE_COOLDOWN_MS;
+
+        public Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public synchronized State getState() {
+            return state;
+        }
+
+        /**
+         * Checks whether a request may be sent to this endpoint, moving an open
+         * circuit to half-open once its cool-down has passed.
+         *
+         * @param now The current time in milliseconds.
+         * @return True if a request may be sent.
+         */
+        synchronized boolean allowRequest(long now) {
+            if (state == State.OPEN && now - openedAt >= cooldown) {
+                state = State.HALF_OPEN; // Let probes through until one of them reports back
+            }
+            return state != State.OPEN;
+        }
+
+        /**
+         * Records a successful request, closing the circuit.
+         */
+        public synchronized void recordSuccess() {
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            cooldown = BASE_COOLDOWN_MS;
+        }
+
+        /**
+         * Records a failed request. A failed probe re-opens the circuit with a longer
+         * cool-down, otherwise the circuit opens after FAILURE_THRESHOLD failures in a row.
+         */
+        public synchronized void recordFailure() {
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN) {
+                cooldown = Math.min(cooldown * 2, MAX_COOLDOWN_MS);
+                open();
+            } else if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+                open();
+            }
+        }
+
+        private void open() {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            System.out.println("Circuit opened for " + this + " for " + cooldown + "ms");
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+public class FileWatcher {
+    private static FileWatcher shared;
+    private static boolean unavailable = false;
+
+    private final WatchService service;
+    private final Map<Path, List<Consumer<Path>>> listeners = new ConcurrentHashMap<>(); // Directory -> callbacks
+    private final Map<Path, WatchKey> keys = new ConcurrentHashMap<>();
+
+    private FileWatcher(WatchService service) {
+        this.service = service;
+        Thread thread = new Thread(this::run, "file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the file watcher shared by every content server in the process, creating it on first use.
+     *
+     * @return The shared watcher, or null if the file system cannot deliver change events.
+     */
+    public static synchronized FileWatcher shared() {
+        if (shared == null && !unavailable) {
+            try {
+                shared = new FileWatcher(FileSystems.getDefault().newWatchService());
+            } catch (IOException | UnsupportedOperationException e) {
+                System.out.println("File change events unavailable, polling instead: " + e.getMessage());
+                unavailable = true;
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Calls a listener whenever an entry of a directory is created, modified or deleted. The
+     * listener gets the path of the changed entry, or null if events were lost and everything
+     * in the directory should be checked.
+     *
+     * @param directory The directory to watch.
+     * @param listener The callback, run on the watcher thread, so it should only hand the work off.
+     * @throws IOException If the directory cannot be watched.
+     */
+    public void register(Path directory, Consumer<Path> listener) throws IOException {
+        Path dir = directory.toAbsolutePath().normalize();
+        synchronized (keys) {
+            if (!keys.containsKey(dir)) {
+                keys.put(dir, dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE));
+            }
+            listeners.computeIfAbsent(dir, key -> new CopyOnWriteArrayList<>()).add(listener);
+        }
+    }
+
+    /**
+     * Stops calling a listener. The directory stops being watched once it has no listeners left.
+     *
+     * @param directory The watched directory.
+     * @param listener The callback given to register.
+     */
+    public void unregister(Path directory, Consumer<Path> listener) {
+        Path dir = directory.toAbsolutePath().normalize();
+        synchronized (keys) {
+            List<Consumer<Path>> callbacks = listeners.get(dir);
+            if (callbacks == null) {
+                return;
+            }
+            callbacks.remove(listener);
+            if (callbacks.isEmpty()) {
+                listeners.remove(dir);
+                WatchKey key = keys.remove(dir);
+                if (key != null) {
+                    key.cancel();
+                }
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            List<Consumer<Path>> callbacks = listeners.get(dir);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (callbacks == null) {
+                    continue;
+                }
+                Path changed = event.kind() == StandardWatchEventKinds.OVERFLOW ? null : dir.resolve((Path) event.context());
+                for (Consumer<Path> callback : callbacks) {
+                    callback.accept(changed);
+                }
+            }
+            key.reset();
+        }
+    }
+}
@@ -1,80 +1,147 @@
-
-
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class GETClient implements Closeable {
+    public static final int DEFAULT_TIMEOUT_MILLIS = 5000; // Time allowed for a response to start arriving
+    public static final int DEFAULT_MAX_TRIES = 3;
+    private static final long BASE_BACKOFF_MILLIS = 200; // Delay before the first retry, doubled for each further one
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final long IDLE_MILLIS = 20000; // Close an idle connection before the server's keep-alive timeout does
 
-public class GETClient {
-    private static LamportClock lamportClock;
+    // Schedules retries for every client in the process
+    private static final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "get-client-retries");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Command line settings
     public static String serverName = "localhost"; // Aggregation server address
     public static int port = 4567; // Aggregation server port
     public static String fileID;
+    public static String fields; // Comma separated fields to request, null for the whole document
     public static String receivedData = "EMPTY";
 
-    public static void main(String[] args) throws IOException {
-        lamportClock = new LamportClock();
+    private final String host;
+    private final int serverPort;
+    private final int timeoutMillis;
+    private final int maxTries;
+    private final NearCache<Response> cache; // Optional near cache of responses, null to always ask the server
+    private final LamportClock lamportClock = new LamportClock();
+    private Connection connection; // The kept-alive connection, null until the next request opens one
+    private volatile boolean closed = false;
 
+    public static void main(String[] args) throws IOException {
         // Initialize server name and port based on user input arguments.
         // This method validates the arguments and sets defaults if necessary.
         initVariables(args);
 
-        int maxTries = 3;  // Max number of retry attempts
-        int attempts = 0;  // Track the number of attempts
-        boolean success = false;  // Track whether the operation succeeded
+        try (GETClient client = new GETClient(serverName, port)) {
+            Response response = client.get(getTarget()).get();
 
-        // Retry loop for getting data from the server with up to 'maxTries' retries in case of failure
-        while (attempts < maxTries && !success) {
-            attempts++;  // Increment attempt count
+            // Print the headers for debugging purposes (optional)
+            System.out.println("Received Headers: \n" + response.getStatusLine() + "\n" + response.getHeaders());
 
-            // Establish a connection with the server, send a GET request, and read the response
-            try (Socket socket = new Socket(serverName, port);
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            // Store the received data and print it
+            receivedData = response.getBody();
+            System.out.println(receivedData);
+        } catch (ExecutionException e) {
+            System.out.println("Max retries reached. Unable to get data.");
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // Output message on successful data retrieval
+        System.out.println("Data retrieved successfully.");
+    }
 
-                // Attempt to retrieve data from the server using helper method
-                getData(in, out);
+    /**
+     * Creates a client for an aggregation server with the default timeout and number of tries.
+     *
+     * @param host The aggregation server's host name.
+     * @param port The aggregation server's port.
+     */
+    public GETClient(String host, int port) {
+        this(host, port, DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_TRIES);
+    }
 
-                // If no exception occurs, assume the operation was successful
-                success = true;
+    /**
+     * Creates a client for an aggregation server. The client is thread-safe and meant to be shared:
+     * requests go over one kept-alive connection, opened on first use, and concurrent requests are
+     * pipelined on it, their responses completing the futures in the order the requests were sent.
+     *
+     * @param host The aggregation server's host name.
+     * @param port The aggregation server's port.
+     * @param timeoutMillis Time allowed for connecting and for a response to start arriving.
+     * @param maxTries The number of attempts per request before its future fails.
+     */
+    public GETClient(String host, int port, int timeoutMillis, int maxTries) {
+        this(host, port, timeoutMillis, maxTries, null);
+    }
 
-            } catch (IOException e) {
-                // Handle socket errors and retry until maxTries is reached
-                System.out.println("Error in socket, attempt " + attempts);
-                e.printStackTrace();
+    /**
+     * Creates a client that answers repeated GETs of a target from an in-process cache, see newCache.
+     *
+     * @param host The aggregation server's host name.
+     * @param port The aggregation server's port.
+     * @param timeoutMillis Time allowed for connecting and for a response to start arriving.
+     * @param maxTries The number of attempts per request before its future fails.
+     * @param cache The cache of responses by target, or null for none.
+     */
+    public GETClient(String host, int port, int timeoutMillis, int maxTries, NearCache<Response> cache) {
+        this.host = host;
+        this.serverPort = port;
+        this.timeoutMillis = timeoutMillis;
+        this.maxTries = maxTries;
+        this.cache = cache;
+    }
 
-                if (attempts >= maxTries) {
-                    // If maximum retries reached, exit with failure
-                    System.out.println("Max retries reached. Unable to get data.");
-                    return;
-                } else {
-                    // Optionally wait before retrying
-                    System.out.println("Retrying...");
-                    try {
-                        Thread.sleep(1000);  // Wait 1 second before retrying
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();  // Restore interrupted thread status
-                    }
-                }
-            }
-        }
-        // Output message on successful data retrieval
-        System.out.println("Data retrieved successfully.");
+    /**
+     * Creates a near cache for a client that keeps successful responses only, so a station that
+     * has no data yet is asked for again.
+     *
+     * @param capacity The maximum number of cached targets.
+     * @param ttlMillis How long a response is served without asking the server.
+     * @param staleMillis How long after its TTL a response is still served while it is fetched again.
+     * @return The cache, to be passed to the constructor.
+     */
+    public static NearCache<Response> newCache(int capacity, long ttlMillis, long staleMillis) {
+        return new NearCache<>(capacity, ttlMillis, staleMillis, response -> response.getStatus() == 200);
     }
 
     /**
      * Initializes server name, port number, and file ID from the command line arguments.
      * If no file ID is provided, a default value ("MOST_RECENT") is used.
      *
-     * @param args Command line arguments in the format: <servername>:<port> <fileID>
+     * @param args Command line arguments in the format: <servername>:<port> <fileID> fields=<field>,<field>...
+     *             where the fields argument is optional and limits the response to the listed fields.
      * @throws IOException If insufficient arguments are provided or the format is incorrect.
      */
     private static void initVariables(String[] args) throws IOException {
         int no_id_flag = 0;
 
+        // Pull out the optional projection, e.g. fields=air_temp,local_date_time_full
+        fields = null;
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("fields=")) {
+                fields = arg.substring("fields=".length());
+            } else {
+                positional.add(arg);
+            }
+        }
+        args = positional.toArray(new String[0]);
+
         // Check if enough arguments are provided, otherwise set defaults
         if (args.length < 2) {
             if (args.length < 1) {
                 // If no arguments provided, output usage instructions and throw an exception
-                System.out.println("Usage: <servername>:<port> <file>");
+                System.out.println("Usage: <servername>:<port> <file> [fields=<field>,<field>...]");
                 throw new IOException();
             } else {
                 // If only server and port provided, set a flag to use default file ID
@@ -107,45 +174,374 @@ public class GETClient {
         System.out.println("Server Name: " + serverName);
         System.out.println("Port: " + port);
         System.out.println("File: " + fileID);
+        if (fields != null) {
+            System.out.println("Fields: " + fields);
+        }
     }
 
     /**
-     * Sends a GET request to the server with the specified file ID and Lamport clock value.
-     * The method reads the server's response, including headers and body, and stores the data.
+     * Builds the GET target from the file ID and the requested fields.
      *
-     * @param in  BufferedReader to read the server's response
-     * @param out PrintWriter to send the GET request to the server
-     * @throws IOException If any I/O error occurs while reading from or writing to the server
+     * @return The target, e.g. "IDS60901?fields=air_temp,local_date_time_full".
      */
-    private static void getData(BufferedReader in, PrintWriter out) throws IOException {
-        // Increment the Lamport clock before sending the request
-        lamportClock.increment();
+    private static String getTarget() {
+        if (fields == null) {
+            return fileID;
+        }
+        return fileID + (fileID.indexOf('?') == -1 ? "?" : "&") + "fields=" + fields;
+    }
 
-        // Send a GET request, followed by the current Lamport clock value and the file ID
-        out.println("GET");
-        out.println(lamportClock.getClock());
-        out.println(fileID);  // Either a valid file ID or "MOST_RECENT"
+    /**
+     * Sends a GET request without waiting for the response.
+     *
+     * Special Case: If the connection fails or a response does not start within the timeout, the
+     * request is retried after an exponentially growing delay with random jitter. The future fails
+     * once every try has failed, or at once if the client is closed.
+     *
+     * With a near cache, a cached response is returned without a request, and concurrent GETs of
+     * the same target that miss the cache share a single request to the server.
+     *
+     * @param target The GET target, e.g. "IDS60901", "MOST_RECENT" or "IDS60901?fields=air_temp".
+     * @return A future completed with the server's response, whatever its status.
+     */
+    public CompletableFuture<Response> get(String target) {
+        return cache == null ? fetch(target) : cache.get(target, this::fetch);
+    }
 
-        // Read and accumulate the response headers from the server
-        StringBuilder responseHeaders = new StringBuilder();
-        String line;
-        while ((line = in.readLine()) != null && !line.isEmpty()) {
-            responseHeaders.append(line).append("\n");
+    /**
+     * Gets a station's latest reading, parsed into a typed observation.
+     *
+     * @param id The station ID, or "MOST_RECENT".
+     * @return A future of the observation, failed with an IOException unless the server answers 200 OK.
+     */
+    public CompletableFuture<WeatherObservation> getObservation(String id) {
+        return get(id).thenApply(response -> {
+            if (response.getStatus() != 200) {
+                throw new CompletionException(new IOException(response.getStatusLine()));
+            }
+            return WeatherObservation.parse(response.getBody());
+        });
+    }
+
+    /**
+     * Streams the observations of a GET that returns many stations, e.g. "IDS60901,IDS60902",
+     * "WHERE state=SA" or "BBOX -35,138,-30,139". The request gets a connection of its own, and the
+     * body is parsed as it arrives, honouring its Content-Length or chunked encoding, so memory use
+     * stays the same however many stations come back. Close the reader to release the connection.
+     *
+     * @param target The GET target.
+     * @return The observations, in the order the server sent them.
+     * @throws IOException If the connection fails or the server does not answer 200 OK.
+     */
+    public ObservationReader observations(String target) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, serverPort), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            int clock;
+            synchronized (this) {
+                lamportClock.increment();
+                clock = lamportClock.getClock();
+            }
+            String message = "GET HTTP/1.1\n" + clock + "\n" + target + "\nConnection: close\n\n";
+            OutputStream out = socket.getOutputStream();
+            out.write(message.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            RequestReader in = new RequestReader(socket.getInputStream());
+            String status = in.readLineString();
+            if (status == null || !status.startsWith("HTTP/1.1 200")) {
+                in.close();
+                throw new IOException(status == null ? "Connection closed before a response arrived" : status);
+            }
+            in.readHeaders();
+            return new ObservationReader(in.bodyStream(), () -> {
+                socket.close();
+                in.close();
+            });
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
         }
+    }
 
-        // Print the headers for debugging purposes (optional)
-        System.out.println("Received Headers: \n" + responseHeaders);
+    private CompletableFuture<Response> fetch(String target) {
+        Request request = new Request(target);
+        send(request);
+        return request.future;
+    }
 
-        // Read the response body from the server
-        StringBuilder responseBody = new StringBuilder();
-        char[] buffer = new char[1024];
-        int bytesRead;
-        while ((bytesRead = in.read(buffer)) != -1) {
-            responseBody.append(buffer, 0, bytesRead);
+    /**
+     * Closes the connection. Requests still waiting for a response fail.
+     */
+    @Override
+    public void close() {
+        Connection current;
+        synchronized (this) {
+            closed = true;
+            current = connection;
+            connection = null;
+        }
+        if (current != null) {
+            current.fail(new IOException("Client closed"), null);
         }
+    }
 
-        // Store the received data and print it
-        receivedData = responseBody.toString();
-        System.out.println(receivedData);
+    private void send(Request request) {
+        Connection current;
+        IOException failure;
+        synchronized (this) {
+            if (closed) {
+                request.future.completeExceptionally(new IOException("Client closed"));
+                return;
+            }
+            try {
+                if (connection == null) {
+                    connection = new Connection();
+                }
+                connection.write(request);
+                return;
+            } catch (IOException e) {
+                current = connection; // Null if the connection could not be opened
+                if (current != null) {
+                    current.inFlight.remove(request);
+                }
+                failure = e;
+            }
+        }
+        if (current != null) {
+            current.fail(failure, null);
+        }
+        retry(request, failure);
+    }
+
+    /**
+     * Sends a request again after a backoff delay, or fails it if it has used all its tries.
+     *
+     * @param request The request whose attempt failed.
+     * @param cause Why the attempt failed.
+     */
+    private void retry(Request request, Throwable cause) {
+        request.attempts++;
+        System.out.println("Error in socket, attempt " + request.attempts + ": " + cause);
+        if (request.attempts >= maxTries) {
+            request.future.completeExceptionally(cause);
+            return;
+        }
+        long delay = backoff(request.attempts);
+        System.out.println("Retrying in " + delay + " ms...");
+        retries.schedule(() -> send(request), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the delay before a retry: the base delay doubled for each failed attempt, capped,
+     * with equal jitter, so clients that failed together do not retry in step.
+     *
+     * @param attempts The number of failed attempts so far.
+     * @return The delay in milliseconds.
+     */
+    static long backoff(int attempts) {
+        long delay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempts - 1, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * The response to a GET request.
+     */
+    public static class Response {
+        private final String statusLine;
+        private final String headers;
+        private final String body;
+
+        Response(String statusLine, String headers, String body) {
+            this.statusLine = statusLine;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public String getStatusLine() {
+            return statusLine;
+        }
+
+        /**
+         * Returns the status code, e.g. 200 or 404.
+         *
+         * @return The status code, or -1 if the status line has none.
+         */
+        public int getStatus() {
+            String[] parts = statusLine.split(" ");
+            return parts.length > 1 && parts[1].matches("\\d+") ? Integer.parseInt(parts[1]) : -1;
+        }
+
+        public String getHeaders() {
+            return headers;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+
+    private static class Request {
+        final String target;
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        int attempts = 0;
+
+        Request(String target) {
+            this.target = target;
+        }
+    }
+
+    /**
+     * A kept-alive connection to the server. Requests are written as they are made and queued in
+     * order; a reader thread reads the responses back and completes the requests at the head of the
+     * queue. A connection left idle is closed, and a failed connection hands its requests back to be
+     * retried on a new one.
+     */
+    private class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final RequestReader in;
+        private final BlockingQueue<Request> inFlight = new LinkedBlockingQueue<>();
+        private final Thread reader;
+
+        Connection() throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, serverPort), timeoutMillis);
+                socket.setSoTimeout(timeoutMillis);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new RequestReader(socket.getInputStream());
+            reader = new Thread(this::readResponses, "get-client-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Sends a request on this connection. Called with the client locked, so requests are
+         * queued in the order they are written.
+         */
+        void write(Request request) throws IOException {
+            // Increment the Lamport clock before sending the request
+            lamportClock.increment();
+            String message = "GET HTTP/1.1\n"
+                    + lamportClock.getClock() + "\n"
+                    + request.target + "\n" // Either a valid file ID or "MOST_RECENT", with any projection
+                    + "\n"; // End of headers
+            inFlight.add(request);
+            out.write(message.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        private void readResponses() {
+            try {
+                readUntilFailed();
+            } finally {
+                in.close(); // Only the reader thread touches the buffer
+            }
+        }
+
+        private void readUntilFailed() {
+            while (true) {
+                Request request;
+                try {
+                    request = inFlight.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    fail(new IOException("Interrupted"), null);
+                    return;
+                }
+                if (request == null) {
+                    synchronized (GETClient.this) {
+                        if (!inFlight.isEmpty()) {
+                            continue;
+                        }
+                        retire();
+                    }
+                    closeSocket();
+                    return;
+                }
+                try {
+                    request.future.complete(readResponse());
+                } catch (IOException e) {
+                    fail(e, request);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Reads the status line and the response headers, then the body by its Content-Length or
+         * chunks when the server gives them, and up to the end of the connection otherwise.
+         */
+        private Response readResponse() throws IOException {
+            String status = in.readLineString();
+            if (status == null) {
+                throw new EOFException("Connection closed before a response arrived");
+            }
+            in.readHeaders();
+            String headers = in.sliceString();
+
+            if (in.isChunked()) {
+                in.readChunkedBody();
+            } else if (in.getContentLength() >= 0) {
+                in.readBody(in.getContentLength());
+            } else {
+                in.readToEnd();
+                synchronized (GETClient.this) {
+                    retire(); // The server ended the body by closing the connection
+                }
+            }
+            return new Response(status, headers, in.sliceString());
+        }
+
+        /**
+         * Stops using this connection for new requests. Called with the client locked.
+         */
+        private void retire() {
+            if (connection == this) {
+                connection = null;
+            }
+        }
+
+        /**
+         * Closes this connection after an error and retries the requests waiting on it.
+         *
+         * @param cause The error.
+         * @param failed The request whose response was being read, counted as a failed attempt,
+         *               or null if no request is to blame.
+         */
+        void fail(IOException cause, Request failed) {
+            List<Request> waiting = new ArrayList<>();
+            synchronized (GETClient.this) {
+                retire();
+                inFlight.drainTo(waiting);
+            }
+            closeSocket();
+            if (failed != null) {
+                retry(failed, cause);
+            }
+            for (Request request : waiting) {
+                if (closed) {
+                    request.future.completeExceptionally(cause);
+                } else {
+                    send(request); // Never answered, so it costs no attempt
+                }
+            }
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println("Error closing client socket.");
+            }
+            if (Thread.currentThread() != reader) {
+                reader.interrupt(); // Wake the reader if it is waiting for a request
+            }
+        }
     }
 }
@@ -0,0 +1,149 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class HeartbeatChannel {
+    private static final int MAX_DATAGRAM = 1400; // Stays within a typical network MTU
+    private static final Map<String, HeartbeatChannel> channels = new ConcurrentHashMap<>();
+
+    private final String host;
+    private final int port;
+    private Socket socket; // Kept open between heartbeats, null until first used or after a failure
+    private OutputStream out;
+    private RequestReader in;
+    private DatagramSocket datagramSocket;
+
+    private HeartbeatChannel(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Returns the channel to an aggregation server. Every content server in the process shares
+     * one channel per server, so heartbeats never open a connection each.
+     *
+     * @param host The aggregation server address.
+     * @param port The aggregation server port.
+     * @return The shared channel.
+     */
+    public static HeartbeatChannel to(String host, int port) {
+        return channels.computeIfAbsent(host + ":" + port, key -> new HeartbeatChannel(host, port));
+    }
+
+    /**
+     * Sends one HEARTBEATS frame holding every station ID over the kept-alive connection,
+     * reconnecting first if the connection was lost. A connection found closed by the server
+     * (e.g. after its idle timeout) is reopened once before giving up. A server that does not
+     * accept the connection or answer within ConnectionPool.TIMEOUT_MS fails the heartbeat.
+     *
+     * @param ids The station IDs.
+     * @return The IDs the server holds no data for.
+     * @throws IOException If the frame cannot be delivered.
+     */
+    public synchronized List<String> send(Collection<String> ids) throws IOException {
+        byte[] body = join(ids).getBytes(StandardCharsets.UTF_8);
+        for (int attempt = 0; ; attempt++) {
+            boolean reused = socket != null;
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                out.write(("HEARTBEATS HTTP/1.1\nContent-Length: " + body.length + "\n\n").getBytes(StandardCharsets.UTF_8));
+                out.write(body);
+                out.flush();
+
+                String status = in.readLineString();
+                if (status == null) {
+                    throw new EOFException("Connection closed before a response arrived");
+                }
+                in.readHeaders();
+                if (in.isChunked()) {
+                    in.readChunkedBody();
+                } else {
+                    in.readBody(Math.max(0, in.getContentLength()));
+                }
+                if (!status.startsWith("HTTP/1.1 200")) {
+                    throw new IOException("Heartbeat rejected: " + status);
+                }
+                return in.sliceLines();
+            } catch (IOException e) {
+                close();
+                if (!reused || attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the station IDs as UDP datagrams, for servers started with -Dheartbeat.udp=true.
+     * No answer comes back, so nothing is learned about the server's health or data.
+     *
+     * @param ids The station IDs.
+     * @throws IOException If a datagram cannot be sent.
+     */
+    public synchronized void sendDatagram(Collection<String> ids) throws IOException {
+        if (datagramSocket == null) {
+            datagramSocket = new DatagramSocket();
+        }
+        InetAddress address = InetAddress.getByName(host);
+        List<String> frame = new ArrayList<>();
+        int size = 0;
+        for (String id : ids) {
+            int length = id.getBytes(StandardCharsets.UTF_8).length + 1;
+            if (!frame.isEmpty() && "HEARTBEATS\n".length() + size + length > MAX_DATAGRAM) {
+                sendFrame(frame, address);
+                frame.clear();
+                size = 0;
+            }
+            frame.add(id);
+            size += length;
+        }
+        if (!frame.isEmpty()) {
+            sendFrame(frame, address);
+        }
+    }
+
+    /**
+     * Closes the connection; the next heartbeat opens a new one.
+     */
+    public synchronized void close() {
+        if (in != null) {
+            in.close();
+        }
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Already broken, nothing left to release
+        }
+        socket = null;
+        out = null;
+        in = null;
+    }
+
+    private void connect() throws IOException {
+        socket = ConnectionPool.connect(host, port); // Times out rather than stall the shared scheduler
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new RequestReader(socket.getInputStream());
+    }
+
+    private void sendFrame(List<String> ids, InetAddress address) throws IOException {
+        byte[] payload = ("HEARTBEATS\n" + join(ids)).getBytes(StandardCharsets.UTF_8);
+        datagramSocket.send(new DatagramPacket(payload, payload.length, address, port));
+    }
+
+    private static String join(Collection<String> ids) {
+        StringBuilder joined = new StringBuilder();
+        for (String id : ids) {
+            joined.append(id).append('\n');
+        }
+        return joined.toString();
+    }
+}
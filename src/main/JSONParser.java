@@ -1,61 +1,82 @@
-import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
 
 public class JSONParser {
 
+    private static final int BUFFER_SIZE = 8192;
+
     // Method to read the file and convert it to JSON string
     public static String convertFileToJSON(String fileName) {
-        // Read the file content
-        String input = readFile(fileName);
-
-        if (input == null) {
+        try (Reader in = new FileReader(fileName, StandardCharsets.UTF_8)) {
+            return convertToJSON(parseStation(in));
+        } catch (IOException e) {
+            System.out.println("Error reading file: " + e.getMessage());
             return null;  // Return null if file reading fails
         }
-
-        // Parse the input into a Map
-        Map<String, String> weatherData = parseInput(input);
-
-        // Manually convert the Map to a JSON string
-        return convertToJSON(weatherData);
     }
 
-    // Function to read the file and return its contents as a single string
-    private static String readFile(String fileName) {
-        StringBuilder contentBuilder = new StringBuilder();
+    // Read "key:value" lines into a Map keeping file order, in a single pass over the characters.
+    // Each line is split at its first colon only, so values such as "15/04:00pm" are kept whole.
+    // Keys and values are trimmed, lines without a colon or with an empty key or value are skipped,
+    // and a repeated key keeps its first position but takes the last value.
+    public static Map<String, String> parseStation(Reader in) throws IOException {
+        Map<String, String> map = new LinkedHashMap<>();
+        char[] buffer = new char[BUFFER_SIZE];
+        StringBuilder carried = new StringBuilder(); // Start of a token cut off by the end of the buffer
+        String key = null; // Set once the line's first colon has been read
 
-        try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
-            String currentLine;
-
-            while ((currentLine = br.readLine()) != null) {
-                contentBuilder.append(currentLine).append("\n");
+        int read;
+        while ((read = in.read(buffer, 0, buffer.length)) >= 0) {
+            int start = 0; // Start of the token being read
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                if (c == '\n' || c == '\r') {
+                    putField(map, key, token(carried, buffer, start, i));
+                    key = null;
+                    start = i + 1;
+                } else if (c == ':' && key == null) {
+                    key = token(carried, buffer, start, i);
+                    start = i + 1;
+                }
             }
-        } catch (IOException e) {
-            System.out.println("Error reading file: " + e.getMessage());
-            return null;
+            carried.append(buffer, start, read - start);
         }
-
-        return contentBuilder.toString();
+        putField(map, key, token(carried, buffer, 0, 0)); // The last line may have no newline
+        return map;
     }
 
-    // Parse the input and store it in a Map
-    private static Map<String, String> parseInput(String input) {
-        Map<String, String> map = new HashMap<>();
-        String[] lines = input.split("\n");
+    private static void putField(Map<String, String> map, String key, String value) {
+        if (key != null && !key.isEmpty() && !value.isEmpty()) {
+            map.put(key, value);
+        }
+    }
 
-        for (String line : lines) {
-            String[] keyValue = line.split(":");
-            if (keyValue.length == 2) {
-                map.put(keyValue[0].trim(), keyValue[1].trim());
-            }
+    // Return the trimmed token ending at end, taking any part of it carried over from the previous buffer
+    private static String token(StringBuilder carried, char[] buffer, int start, int end) {
+        if (carried.length() > 0) {
+            carried.append(buffer, start, end - start);
+            String token = carried.toString().trim();
+            carried.setLength(0);
+            return token;
         }
-        return map;
+        while (start < end && buffer[start] <= ' ') {
+            start++;
+        }
+        while (end > start && buffer[end - 1] <= ' ') {
+            end--;
+        }
+        return new String(buffer, start, end - start);
     }
 
-    // Convert the parsed data to a JSON string
-    private static String convertToJSON(Map<String, String> data) {
+    // Convert the parsed data to a JSON string, in the layout convertFileToJSON produces
+    public static String convertToJSON(Map<String, String> data) {
         StringBuilder jsonBuilder = new StringBuilder();
         jsonBuilder.append("{\n");
 
@@ -63,9 +84,9 @@ public class JSONParser {
         int size = data.size();
         for (Map.Entry<String, String> entry : data.entrySet()) {
             jsonBuilder.append("  \"")
-                    .append(entry.getKey())
+                    .append(escape(entry.getKey()))
                     .append("\": \"")
-                    .append(entry.getValue())
+                    .append(escape(entry.getValue()))
                     .append("\"");
 
             // Only append a comma and newline if it's not the last entry
@@ -82,4 +103,170 @@ public class JSONParser {
         return jsonBuilder.toString();
     }
 
-}
\ No newline at end of file
+    // Escape the quotes and backslashes of a key or value, which parseJSON undoes.
+    // Anything writing parsed values back out as JSON strings must go through here.
+    public static String escape(String text) {
+        if (text.indexOf('"') < 0 && text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder escaped = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    // Parse a numeric field value, or NaN if it is missing or not a number
+    public static double parseDouble(String value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // Parse the value of a fields= parameter, e.g. "air_temp,local_date_time_full", into the requested
+    // fields in order, or null if no projection was requested
+    public static Set<String> parseFields(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        Set<String> fields = new LinkedHashSet<>();
+        for (String field : value.split(",")) {
+            if (!field.trim().isEmpty()) {
+                fields.add(field.trim());
+            }
+        }
+        return fields;
+    }
+
+    // Extract the value of a top level key from a JSON string, undoing escapes, or null if it is missing
+    public static String getValue(String json, String key) {
+        String[] value = new String[1];
+        readFields(json, (fieldKey, fieldValue) -> {
+            if (!fieldKey.equals(key)) {
+                return true;
+            }
+            value[0] = fieldValue;
+            return false; // Found, stop reading
+        });
+        return value[0];
+    }
+
+    // Parse a flat JSON object, as produced by convertFileToJSON, into a Map keeping field order
+    public static Map<String, String> parseJSON(String json) {
+        Map<String, String> map = new LinkedHashMap<>();
+        readFields(json, (key, value) -> {
+            map.put(key, value);
+            return true;
+        });
+        return map;
+    }
+
+    // Walk the fields of the first flat JSON object in a string, handing each key and value to the
+    // visitor until it returns false. Strings are unescaped; bare values such as numbers are kept as written.
+    private static void readFields(String json, BiPredicate<String, String> visitor) {
+        int pos = json.indexOf('{') + 1;
+        StringBuilder token = new StringBuilder();
+
+        while (pos > 0) {
+            pos = skipWhitespace(json, pos);
+            if (pos >= json.length() || json.charAt(pos) != '"') {
+                return; // The end of the object, or not a key
+            }
+            pos = readString(json, pos + 1, token);
+            String key = token.toString();
+            int colon = pos < 0 ? -1 : skipWhitespace(json, pos + 1);
+            if (colon < 0 || colon >= json.length() || json.charAt(colon) != ':') {
+                return;
+            }
+
+            String value;
+            int valueStart = skipWhitespace(json, colon + 1);
+            if (valueStart < json.length() && json.charAt(valueStart) == '"') {
+                pos = readString(json, valueStart + 1, token);
+                if (pos < 0) {
+                    return;
+                }
+                value = token.toString();
+                pos++;
+            } else {
+                pos = valueStart;
+                while (pos < json.length() && json.charAt(pos) != ',' && json.charAt(pos) != '}') {
+                    pos++;
+                }
+                value = json.substring(valueStart, pos).trim();
+            }
+            if (!visitor.test(key, value)) {
+                return;
+            }
+
+            pos = skipWhitespace(json, pos);
+            if (pos >= json.length() || json.charAt(pos) != ',') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    // Read a quoted string after its opening quote into token, undoing escapes. Returns the index of
+    // the closing quote, or -1 if the string is not closed.
+    private static int readString(String json, int pos, StringBuilder token) {
+        token.setLength(0);
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == '"') {
+                return pos;
+            }
+            if (c == '\\' && pos + 1 < json.length()) {
+                c = json.charAt(++pos);
+                switch (c) {
+                    case 'n' -> c = '\n';
+                    case 't' -> c = '\t';
+                    case 'r' -> c = '\r';
+                    case 'b' -> c = '\b';
+                    case 'f' -> c = '\f';
+                    case 'u' -> {
+                        int code = pos + 4 < json.length() ? hex(json, pos + 1) : -1;
+                        if (code >= 0) { // Otherwise the malformed escape is kept as "u"
+                            c = (char) code;
+                            pos += 4;
+                        }
+                    }
+                    default -> { } // \" \\ \/ stand for themselves
+                }
+            }
+            token.append(c);
+            pos++;
+        }
+        return -1;
+    }
+
+    // The value of the four hex digits at pos, or -1 if they are not hex digits
+    private static int hex(String json, int pos) {
+        int code = 0;
+        for (int i = pos; i < pos + 4; i++) {
+            int digit = Character.digit(json.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            code = code * 16 + digit;
+        }
+        return code;
+    }
+
+    private static int skipWhitespace(String json, int pos) {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+}
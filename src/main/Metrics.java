@@ -0,0 +1,55 @@
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>(); // Ordered by name for output
+
+    /**
+     * Adds one to a counter, creating it on first use. Counters are striped, so threads
+     * counting at the same time don't contend on a single value.
+     *
+     * @param name The counter name.
+     */
+    public void increment(String name) {
+        counters.computeIfAbsent(name, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Adds to a counter, creating it on first use.
+     *
+     * @param name The counter name.
+     * @param amount The amount to add.
+     */
+    public void add(String name, long amount) {
+        counters.computeIfAbsent(name, key -> new LongAdder()).add(amount);
+    }
+
+    /**
+     * Returns the value of a counter.
+     *
+     * @param name The counter name.
+     * @return The value, 0 for a counter that was never incremented.
+     */
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Writes every counter as a JSON object, ordered by name.
+     *
+     * @param out The writer to send the counters to.
+     */
+    public void writeTo(PrintWriter out) {
+        out.println("{");
+        boolean first = true;
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            out.print((first ? "" : ",\n") + "  \"" + counter.getKey() + "\": \"" + counter.getValue().sum() + "\"");
+            first = false;
+        }
+        out.println();
+        out.println("}");
+    }
+}
@@ -0,0 +1,241 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+public class NearCache<V> {
+    private static final int WINDOW_PERCENT = 1; // Share of the capacity given to the admission window
+
+    public final Metrics metrics = new Metrics(); // hits, stale_hits, misses, loads, evictions
+
+    private final long ttlNanos; // How long a value is fresh
+    private final long staleNanos; // How long after that a value is still served while it is refreshed
+    private final Predicate<V> cacheable;
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final LinkedHashMap<String, Entry<V>> window = new LinkedHashMap<>(16, 0.75f, true); // Recent arrivals, LRU
+    private final LinkedHashMap<String, Entry<V>> main = new LinkedHashMap<>(16, 0.75f, true); // Admitted entries, LRU
+    private final FrequencySketch sketch;
+    private final Map<String, CompletableFuture<V>> loading = new ConcurrentHashMap<>(); // One load per key at a time
+
+    /**
+     * Creates a cache that keeps every loaded value.
+     *
+     * @param capacity The maximum number of entries.
+     * @param ttlMillis How long a value is served without asking the loader.
+     * @param staleMillis How long after its TTL a value is still served while it is reloaded in the background.
+     */
+    public NearCache(int capacity, long ttlMillis, long staleMillis) {
+        this(capacity, ttlMillis, staleMillis, value -> true);
+    }
+
+    /**
+     * Creates a bounded in-process cache in front of an asynchronous loader, e.g. a GETClient.
+     *
+     * New entries go to a small LRU window. An entry pushed out of the window only displaces the
+     * least recently used entry of the main area if its key has been asked for more often, as
+     * estimated by a count-min sketch of recent accesses (W-TinyLFU). A burst of one-off keys
+     * therefore cannot flush the keys that are read all the time.
+     *
+     * @param capacity The maximum number of entries.
+     * @param ttlMillis How long a value is served without asking the loader.
+     * @param staleMillis How long after its TTL a value is still served while it is reloaded in the background.
+     * @param cacheable Which loaded values to keep, e.g. only successful responses.
+     */
+    public NearCache(int capacity, long ttlMillis, long staleMillis, Predicate<V> cacheable) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2");
+        }
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.staleNanos = staleMillis * 1_000_000;
+        this.cacheable = cacheable;
+        this.windowCapacity = Math.max(1, capacity * WINDOW_PERCENT / 100);
+        this.mainCapacity = capacity - windowCapacity;
+        this.sketch = new FrequencySketch(capacity);
+    }
+
+    /**
+     * Returns the value for a key, loading it if it is missing or expired.
+     *
+     * A fresh value is returned at once. A stale value, past its TTL but within the stale period,
+     * is also returned at once, and a reload is started in the background. Concurrent requests
+     * for a key that is loading share the one load (single flight), so only one request per key
+     * reaches the loader at a time.
+     *
+     * @param key The key.
+     * @param loader Loads the value of a key.
+     * @return A future of the value, already completed on a hit.
+     */
+    public CompletableFuture<V> get(String key, Function<String, CompletableFuture<V>> loader) {
+        long now = System.nanoTime();
+        Entry<V> entry;
+        synchronized (this) {
+            sketch.increment(key);
+            entry = window.get(key);
+            if (entry == null) {
+                entry = main.get(key);
+            }
+        }
+        if (entry != null) {
+            long age = now - entry.loadedAt;
+            if (age < ttlNanos) {
+                metrics.increment("hits");
+                return CompletableFuture.completedFuture(entry.value);
+            }
+            if (age < ttlNanos + staleNanos) {
+                metrics.increment("stale_hits");
+                load(key, loader); // Revalidate in the background
+                return CompletableFuture.completedFuture(entry.value);
+            }
+        }
+        metrics.increment("misses");
+        return load(key, loader);
+    }
+
+    /**
+     * Drops a key, e.g. after the caller learns its value has changed.
+     *
+     * @param key The key.
+     */
+    public synchronized void invalidate(String key) {
+        window.remove(key);
+        main.remove(key);
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return The number of entries.
+     */
+    public synchronized int size() {
+        return window.size() + main.size();
+    }
+
+    /**
+     * Starts loading a key, unless a load of it is already in flight, in which case that load is shared.
+     */
+    private CompletableFuture<V> load(String key, Function<String, CompletableFuture<V>> loader) {
+        CompletableFuture<V> promise = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = loading.putIfAbsent(key, promise);
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        metrics.increment("loads");
+        CompletableFuture<V> loaded;
+        try {
+            loaded = loader.apply(key);
+        } catch (RuntimeException e) {
+            loaded = CompletableFuture.failedFuture(e);
+        }
+        loaded.whenComplete((value, error) -> {
+            if (error == null && cacheable.test(value)) {
+                put(key, value);
+            }
+            loading.remove(key, promise);
+            if (error != null) {
+                promise.completeExceptionally(error);
+            } else {
+                promise.complete(value);
+            }
+        });
+        return promise;
+    }
+
+    private synchronized void put(String key, V value) {
+        Entry<V> entry = new Entry<>(value, System.nanoTime());
+        if (main.containsKey(key)) {
+            main.put(key, entry);
+            return;
+        }
+        window.put(key, entry);
+        if (window.size() <= windowCapacity) {
+            return;
+        }
+
+        // Move the oldest window entry to the main area if it is admitted
+        Iterator<Map.Entry<String, Entry<V>>> oldest = window.entrySet().iterator();
+        Map.Entry<String, Entry<V>> candidate = oldest.next();
+        oldest.remove();
+        if (main.size() < mainCapacity) {
+            main.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+        Iterator<Map.Entry<String, Entry<V>>> lru = main.entrySet().iterator();
+        Map.Entry<String, Entry<V>> victim = lru.next();
+        if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+            lru.remove();
+            main.put(candidate.getKey(), candidate.getValue());
+        }
+        metrics.increment("evictions");
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long loadedAt; // System.nanoTime() when the value was loaded
+
+        Entry(V value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * Estimates how often each key was asked for recently: four rows of small saturating counters,
+     * each indexed by a different hash of the key, with the estimate being the smallest of the four.
+     * All counters are halved periodically, so keys that stop being read lose their standing.
+     */
+    private static class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        private final int sampleSize; // Increments between halvings
+        private int increments = 0;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity * 4 - 1)) << 1;
+            for (int row = 0; row < rows.length; row++) {
+                rows[row] = new byte[width];
+            }
+            mask = width - 1;
+            sampleSize = capacity * 10;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int row = 0; row < rows.length; row++) {
+                int index = index(hash, row);
+                if (rows[row][index] < MAX_COUNT) {
+                    rows[row][index]++;
+                }
+            }
+            if (++increments >= sampleSize) {
+                for (byte[] counters : rows) {
+                    for (int i = 0; i < counters.length; i++) {
+                        counters[i] >>= 1;
+                    }
+                }
+                increments /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < rows.length; row++) {
+                frequency = Math.min(frequency, rows[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class ObservationReader implements Iterator<WeatherObservation>, Closeable {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final Closeable onClose; // Closed instead of the stream, e.g. its connection, or null
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private byte[] token = new byte[64]; // The key or value being read, reused for every token
+    private int tokenLength = 0;
+    private WeatherObservation next;
+    private boolean finished = false;
+
+    /**
+     * Creates a reader over a stream of JSON documents.
+     *
+     * @param in The stream, e.g. a response body from RequestReader.bodyStream.
+     */
+    public ObservationReader(InputStream in) {
+        this(in, null);
+    }
+
+    /**
+     * Reads weather observations from a JSON stream one at a time: a single object, an array of
+     * objects, or objects one after another. Each object is decoded straight from the bytes into a
+     * WeatherObservation as it arrives, and only one object is held at a time, so memory use does
+     * not grow with the number of stations in the response.
+     *
+     * @param in The stream.
+     * @param onClose Closed instead of the stream when the reader is closed, e.g. the connection the
+     *                stream reads from, so an unread rest of the body is not read first. Null to close the stream.
+     */
+    public ObservationReader(InputStream in, Closeable onClose) {
+        this.in = in;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Checks whether another observation follows, reading it if needed.
+     *
+     * @return True if next will return an observation.
+     * @throws UncheckedIOException If the stream fails or holds malformed JSON.
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            try {
+                next = readObject();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            finished = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public WeatherObservation next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        WeatherObservation observation = next;
+        next = null;
+        return observation;
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        try {
+            if (onClose != null) {
+                onClose.close();
+            } else {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing observation stream");
+        }
+    }
+
+    /**
+     * Skips to the next top level object and reads it.
+     *
+     * @return The observation, or null at the end of the stream.
+     */
+    private WeatherObservation readObject() throws IOException {
+        int b;
+        do {
+            b = read();
+        } while (b >= 0 && b != '{'); // Skip array brackets, commas and whitespace between objects
+        if (b < 0) {
+            return null;
+        }
+
+        WeatherObservation observation = new WeatherObservation();
+        while (true) {
+            b = skipWhitespace();
+            if (b == '}') {
+                return observation;
+            } else if (b == ',') {
+                continue;
+            } else if (b != '"') {
+                throw new IOException("Expected a key, found " + describe(b));
+            }
+            String key = readString();
+            if (skipWhitespace() != ':') {
+                throw new IOException("Expected ':' after \"" + key + "\"");
+            }
+            b = skipWhitespace();
+            if (b == '"') {
+                observation.set(key, readString());
+            } else if (b == '{' || b == '[') {
+                skipNested(); // Not a flat observation field
+            } else if (b >= 0) {
+                observation.set(key, readBareValue(b));
+            } else {
+                throw new IOException("Object ended early");
+            }
+        }
+    }
+
+    /**
+     * Reads a quoted string after its opening quote, undoing escapes.
+     */
+    private String readString() throws IOException {
+        tokenLength = 0;
+        while (true) {
+            int b = read();
+            if (b < 0) {
+                throw new IOException("String ended early");
+            } else if (b == '"') {
+                return new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+            } else if (b == '\\') {
+                b = read();
+                switch (b) {
+                    case 'n' -> b = '\n';
+                    case 't' -> b = '\t';
+                    case 'r' -> b = '\r';
+                    case 'b' -> b = '\b';
+                    case 'f' -> b = '\f';
+                    case 'u' -> {
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            code = code * 16 + Character.digit(read(), 16);
+                        }
+                        for (byte encoded : String.valueOf((char) code).getBytes(StandardCharsets.UTF_8)) {
+                            append(encoded);
+                        }
+                        continue;
+                    }
+                    default -> { } // \" \\ \/ stand for themselves
+                }
+            }
+            append(b);
+        }
+    }
+
+    /**
+     * Reads an unquoted value, e.g. a number, up to the comma or brace after it.
+     */
+    private String readBareValue(int first) throws IOException {
+        tokenLength = 0;
+        int b = first;
+        while (b >= 0 && b != ',' && b != '}' && !Character.isWhitespace(b)) {
+            append(b);
+            b = read();
+        }
+        if (b == ',' || b == '}') {
+            position--; // Leave the delimiter for the object loop
+        }
+        return new String(token, 0, tokenLength, StandardCharsets.US_ASCII);
+    }
+
+    private void skipNested() throws IOException {
+        int depth = 1;
+        while (depth > 0) {
+            int b = read();
+            if (b < 0) {
+                throw new IOException("Object ended early");
+            } else if (b == '"') {
+                readString();
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            }
+        }
+    }
+
+    private int skipWhitespace() throws IOException {
+        int b;
+        do {
+            b = read();
+        } while (b >= 0 && Character.isWhitespace(b));
+        return b;
+    }
+
+    private void append(int b) {
+        if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, token.length * 2);
+        }
+        token[tokenLength++] = (byte) b;
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private static String describe(int b) {
+        return b < 0 ? "the end of the stream" : "'" + (char) b + "'";
+    }
+}
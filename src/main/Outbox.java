@@ -0,0 +1,287 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class Outbox implements Closeable {
+    private static final byte PUT_RECORD = 'P';
+    private static final byte ACK_RECORD = 'A';
+    private static final byte CLOCK_RECORD = 'C';
+    private static final byte SENDER_RECORD = 'S';
+    public static final int COMPACT_RECORDS = Integer.getInteger("outbox.compact", 1000); // Dead records tolerated before the log is rewritten
+
+    private final Path path;
+    private FileChannel channel;
+    private final Map<String, Entry> pending = new LinkedHashMap<>(); // Latest unacknowledged entry per station, in log order
+    private long nextSeq = 1;
+    private int maxLamport = 0;
+    private String senderId; // Identifies the content server writing this outbox, across restarts
+    private int deadRecords = 0; // Records in the log that no longer describe a pending entry
+
+    /**
+     * Opens (or creates) the append-only outbox log at the given path and replays it,
+     * so entries that were not acknowledged before a restart are sent again.
+     *
+     * @param path The outbox log file.
+     * @throws IOException If the log cannot be opened or read.
+     */
+    public Outbox(Path path) throws IOException {
+        this.path = path;
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validLength = replay();
+        channel.truncate(validLength); // Drop a record torn by a crash mid-append
+        channel.position(validLength);
+        if (senderId == null) {
+            senderId = UUID.randomUUID().toString();
+            write(channel, senderRecord());
+            channel.force(false);
+        }
+        if (deadRecords >= COMPACT_RECORDS) {
+            compact();
+        }
+        if (!pending.isEmpty()) {
+            System.out.println("Outbox " + path + " has " + pending.size() + " pending update(s)");
+        }
+    }
+
+    /**
+     * Records a PUT in the outbox. Any pending entry for the same station is superseded,
+     * so a long outage only ever replays the latest reading of each station.
+     *
+     * @param stationId The station the data belongs to.
+     * @param lamport The Lamport timestamp of the PUT.
+     * @param jsonData The JSON document to send.
+     * @return The new outbox entry.
+     * @throws IOException If the record cannot be written durably.
+     */
+    public synchronized Entry append(String stationId, int lamport, String jsonData) throws IOException {
+        Entry entry = new Entry(nextSeq++, lamport, stationId, jsonData);
+        write(channel, putRecord(entry));
+        channel.force(false);
+
+        if (pending.remove(stationId) != null) {
+            System.out.println("Coalesced pending update for " + stationId);
+            deadRecords++;
+        }
+        pending.put(stationId, entry);
+        maxLamport = Math.max(maxLamport, lamport);
+        compactIfNeeded();
+        return entry;
+    }
+
+    /**
+     * Returns up to max pending entries in the order they were recorded.
+     *
+     * @param max The largest number of entries to return.
+     * @return The oldest pending entries.
+     */
+    public synchronized List<Entry> pending(int max) {
+        List<Entry> batch = new ArrayList<>();
+        Iterator<Entry> it = pending.values().iterator();
+        while (it.hasNext() && batch.size() < max) {
+            batch.add(it.next());
+        }
+        return batch;
+    }
+
+    /**
+     * Marks an entry as delivered by appending an acknowledgement to the log. Delivered readings,
+     * like readings superseded during an outage, leave dead records behind, and the log is
+     * compacted once COMPACT_RECORDS of them pile up; it never holds much more than the latest
+     * reading of each station.
+     *
+     * @param entry The delivered entry.
+     * @throws IOException If the acknowledgement cannot be written.
+     */
+    public synchronized void acknowledge(Entry entry) throws IOException {
+        if (pending.get(entry.stationId) != entry) {
+            return; // Already superseded by a newer reading, which is still pending
+        }
+        pending.remove(entry.stationId);
+
+        write(channel, ByteBuffer.allocate(1 + 8).put(ACK_RECORD).putLong(entry.seq));
+        channel.force(false);
+        deadRecords += 2; // The entry's PUT record and its acknowledgement
+        compactIfNeeded();
+    }
+
+    /**
+     * Returns the number of entries waiting to be delivered.
+     *
+     * @return The pending entry count.
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the sender ID kept in the outbox. It is created with the outbox and survives
+     * restarts, like the Lamport clock, so the server can tell this content server's PUTs apart
+     * from other senders' whichever run sent them.
+     *
+     * @return The sender ID.
+     */
+    public synchronized String getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * Returns the highest Lamport timestamp ever recorded, used to restore the
+     * content server's clock after a restart.
+     *
+     * @return The highest recorded Lamport timestamp.
+     */
+    public synchronized int getMaxLamport() {
+        return maxLamport;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (deadRecords >= COMPACT_RECORDS && deadRecords > pending.size()) { // Rewriting costs no more than the dead records it drops
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log as the clock and sender ID records followed by the pending entries. The new
+     * log is written to a temporary file and moved over the old one, so a crash leaves either log
+     * whole and neither the clock nor the sender ID is ever lost.
+     *
+     * @throws IOException If the new log cannot be written or moved into place.
+     */
+    private void compact() throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(out, ByteBuffer.allocate(1 + 4).put(CLOCK_RECORD).putInt(maxLamport));
+            write(out, senderRecord());
+            for (Entry entry : pending.values()) {
+                write(out, putRecord(entry));
+            }
+            out.force(false);
+        }
+        channel.close();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        deadRecords = 0;
+    }
+
+    private ByteBuffer senderRecord() {
+        byte[] sender = senderId.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 4 + sender.length).put(SENDER_RECORD).putInt(sender.length).put(sender);
+    }
+
+    private static ByteBuffer putRecord(Entry entry) {
+        byte[] station = entry.stationId.getBytes(StandardCharsets.UTF_8);
+        byte[] json = entry.jsonData.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer record = ByteBuffer.allocate(1 + 8 + 4 + 4 + station.length + 4 + json.length);
+        record.put(PUT_RECORD).putLong(entry.seq).putInt(entry.lamport);
+        record.putInt(station.length).put(station);
+        record.putInt(json.length).put(json);
+        return record;
+    }
+
+    private static void write(FileChannel to, ByteBuffer record) throws IOException {
+        record.flip();
+        while (record.hasRemaining()) {
+            to.write(record);
+        }
+    }
+
+    /**
+     * Reads every complete record in the log, rebuilding the pending entries.
+     *
+     * @return The length of the valid prefix of the log.
+     * @throws IOException If the log cannot be read.
+     */
+    private long replay() throws IOException {
+        Map<Long, Entry> bySeq = new LinkedHashMap<>();
+        long validLength = 0;
+        int records = 0;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        try {
+            while (true) {
+                byte type = in.readByte();
+                long length;
+                if (type == PUT_RECORD) {
+                    long seq = in.readLong();
+                    int lamport = in.readInt();
+                    byte[] station = new byte[in.readInt()];
+                    in.readFully(station);
+                    byte[] json = new byte[in.readInt()];
+                    in.readFully(json);
+                    Entry entry = new Entry(seq, lamport, new String(station, StandardCharsets.UTF_8), new String(json, StandardCharsets.UTF_8));
+                    bySeq.put(seq, entry);
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                    maxLamport = Math.max(maxLamport, lamport);
+                    length = 1 + 8 + 4 + 4 + station.length + 4 + json.length;
+                } else if (type == ACK_RECORD) {
+                    bySeq.remove(in.readLong());
+                    length = 1 + 8;
+                } else if (type == SENDER_RECORD) {
+                    byte[] sender = new byte[in.readInt()];
+                    in.readFully(sender);
+                    senderId = new String(sender, StandardCharsets.UTF_8);
+                    length = 1 + 4 + sender.length;
+                } else if (type == CLOCK_RECORD) {
+                    maxLamport = Math.max(maxLamport, in.readInt());
+                    length = 1 + 4;
+                } else {
+                    System.out.println("Corrupt outbox record in " + path + ", ignoring the rest of the log");
+                    break;
+                }
+                validLength += length;
+                if (type == PUT_RECORD || type == ACK_RECORD) {
+                    records++;
+                }
+            }
+        } catch (EOFException e) {
+            // End of log, or a record torn by a crash mid-append
+        }
+
+        // Coalesce: later entries for a station replace earlier ones
+        for (Entry entry : bySeq.values()) {
+            pending.remove(entry.stationId);
+            pending.put(entry.stationId, entry);
+        }
+        deadRecords = records - pending.size();
+        return validLength;
+    }
+
+    /**
+     * A single recorded PUT.
+     */
+    public static class Entry {
+        public final long seq;
+        public final int lamport;
+        public final String stationId;
+        public final String jsonData;
+
+        Entry(long seq, int lamport, String stationId, String jsonData) {
+            this.seq = seq;
+            this.lamport = lamport;
+            this.stationId = stationId;
+            this.jsonData = jsonData;
+        }
+    }
+}
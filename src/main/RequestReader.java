@@ -0,0 +1,858 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RequestReader implements Closeable {
+    public static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED = 64; // Buffers kept for reuse, enough for a busy thread pool
+
+    private static final Queue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private static final byte[] PUT = bytes("PUT");
+    private static final byte[] PATCH = bytes("PATCH");
+    private static final byte[] GET = bytes("GET");
+    private static final byte[] HEARTBEAT = bytes("HEARTBEAT");
+    private static final byte[] HEARTBEATS = bytes("HEARTBEATS");
+    private static final byte[] HTTP_11 = bytes(" HTTP/1.1");
+    private static final byte[] CONTENT_LENGTH = bytes("content-length:");
+    private static final byte[] TRANSFER_ENCODING = bytes("transfer-encoding:");
+    private static final byte[] CONNECTION = bytes("connection:");
+    private static final byte[] CHUNKED = bytes("chunked");
+    private static final byte[] CLOSE = bytes("close");
+
+    private final InputStream in;
+    private final int maxBody; // Largest body accepted, so a client can't make the reader allocate at will
+    private byte[] buffer;
+    private int position = 0; // Next unread byte
+    private int limit = 0; // End of the bytes read so far
+    private int mark = -1; // Start of a region that must survive a refill, -1 if none
+    private int lineStart, lineEnd; // The last line read, without its line terminator
+    private int sliceStart, sliceEnd; // The last block of headers or body read
+    private int contentLength = -1;
+    private boolean chunked = false; // Transfer-Encoding: chunked
+    private boolean connectionClose = false; // Connection: close
+    private boolean http11 = false; // The request line ended with HTTP/1.1, so it has framed bodies and keep-alive
+
+    /**
+     * Creates a reader over a client's input, borrowing a buffer from the shared pool. Bodies of
+     * any size are accepted, e.g. for a client reading a server's responses.
+     *
+     * @param in The client's input stream.
+     */
+    public RequestReader(InputStream in) {
+        this(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a reader that refuses bodies larger than the given size, for a server reading
+     * requests from untrusted clients. The size is checked against Content-Length and chunk sizes
+     * before any buffer is grown for them; a body of lines, or a header block, may not grow the
+     * buffer more than that size either.
+     *
+     * @param in The client's input stream.
+     * @param maxBody The largest body accepted, in bytes.
+     */
+    public RequestReader(InputStream in, int maxBody) {
+        this.in = in;
+        this.maxBody = maxBody;
+        byte[] pooledBuffer = pool.poll();
+        if (pooledBuffer != null) {
+            pooled.decrementAndGet();
+        }
+        this.buffer = pooledBuffer != null ? pooledBuffer : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Reads the request type line, skipping blank lines left between requests. Known request
+     * types are returned as the constant strings "PUT", "PATCH", "GET", "HEARTBEAT" and "HEARTBEATS"
+     * without allocating.
+     * A type followed by " HTTP/1.1" (e.g. "GET HTTP/1.1") marks a request with framed bodies
+     * that may keep the connection alive, see isHttp11.
+     *
+     * @return The request type, or null at the end of the stream.
+     * @throws IOException If an error occurs while reading.
+     */
+    public String readRequestType() throws IOException {
+        do {
+            if (!readLine()) {
+                return null;
+            }
+        } while (lineEnd == lineStart);
+
+        http11 = lineEndsWith(HTTP_11);
+        connectionClose = false;
+        int end = http11 ? lineEnd - HTTP_11.length : lineEnd;
+        if (matches(PUT, end)) {
+            return "PUT";
+        } else if (matches(PATCH, end)) {
+            return "PATCH";
+        } else if (matches(GET, end)) {
+            return "GET";
+        } else if (matches(HEARTBEAT, end)) {
+            return "HEARTBEAT";
+        } else if (matches(HEARTBEATS, end)) {
+            return "HEARTBEATS";
+        }
+        return lineString();
+    }
+
+    /**
+     * Checks whether the last request line was marked HTTP/1.1. Such requests send a header
+     * block after a GET target, have bodies delimited by Content-Length or chunked encoding,
+     * and keep the connection open for further requests unless they send Connection: close.
+     *
+     * @return True for an HTTP/1.1 request.
+     */
+    public boolean isHttp11() {
+        return http11;
+    }
+
+    /**
+     * Reads a line holding a decimal integer, such as the Lamport clock.
+     *
+     * @return The integer.
+     * @throws IOException If an error occurs while reading.
+     * @throws NumberFormatException If the line is missing or not an integer.
+     */
+    public int readInt() throws IOException {
+        if (!readLine()) {
+            throw new NumberFormatException("Expected a number, reached the end of the request");
+        }
+        int i = lineStart;
+        while (i < lineEnd && buffer[i] == ' ') {
+            i++;
+        }
+        return parseInt(i, lineEnd);
+    }
+
+    /**
+     * Reads a line as a String, for values that are needed as text such as a GET target.
+     *
+     * @return The line, or null at the end of the stream.
+     * @throws IOException If an error occurs while reading.
+     */
+    public String readLineString() throws IOException {
+        return readLine() ? lineString() : null;
+    }
+
+    /**
+     * Reads a line and returns the part between its last '/' and last '.', e.g. the station ID
+     * of "src/main/content/IDS60901.txt".
+     *
+     * @return The file name without its directory and extension, or null at the end of the stream.
+     * @throws IOException If an error occurs while reading.
+     */
+    public String readFileId() throws IOException {
+        if (!readLine()) {
+            return null;
+        }
+        int start = lineStart, end = lineEnd;
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (buffer[i] == '/') {
+                start = i + 1;
+            } else if (buffer[i] == '.') {
+                end = i;
+            }
+        }
+        return new String(buffer, start, Math.max(end, start) - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads header lines up to the blank line that ends them, noting the Content-Length header.
+     * The headers stay in the buffer and can be printed with printSlice.
+     *
+     * @return The number of header lines.
+     * @throws IOException If an error occurs while reading.
+     */
+    public int readHeaders() throws IOException {
+        contentLength = -1;
+        chunked = false;
+        int count = 0;
+        mark = position;
+        try {
+            while (readLine() && lineEnd > lineStart) {
+                count++;
+                if (lineStartsWithIgnoreCase(CONTENT_LENGTH)) {
+                    int i = lineStart + CONTENT_LENGTH.length;
+                    while (i < lineEnd && buffer[i] == ' ') {
+                        i++;
+                    }
+                    try {
+                        contentLength = parseInt(i, lineEnd);
+                    } catch (NumberFormatException e) {
+                        contentLength = -1;
+                    }
+                } else if (lineStartsWithIgnoreCase(TRANSFER_ENCODING)) {
+                    chunked = lineContainsIgnoreCase(CHUNKED);
+                } else if (lineStartsWithIgnoreCase(CONNECTION)) {
+                    connectionClose = lineContainsIgnoreCase(CLOSE);
+                }
+            }
+            sliceStart = mark;
+            sliceEnd = count == 0 ? mark : lineStart; // Up to the blank line
+        } finally {
+            mark = -1;
+        }
+        return count;
+    }
+
+    /**
+     * Reads a body made of the lines up to the next blank line, as sent by the content server.
+     * The body stays in the buffer as a slice ending with the last line's newline.
+     *
+     * @return The length of the body in bytes, 0 if it is empty.
+     * @throws BodyTooLargeException If the body is larger than the reader accepts.
+     * @throws IOException If an error occurs while reading.
+     */
+    public int readBody() throws IOException {
+        mark = position;
+        try {
+            boolean any = false;
+            boolean crlf = false;
+            while (readLine() && lineEnd > lineStart) {
+                any = true;
+                crlf |= position - lineEnd == 2;
+                if (position - mark > maxBody) {
+                    throw new BodyTooLargeException(position - mark, maxBody);
+                }
+            }
+            sliceStart = mark;
+            sliceEnd = any ? lineStart : mark; // Up to the blank line, or the end of the stream
+            if (any && buffer[sliceEnd - 1] != '\n') {
+                ensureNewlineAtEnd(); // The last line had no terminator
+            }
+            if (crlf) {
+                normaliseLineEndings();
+            }
+        } finally {
+            mark = -1;
+        }
+        return sliceEnd - sliceStart;
+    }
+
+    /**
+     * Reads a body of exactly the given length. The buffer is grown once to fit the whole body
+     * if needed, rather than line by line.
+     *
+     * @param length The body length in bytes, e.g. from Content-Length.
+     * @return The length.
+     * @throws BodyTooLargeException If the length is larger than the reader accepts; nothing is read.
+     * @throws IOException If an error occurs while reading, or the stream ends early.
+     */
+    public int readBody(int length) throws IOException {
+        if (length > maxBody) {
+            throw new BodyTooLargeException(length, maxBody);
+        }
+        mark = position;
+        try {
+            ensureAvailable(length);
+            sliceStart = mark;
+            sliceEnd = mark + length;
+            position = sliceEnd;
+        } finally {
+            mark = -1;
+        }
+        return length;
+    }
+
+    /**
+     * Reads a body sent with chunked transfer encoding: chunks of "&lt;hex size&gt;\r\n&lt;data&gt;\r\n"
+     * ended by a chunk of size 0 and optional trailer lines. The chunk data is joined in place
+     * into a single slice.
+     *
+     * @return The length of the body in bytes.
+     * @throws BodyTooLargeException If the chunks add up to more than the reader accepts.
+     * @throws IOException If an error occurs while reading, or the encoding is malformed.
+     */
+    public int readChunkedBody() throws IOException {
+        mark = position;
+        sliceStart = sliceEnd = position;
+        try {
+            while (true) {
+                if (!readLine()) {
+                    throw new EOFException("Chunked body ended early");
+                }
+                int size = parseHex(lineStart, lineEnd);
+                if (size == 0) {
+                    while (readLine() && lineEnd > lineStart) {
+                        // Skip trailer headers
+                    }
+                    break;
+                }
+                if (size > maxBody - (sliceEnd - sliceStart)) {
+                    throw new BodyTooLargeException((long) sliceEnd - sliceStart + size, maxBody);
+                }
+                ensureAvailable(size);
+                System.arraycopy(buffer, position, buffer, sliceEnd, size); // Close the gap left by the size line
+                sliceEnd += size;
+                position += size;
+                if (!readLine() || lineEnd != lineStart) {
+                    throw new IOException("Malformed chunk");
+                }
+            }
+        } finally {
+            mark = -1;
+        }
+        return sliceEnd - sliceStart;
+    }
+
+    /**
+     * Reads the body announced by the last headers read: exactly Content-Length bytes or a
+     * chunked body for an HTTP/1.1 message, and lines up to a blank line otherwise.
+     *
+     * @return The length of the body in bytes.
+     * @throws IOException If an error occurs while reading.
+     */
+    public int readFramedBody() throws IOException {
+        if (chunked) {
+            return readChunkedBody();
+        } else if (http11 && contentLength >= 0) {
+            return readBody(contentLength);
+        }
+        return readBody();
+    }
+
+    /**
+     * Reads the rest of the stream as the body, for responses delimited by closing the connection.
+     *
+     * @return The length of the body in bytes.
+     * @throws IOException If an error occurs while reading.
+     */
+    public int readToEnd() throws IOException {
+        mark = position;
+        try {
+            while (fill() >= 0) {
+                // Keep reading until the stream ends
+            }
+            sliceStart = mark;
+            sliceEnd = limit;
+            position = limit;
+        } finally {
+            mark = -1;
+        }
+        return sliceEnd - sliceStart;
+    }
+
+    /**
+     * Returns the body announced by the last headers read as a stream, instead of reading it into
+     * the buffer whole: exactly Content-Length bytes, the data of a chunked body, or the rest of the
+     * stream if neither was given. Bytes are handed out as they arrive, so a body of any size is
+     * read in the buffer's constant space. Closing the stream skips what is left of the body.
+     *
+     * @return The body stream, valid until the next read from this reader.
+     */
+    public InputStream bodyStream() {
+        return new BodyStream(chunked, chunked ? 0 : contentLength);
+    }
+
+    /**
+     * Checks whether the last headers read announced a chunked body.
+     *
+     * @return True for Transfer-Encoding: chunked.
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * Checks whether the last request asked for the connection to be closed after the response.
+     *
+     * @return True for Connection: close.
+     */
+    public boolean isConnectionClose() {
+        return connectionClose;
+    }
+
+    /**
+     * Returns the Content-Length header of the last headers read.
+     *
+     * @return The length, or -1 if there was none.
+     */
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns the length of the last headers or body read.
+     *
+     * @return The length in bytes.
+     */
+    public int getSliceLength() {
+        return sliceEnd - sliceStart;
+    }
+
+    /**
+     * Decodes the last headers or body read.
+     *
+     * @return The slice as text.
+     */
+    public String sliceString() {
+        return new String(buffer, sliceStart, sliceEnd - sliceStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Prints the last headers or body read, as raw bytes.
+     *
+     * @param out The stream to print to.
+     */
+    public void printSlice(PrintStream out) {
+        out.write(buffer, sliceStart, sliceEnd - sliceStart);
+    }
+
+    /**
+     * Writes the last headers or body read to a channel, e.g. a file, without decoding it.
+     *
+     * @param channel The channel to write to.
+     * @throws IOException If an error occurs while writing.
+     */
+    public void writeSlice(WritableByteChannel channel) throws IOException {
+        ByteBuffer slice = sliceBuffer();
+        while (slice.hasRemaining()) {
+            channel.write(slice);
+        }
+    }
+
+    /**
+     * Wraps the last block read without copying it. The buffer is only valid until the next read.
+     *
+     * @return A buffer over the last headers or body read.
+     */
+    public ByteBuffer sliceBuffer() {
+        return ByteBuffer.wrap(buffer, sliceStart, sliceEnd - sliceStart);
+    }
+
+    /**
+     * Splits the last body read into its lines, e.g. the station IDs of a batched heartbeat.
+     *
+     * @return The non-blank lines without surrounding spaces.
+     */
+    public List<String> sliceLines() {
+        return lines(buffer, sliceStart, sliceEnd);
+    }
+
+    /**
+     * Splits a range of bytes into its lines.
+     *
+     * @param bytes The bytes, e.g. a datagram.
+     * @param from The first byte.
+     * @param to The end of the range, exclusive.
+     * @return The non-blank lines without surrounding spaces.
+     */
+    public static List<String> lines(byte[] bytes, int from, int to) {
+        List<String> lines = new ArrayList<>();
+        int start = from;
+        while (start < to) {
+            int end = start;
+            while (end < to && bytes[end] != '\n') {
+                end++;
+            }
+            int first = start, last = end;
+            while (first < last && bytes[first] <= ' ') {
+                first++;
+            }
+            while (last > first && bytes[last - 1] <= ' ') {
+                last--;
+            }
+            if (last > first) {
+                lines.add(new String(bytes, first, last - first, StandardCharsets.UTF_8));
+            }
+            start = end + 1;
+        }
+        return lines;
+    }
+
+    /**
+     * Looks up a header in the last headers read. Only the headers tracked by readHeaders are
+     * decoded as they are read; any other header is found by scanning the headers again.
+     *
+     * @param name The header name, e.g. "Sender-ID".
+     * @return The header's value without surrounding spaces, or null if there is no such header.
+     */
+    public String header(String name) {
+        byte[] prefix = bytes(name.toLowerCase() + ":");
+        int start = sliceStart;
+        while (start < sliceEnd) {
+            int end = start;
+            while (end < sliceEnd && buffer[end] != '\n') {
+                end++;
+            }
+            int valueEnd = end > start && buffer[end - 1] == '\r' ? end - 1 : end;
+            if (valueEnd - start >= prefix.length && startsWithIgnoreCase(start, prefix)) {
+                return new String(buffer, start + prefix.length, valueEnd - start - prefix.length, StandardCharsets.UTF_8).trim();
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Hashes the last headers or body read, without decoding it.
+     *
+     * @return The 64-bit FNV-1a hash of the slice.
+     */
+    public long sliceHash() {
+        return hash(buffer, sliceStart, sliceEnd);
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a hash of a range of bytes, the same hash as sliceHash.
+     *
+     * @param bytes The bytes to hash.
+     * @param from The first byte to hash.
+     * @param to The end of the range, exclusive.
+     * @return The hash.
+     */
+    public static long hash(byte[] bytes, int from, int to) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the buffer to the pool. The underlying stream is left open.
+     */
+    @Override
+    public void close() {
+        if (buffer != null && buffer.length == BUFFER_SIZE && pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.offer(buffer);
+        } else if (buffer != null && buffer.length == BUFFER_SIZE) {
+            pooled.decrementAndGet();
+        }
+        buffer = null;
+    }
+
+    /**
+     * Reads the next line into lineStart and lineEnd. A line ends with "\n" or "\r\n"; a last
+     * line without a terminator is returned at the end of the stream.
+     *
+     * @return False at the end of the stream.
+     */
+    private boolean readLine() throws IOException {
+        int scan = position;
+        while (true) {
+            for (; scan < limit; scan++) {
+                if (buffer[scan] == '\n') {
+                    lineStart = position;
+                    lineEnd = (scan > position && buffer[scan - 1] == '\r') ? scan - 1 : scan;
+                    position = scan + 1;
+                    return true;
+                }
+            }
+            int shift = fill();
+            if (shift < 0) { // End of the stream
+                if (position == limit) {
+                    lineStart = lineEnd = position;
+                    return false;
+                }
+                lineStart = position;
+                lineEnd = limit;
+                position = limit;
+                return true;
+            }
+            scan -= shift;
+        }
+    }
+
+    /**
+     * Reads more bytes, first moving the unread bytes (or the marked region) to the front of
+     * the buffer and growing it if it is full.
+     *
+     * @return How far existing bytes moved towards the front, or -1 at the end of the stream.
+     */
+    private int fill() throws IOException {
+        int keep = mark >= 0 ? mark : position;
+        int shift = 0;
+        if (limit == buffer.length) {
+            if (keep > 0) {
+                System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+                shift = keep;
+                position -= shift;
+                limit -= shift;
+                lineStart -= shift;
+                lineEnd -= shift;
+                if (mark >= 0) {
+                    mark -= shift;
+                    sliceStart -= shift; // A slice being built lies after the mark
+                    sliceEnd -= shift;
+                }
+            } else {
+                if (buffer.length - BUFFER_SIZE >= maxBody) { // A line or block that never ends
+                    throw new BodyTooLargeException(buffer.length, maxBody);
+                }
+                byte[] larger = new byte[buffer.length * 2]; // A single request larger than the buffer
+                System.arraycopy(buffer, 0, larger, 0, limit);
+                buffer = larger;
+            }
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            return -1;
+        }
+        limit += read;
+        return shift;
+    }
+
+    /**
+     * Makes sure the next count bytes are in the buffer, growing it once to the size needed.
+     */
+    private void ensureAvailable(int count) throws IOException {
+        int keep = mark >= 0 ? mark : position;
+        int needed = (limit - keep) + (count - (limit - position));
+        if (needed > buffer.length) {
+            byte[] larger = new byte[needed];
+            System.arraycopy(buffer, keep, larger, 0, limit - keep);
+            position -= keep;
+            limit -= keep;
+            lineStart -= keep;
+            lineEnd -= keep;
+            sliceStart -= keep;
+            sliceEnd -= keep;
+            if (mark >= 0) {
+                mark -= keep;
+            }
+            buffer = larger;
+        }
+        while (limit - position < count) {
+            if (fill() < 0) {
+                throw new EOFException("Expected " + count + " bytes, the stream ended after " + (limit - position));
+            }
+        }
+    }
+
+    private void ensureNewlineAtEnd() throws IOException {
+        if (sliceEnd == buffer.length) {
+            mark = sliceStart;
+            fill(); // Only moves or grows the buffer, the stream is already exhausted
+            sliceStart = mark;
+            sliceEnd = limit;
+        }
+        buffer[sliceEnd++] = '\n';
+        limit = Math.max(limit, sliceEnd);
+        position = limit;
+    }
+
+    private void normaliseLineEndings() {
+        int write = sliceStart;
+        for (int read = sliceStart; read < sliceEnd; read++) {
+            if (buffer[read] == '\r' && read + 1 < sliceEnd && buffer[read + 1] == '\n') {
+                continue;
+            }
+            buffer[write++] = buffer[read];
+        }
+        sliceEnd = write;
+    }
+
+    private int parseInt(int start, int end) {
+        boolean negative = start < end && buffer[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) {
+            throw new NumberFormatException("Expected a number");
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                throw new NumberFormatException("Expected a number, got " + new String(buffer, start, end - start, StandardCharsets.UTF_8));
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Number out of range");
+        }
+        return (int) value;
+    }
+
+    private int parseHex(int start, int end) throws IOException {
+        long value = 0;
+        int i = start;
+        for (; i < end && buffer[i] != ';'; i++) { // Ignore chunk extensions
+            int digit = Character.digit(buffer[i], 16);
+            if (digit < 0 || value > Integer.MAX_VALUE) {
+                throw new IOException("Malformed chunk size");
+            }
+            value = value * 16 + digit;
+        }
+        if (i == start || value > Integer.MAX_VALUE) {
+            throw new IOException("Malformed chunk size");
+        }
+        return (int) value;
+    }
+
+    private boolean matches(byte[] expected, int end) {
+        if (end - lineStart != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer[lineStart + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean lineEndsWith(byte[] suffix) {
+        if (lineEnd - lineStart < suffix.length) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length; i++) {
+            if (buffer[lineEnd - suffix.length + i] != suffix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean lineContainsIgnoreCase(byte[] lowerCase) {
+        for (int start = lineStart; start + lowerCase.length <= lineEnd; start++) {
+            int i = 0;
+            while (i < lowerCase.length && Character.toLowerCase(buffer[start + i]) == lowerCase[i]) {
+                i++;
+            }
+            if (i == lowerCase.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean lineStartsWithIgnoreCase(byte[] lowerCasePrefix) {
+        return lineEnd - lineStart >= lowerCasePrefix.length && startsWithIgnoreCase(lineStart, lowerCasePrefix);
+    }
+
+    private boolean startsWithIgnoreCase(int from, byte[] lowerCasePrefix) {
+        for (int i = 0; i < lowerCasePrefix.length; i++) {
+            int b = buffer[from + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCasePrefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String lineString() {
+        return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Thrown when a request is larger than the reader accepts. The rest of the request is left
+     * unread, so the connection can't be used for further requests.
+     */
+    public static class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BodyTooLargeException(long size, int maxBody) {
+            super("Request body of " + size + " bytes is larger than the limit of " + maxBody + " bytes");
+        }
+    }
+
+    /**
+     * A view of one body over the reader's buffer, see bodyStream.
+     */
+    private class BodyStream extends InputStream {
+        private final boolean chunkedBody;
+        private long remaining; // Bytes left in the body or the current chunk, -1 to read to the end
+        private boolean firstChunk = true;
+        private boolean done = false;
+
+        BodyStream(boolean chunkedBody, long length) {
+            this.chunkedBody = chunkedBody;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextBytes()) {
+                return -1;
+            }
+            if (position == limit && fill() < 0) {
+                if (remaining < 0) {
+                    done = true;
+                    return -1;
+                }
+                throw new EOFException("Body ended early");
+            }
+            int count = Math.min(length, limit - position);
+            if (remaining >= 0) {
+                count = (int) Math.min(count, remaining);
+                remaining -= count;
+            }
+            System.arraycopy(buffer, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            byte[] skip = new byte[1024];
+            while (read(skip, 0, skip.length) >= 0) {
+                // Skip the rest of the body, so the next message can be read
+            }
+        }
+
+        /**
+         * Moves on to the next chunk once the current one is used up.
+         *
+         * @return False at the end of the body.
+         */
+        private boolean nextBytes() throws IOException {
+            if (done) {
+                return false;
+            }
+            if (remaining != 0) {
+                return true;
+            }
+            if (!chunkedBody) {
+                done = true;
+                return false;
+            }
+            if (!firstChunk && (!readLine() || lineEnd != lineStart)) {
+                throw new IOException("Malformed chunk");
+            }
+            firstChunk = false;
+            if (!readLine()) {
+                throw new EOFException("Chunked body ended early");
+            }
+            int size = parseHex(lineStart, lineEnd);
+            if (size == 0) {
+                while (readLine() && lineEnd > lineStart) {
+                    // Skip trailer headers
+                }
+                done = true;
+                return false;
+            }
+            remaining = size;
+            return true;
+        }
+    }
+}
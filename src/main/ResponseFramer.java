@@ -0,0 +1,226 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+public class ResponseFramer extends OutputStream {
+    private static final int CHUNK_SIZE = 8192;
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED_HEADER = "Transfer-Encoding: chunked\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMPTY_BODY = "Content-Length: 0\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private enum State { HEADERS, FIXED, CHUNKED }
+
+    private final OutputStream out;
+    private boolean framing = false; // Only HTTP/1.1 requests get framed responses
+    private State state = State.HEADERS;
+    private boolean sawContentLength = false;
+    private boolean sawStatus = false;
+    private final ByteArrayOutputStream headerLine = new ByteArrayOutputStream(64);
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkLength = 0;
+
+    /**
+     * Wraps a client's output so each response on a kept-alive connection has a known end.
+     *
+     * A response is written as usual: status line, headers, blank line, body. If the headers
+     * carry a Content-Length the body passes straight through; otherwise a Transfer-Encoding:
+     * chunked header is added and the body is sent in chunks, ended by finish(). Legacy
+     * requests are passed through untouched and delimited by closing the connection.
+     *
+     * @param out The client's output stream.
+     */
+    public ResponseFramer(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Creates a writer for responses over this framer. It ends every line with a single "\n",
+     * whatever the platform's line separator, since the Content-Length of a response counts
+     * the line ends written after its data.
+     *
+     * @return A writer that flushes at the end of every line.
+     */
+    public PrintWriter newWriter() {
+        return new PrintWriter(this, true) {
+            @Override
+            public void println() {
+                write('\n');
+                flush();
+            }
+        };
+    }
+
+    /**
+     * Chooses whether the next response is framed.
+     *
+     * @param framing True to frame the response, false to pass it through untouched.
+     */
+    public void setFraming(boolean framing) {
+        this.framing = framing;
+    }
+
+    /**
+     * Sends the first bytes of a file as part of the current response's body. The file goes
+     * from its channel straight to the socket, without being copied onto the heap. In a chunked
+     * response it is sent as a chunk of its own, after any body bytes already buffered.
+     *
+     * @param file The file to send.
+     * @param length The number of bytes to send.
+     * @param socket The channel this framer's stream writes to, e.g. the client socket's channel.
+     * @throws IOException If an error occurs while sending the file.
+     */
+    public void transferFrom(FileChannel file, long length, WritableByteChannel socket) throws IOException {
+        boolean chunked = framing && state == State.CHUNKED;
+        if (chunked) {
+            if (length == 0) {
+                return; // An empty chunk would end the body
+            }
+            emitChunk();
+            out.write((Long.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        out.flush();
+        long position = 0;
+        while (position < length) {
+            position += file.transferTo(position, length - position, socket);
+        }
+        if (chunked) {
+            out.write('\r');
+            out.write('\n');
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (!framing || state == State.FIXED) {
+            out.write(bytes, offset, length);
+            return;
+        }
+        int end = offset + length;
+        int i = offset;
+        while (i < end && state == State.HEADERS) {
+            byte b = bytes[i++];
+            headerLine.write(b);
+            if (b == '\n') {
+                endHeaderLine();
+            }
+        }
+        if (i < end) {
+            if (state == State.FIXED) {
+                out.write(bytes, i, end - i);
+            } else {
+                writeChunked(bytes, i, end - i);
+            }
+        }
+    }
+
+    /**
+     * Flushes what has been written so far. Buffered chunk data is held back until the chunk
+     * is full or the response is finished, so line-by-line writers don't produce tiny chunks.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Ends the current response: sends the last chunk of a chunked body, or an empty body if
+     * the response had no blank line after its headers, and gets ready for the next response.
+     *
+     * @throws IOException If an error occurs while writing.
+     */
+    public void finish() throws IOException {
+        if (framing) {
+            if (state == State.HEADERS) {
+                if (headerLine.size() > 0) {
+                    headerLine.write('\n');
+                    endHeaderLine();
+                }
+                if (state == State.HEADERS && sawStatus) {
+                    out.write(sawContentLength ? new byte[]{'\n'} : EMPTY_BODY);
+                }
+            }
+            if (state == State.CHUNKED) {
+                emitChunk();
+                out.write(LAST_CHUNK);
+            }
+        }
+        state = State.HEADERS;
+        sawContentLength = false;
+        sawStatus = false;
+        headerLine.reset();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void endHeaderLine() throws IOException {
+        byte[] line = headerLine.toByteArray();
+        headerLine.reset();
+        boolean blank = line.length == 1 || (line.length == 2 && line[0] == '\r');
+        if (!blank) {
+            sawStatus = true;
+            sawContentLength |= startsWithIgnoreCase(line, CONTENT_LENGTH);
+            out.write(line);
+        } else if (sawContentLength) {
+            out.write(line);
+            state = State.FIXED;
+        } else {
+            out.write(CHUNKED_HEADER);
+            out.write(line);
+            state = State.CHUNKED;
+        }
+    }
+
+    private void writeChunked(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int copy = Math.min(length, CHUNK_SIZE - chunkLength);
+            System.arraycopy(bytes, offset, chunk, chunkLength, copy);
+            chunkLength += copy;
+            offset += copy;
+            length -= copy;
+            if (chunkLength == CHUNK_SIZE) {
+                emitChunk();
+            }
+        }
+    }
+
+    private void emitChunk() throws IOException {
+        if (chunkLength == 0) {
+            return;
+        }
+        out.write((Integer.toHexString(chunkLength) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(chunk, 0, chunkLength);
+        out.write('\r');
+        out.write('\n');
+        chunkLength = 0;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] line, byte[] lowerCasePrefix) {
+        if (line.length < lowerCasePrefix.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCasePrefix.length; i++) {
+            int b = line[i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCasePrefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Snapshot {
+    private static final int MAGIC = 0x41475353; // "AGSS"
+    private static final int FORMAT_VERSION = 3; // Version 2 added the sender of each station's version, 3 the parsed fields and hash
+
+    public final long savedAt; // When the state was captured, in milliseconds
+    public final long dataModified; // Modification time of the data directory when the state was captured, -1 if unsettled
+    public final int lamportClock;
+    public final Map<String, Entry> entries;
+
+    private Snapshot(long savedAt, long dataModified, int lamportClock, Map<String, Entry> entries) {
+        this.savedAt = savedAt;
+        this.dataModified = dataModified;
+        this.lamportClock = lamportClock;
+        this.entries = entries;
+    }
+
+    /**
+     * Writes the state of the aggregation server to a compact binary file. The snapshot is
+     * written next to the target and moved into place, so a crash mid-write leaves the
+     * previous snapshot intact.
+     *
+     * Layout: magic, format version, saved-at time, data directory modification time, Lamport clock
+     * and station count, then per station its ID, last contact time, version (Lamport timestamp and
+     * sender), JSON document, document hash and parsed fields, so a restore needs neither the station
+     * files nor the JSON parser. The fields are a count, then per field its name's code and its value.
+     * A name is written out in place of its code (as -1 and the name) the first time it appears, and
+     * takes the next code. Strings are length-prefixed UTF-8.
+     *
+     * @param path The snapshot file.
+     * @param savedAt When the state was captured, in milliseconds.
+     * @param dataModified The modification time of the data directory, read before the state was
+     *                     captured, or -1 if it changed too recently to tell later changes apart.
+     * @param lamportClock The server's Lamport clock.
+     * @param records The latest record of every station.
+     * @param lastContact The last contact time of every station.
+     * @param versions The version of every station's latest PUT.
+     * @param hashes The hash of every station's stored document.
+     * @return The number of stations written.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public static int write(Path path, long savedAt, long dataModified, int lamportClock, Map<String, StationRecord> records,
+                            ContactTable lastContact, VersionTable versions, Map<String, Long> hashes) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        // Copy the station list first, so the count in the header matches what is written
+        Map<String, StationRecord> stations = new HashMap<>(records);
+        Map<String, Integer> names = new HashMap<>(); // Field name codes, most stations share their field names
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(savedAt);
+            out.writeLong(dataModified);
+            out.writeInt(lamportClock);
+            out.writeInt(stations.size());
+            for (Map.Entry<String, StationRecord> station : stations.entrySet()) {
+                writeString(out, station.getKey());
+                Long contact = lastContact.get(station.getKey());
+                out.writeLong(contact == null ? savedAt : contact);
+                StationVersion version = versions.get(station.getKey());
+                out.writeInt(version == null ? 0 : version.lamport);
+                writeString(out, version == null ? "" : version.sender);
+                StationRecord record = station.getValue();
+                writeString(out, record.getJson());
+                Long hash = hashes.get(station.getKey());
+                out.writeLong(hash != null ? hash : hash(record.getJson()));
+                out.writeInt(record.size());
+                for (int i = 0; i < record.size(); i++) {
+                    Integer code = names.get(record.key(i));
+                    if (code == null) {
+                        names.put(record.key(i), names.size());
+                        out.writeInt(-1);
+                        writeString(out, record.key(i));
+                    } else {
+                        out.writeInt(code);
+                    }
+                    writeString(out, record.value(i));
+                }
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return stations.size();
+    }
+
+    /**
+     * Loads a snapshot by memory-mapping the file and decoding it in a single pass. Snapshots of
+     * earlier formats hold no parsed fields, so their documents are parsed as they are loaded.
+     *
+     * @param path The snapshot file.
+     * @return The snapshot, or null if there is none or it is not a valid snapshot.
+     */
+    public static Snapshot read(Path path) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int format = buffer.getInt() == MAGIC ? buffer.getInt() : -1;
+            if (format < 1 || format > FORMAT_VERSION) {
+                System.out.println("Ignoring snapshot with an unknown format: " + path);
+                return null;
+            }
+            long savedAt = buffer.getLong();
+            long dataModified = format < 3 ? -1 : buffer.getLong();
+            int lamportClock = buffer.getInt();
+            int count = buffer.getInt();
+            Map<String, Entry> entries = new HashMap<>(count * 4 / 3 + 1);
+            List<String> names = new ArrayList<>();
+            byte[] scratch = new byte[1024]; // Reused to decode each string, grown for longer ones
+            for (int i = 0; i < count; i++) {
+                String id = readString(buffer, scratch);
+                long lastContact = buffer.getLong();
+                int lamport = buffer.getInt();
+                String sender = format == 1 ? "" : readString(buffer, scratch);
+                String json = readString(buffer, scratch);
+                long hash;
+                Map<String, String> fields;
+                if (format < 3) {
+                    hash = hash(json);
+                    fields = JSONParser.parseJSON(json);
+                } else {
+                    hash = buffer.getLong();
+                    int fieldCount = buffer.getInt();
+                    fields = new LinkedHashMap<>(fieldCount * 4 / 3 + 1);
+                    for (int f = 0; f < fieldCount; f++) {
+                        int code = buffer.getInt();
+                        if (code < 0) {
+                            code = names.size();
+                            names.add(readString(buffer, scratch));
+                        }
+                        fields.put(names.get(code), readString(buffer, scratch));
+                    }
+                }
+                entries.put(id, new Entry(lastContact, new StationVersion(lamport, sender), json, hash, fields));
+            }
+            return new Snapshot(savedAt, dataModified, lamportClock, entries);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException | IndexOutOfBoundsException e) {
+            System.out.println("Ignoring unreadable snapshot " + path + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the data directory is as it was when the snapshot was taken. Station files are
+     * only ever created, replaced by a rename or deleted, each of which changes the directory's
+     * modification time, so a single check of the directory stands in for one per station file.
+     *
+     * @param directory The data directory.
+     * @return True if no station file can have changed since the snapshot.
+     */
+    public boolean isCurrent(Path directory) {
+        try {
+            return dataModified >= 0 && Files.getLastModifiedTime(directory).toMillis() == dataModified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static long hash(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return RequestReader.hash(bytes, 0, bytes.length);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getInt();
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The saved state of one station.
+     */
+    public static class Entry {
+        public final long lastContact;
+        public final StationVersion version;
+        public final String json;
+        public final long hash; // Hash of the stored document, as kept by the server
+        public final Map<String, String> fields; // The document's fields in order, as returned by JSONParser.parseJSON
+
+        Entry(long lastContact, StationVersion version, String json, long hash, Map<String, String> fields) {
+            this.lastContact = lastContact;
+            this.version = version;
+            this.json = json;
+            this.hash = hash;
+            this.fields = fields;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SpatialIndex {
+    private static final double EARTH_RADIUS_KM = 6371.0;
+
+    // Grid cell size in degrees. Smaller cells mean fewer candidates per cell but more cells per query.
+    public static final double CELL_DEGREES = Double.parseDouble(System.getProperty("spatial.cell", "0.5"));
+
+    private final int rows = (int) Math.ceil(180 / CELL_DEGREES);
+    private final int columns = (int) Math.ceil(360 / CELL_DEGREES);
+    private final Map<Long, Set<String>> cells = new ConcurrentHashMap<>();
+    private final Map<String, double[]> positions = new ConcurrentHashMap<>(); // {lat, lon} per station
+
+    /**
+     * Adds a station to the index, or moves it if its position changed.
+     *
+     * @param id The station ID.
+     * @param lat The latitude in degrees.
+     * @param lon The longitude in degrees.
+     */
+    public void put(String id, double lat, double lon) {
+        if (Double.isNaN(lat) || Double.isNaN(lon) || Math.abs(lat) > 90 || Math.abs(lon) > 180) {
+            remove(id); // Not a valid position, so the station can't be found spatially
+            return;
+        }
+        long cell = cellOf(lat, lon);
+        double[] previous = positions.put(id, new double[]{lat, lon});
+        if (previous != null) {
+            long previousCell = cellOf(previous[0], previous[1]);
+            if (previousCell == cell) {
+                return;
+            }
+            removeFromCell(previousCell, id);
+        }
+        cells.compute(cell, (key, ids) -> {
+            if (ids == null) {
+                ids = ConcurrentHashMap.newKeySet();
+            }
+            ids.add(id);
+            return ids;
+        });
+    }
+
+    /**
+     * Removes a station from the index.
+     *
+     * @param id The station ID.
+     */
+    public void remove(String id) {
+        double[] previous = positions.remove(id);
+        if (previous != null) {
+            removeFromCell(cellOf(previous[0], previous[1]), id);
+        }
+    }
+
+    /**
+     * Returns the number of indexed stations.
+     *
+     * @return The station count.
+     */
+    public int size() {
+        return positions.size();
+    }
+
+    /**
+     * Finds the k stations closest to a point by great-circle distance, closest first.
+     *
+     * The search scans rings of grid cells outwards from the cell holding the point and
+     * stops as soon as the k-th best distance is no larger than the distance from the point
+     * to anything outside the rings scanned so far, so only nearby cells are visited. If k
+     * is at least the number of stations, it stops as soon as every station has been found.
+     *
+     * @param lat The latitude in degrees.
+     * @param lon The longitude in degrees.
+     * @param k The number of stations to return.
+     * @return The IDs of the closest stations, closest first.
+     */
+    public List<String> nearest(double lat, double lon, int k) {
+        int total = positions.size();
+        if (k <= 0 || total == 0) {
+            return new ArrayList<>();
+        }
+        k = Math.min(k, total); // Once every station is found the scan can stop, wherever they are
+        lon -= 360 * Math.floor((lon + 180) / 360); // Keep the point inside the grid's [-180, 180) range
+
+        // Max-heap of the best candidates so far, furthest on top
+        PriorityQueue<Candidate> best = new PriorityQueue<>(Comparator.comparingDouble((Candidate c) -> c.distance).reversed());
+        BitSet visited = null; // Rings only meet cells already scanned once they wrap around the globe
+        int row = rowOf(lat);
+        int column = columnOf(lon);
+
+        for (int r = 0; ; r++) {
+            if (visited == null && 2 * r + 1 > columns) {
+                visited = new BitSet(rows * columns);
+                for (int y = Math.max(0, row - r + 1); y <= Math.min(rows - 1, row + r - 1); y++) {
+                    for (int dx = -r + 1; dx <= r - 1; dx++) {
+                        visited.set(y * columns + Math.floorMod(column + dx, columns));
+                    }
+                }
+            }
+            for (int dy = -r; dy <= r; dy++) {
+                int y = row + dy;
+                if (y < 0 || y >= rows) {
+                    continue;
+                }
+                // Inner rows of the ring only contribute their two edge cells
+                int step = (Math.abs(dy) == r) ? 1 : Math.max(2 * r, 1);
+                for (int dx = -r; dx <= r; dx += step) {
+                    int cell = y * columns + Math.floorMod(column + dx, columns);
+                    if (visited != null) {
+                        if (visited.get(cell)) {
+                            continue;
+                        }
+                        visited.set(cell);
+                    }
+                    Set<String> ids = cells.get((long) cell);
+                    if (ids == null) {
+                        continue;
+                    }
+                    for (String id : ids) {
+                        double[] position = positions.get(id);
+                        if (position == null) {
+                            continue; // Removed concurrently
+                        }
+                        best.add(new Candidate(id, distanceKm(lat, lon, position[0], position[1])));
+                        if (best.size() > k) {
+                            best.poll();
+                        }
+                    }
+                }
+            }
+
+            double outside = distanceOutside(lat, lon, row, column, r);
+            if (outside == Double.POSITIVE_INFINITY || (best.size() == k && (k == total || best.peek().distance <= outside))) {
+                break;
+            }
+        }
+
+        List<String> result = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            result.add(best.poll().id);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Finds the stations within a latitude/longitude box. If minLon is greater than maxLon the
+     * box is taken to cross the 180th meridian.
+     *
+     * @param minLat The southern edge in degrees.
+     * @param minLon The western edge in degrees.
+     * @param maxLat The northern edge in degrees.
+     * @param maxLon The eastern edge in degrees.
+     * @return The IDs of the stations inside the box.
+     */
+    public List<String> withinBox(double minLat, double minLon, double maxLat, double maxLon) {
+        List<String> result = new ArrayList<>();
+        if (minLat > maxLat) {
+            return result;
+        }
+        boolean wraps = minLon > maxLon;
+        int firstColumn = columnOf(minLon);
+        int columnCount = Math.floorMod(columnOf(maxLon) - firstColumn, columns) + 1;
+        if (!wraps && maxLon - minLon >= 360 - CELL_DEGREES) {
+            columnCount = columns;
+        }
+
+        for (int y = rowOf(minLat); y <= rowOf(maxLat); y++) {
+            for (int i = 0; i < columnCount; i++) {
+                Set<String> ids = cells.get((long) y * columns + (firstColumn + i) % columns);
+                if (ids == null) {
+                    continue;
+                }
+                for (String id : ids) {
+                    double[] position = positions.get(id);
+                    if (position == null || position[0] < minLat || position[0] > maxLat) {
+                        continue;
+                    }
+                    boolean inLon = wraps ? (position[1] >= minLon || position[1] <= maxLon)
+                                          : (position[1] >= minLon && position[1] <= maxLon);
+                    if (inLon) {
+                        result.add(id);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the great-circle distance between two points using the haversine formula.
+     *
+     * @return The distance in kilometres.
+     */
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Returns a lower bound on the distance from the point to any position outside the block of
+     * cells within r rings of the point's cell. The block is bounded by two parallels and two
+     * meridians, so the bound is the distance to the nearest of those edges.
+     *
+     * @return The bound in kilometres, or infinity if the block covers the whole globe.
+     */
+    private double distanceOutside(double lat, double lon, int row, int column, int r) {
+        double bound = Double.POSITIVE_INFINITY;
+        double south = -90 + (row - r) * CELL_DEGREES;
+        double north = -90 + (row + r + 1) * CELL_DEGREES;
+        if (south > -90) {
+            bound = Math.min(bound, Math.toRadians(lat - south));
+        }
+        if (north < 90) {
+            bound = Math.min(bound, Math.toRadians(north - lat));
+        }
+        if ((2 * r + 1) < columns) {
+            double west = -180 + (column - r) * CELL_DEGREES;
+            double east = -180 + (column + r + 1) * CELL_DEGREES;
+            bound = Math.min(bound, distanceToMeridian(lat, lon - west));
+            bound = Math.min(bound, distanceToMeridian(lat, east - lon));
+        }
+        return bound * EARTH_RADIUS_KM;
+    }
+
+    /**
+     * Returns the angular distance from a point to the half meridian deltaLon degrees east or west of it.
+     *
+     * @return The distance in radians.
+     */
+    private static double distanceToMeridian(double lat, double deltaLon) {
+        if (deltaLon >= 90) {
+            return Math.toRadians(90 - Math.abs(lat)); // Closest point of the half meridian is the pole
+        }
+        return Math.asin(Math.cos(Math.toRadians(lat)) * Math.sin(Math.toRadians(deltaLon)));
+    }
+
+    private void removeFromCell(long cell, String id) {
+        cells.computeIfPresent(cell, (key, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    private long cellOf(double lat, double lon) {
+        return (long) rowOf(lat) * columns + columnOf(lon);
+    }
+
+    private int rowOf(double lat) {
+        return Math.min(rows - 1, Math.max(0, (int) Math.floor((lat + 90) / CELL_DEGREES)));
+    }
+
+    private int columnOf(double lon) {
+        return Math.floorMod((int) Math.floor((lon + 180) / CELL_DEGREES), columns);
+    }
+
+    private static class Candidate {
+        final String id;
+        final double distance;
+
+        Candidate(String id, double distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class StateAggregates {
+    // Numeric fields summarised per state
+    public static final String[] FIELDS = {"air_temp", "press"};
+
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final Map<String, Contribution> contributions = new ConcurrentHashMap<>(); // What each station currently adds to its group
+
+    /**
+     * Replaces a station's contribution with its latest reading. The old reading is taken out of
+     * its state's summary and the new one added, so nothing is rescanned. Updates of the same
+     * station are serialised by the contribution map, and each state's summary has its own lock,
+     * so updates of different states never wait for each other.
+     *
+     * @param id The station ID.
+     * @param fields The station's latest fields.
+     */
+    public void put(String id, Map<String, String> fields) {
+        String state = fields.get("state");
+        double[] values = new double[FIELDS.length];
+        for (int f = 0; f < FIELDS.length; f++) {
+            values[f] = JSONParser.parseDouble(fields.get(FIELDS[f]));
+        }
+        Contribution contribution = state == null ? null : new Contribution(state, values);
+
+        contributions.compute(id, (key, previous) -> {
+            if (previous != null) {
+                group(previous.state).subtract(previous.values);
+            }
+            if (contribution != null) {
+                group(state).add(values);
+            }
+            return contribution;
+        });
+    }
+
+    /**
+     * Takes a station out of its state's summary.
+     *
+     * @param id The station ID.
+     */
+    public void remove(String id) {
+        contributions.computeIfPresent(id, (key, previous) -> {
+            group(previous.state).subtract(previous.values);
+            return null;
+        });
+    }
+
+    /**
+     * Writes the summary of every state with reporting stations as a JSON array, ordered by state.
+     *
+     * @param state The state to write, or null for every state.
+     * @param out The writer to send the summaries to.
+     */
+    public void writeTo(String state, PrintWriter out) {
+        out.println("[");
+        boolean first = true;
+        for (String name : new TreeSet<>(groups.keySet())) {
+            if (state != null && !state.equals(name)) {
+                continue;
+            }
+            String summary = groups.get(name).toJson(name);
+            if (summary == null) {
+                continue; // No stations left in this state
+            }
+            out.print((first ? "" : ",\n") + summary);
+            first = false;
+        }
+        out.println();
+        out.println("]");
+    }
+
+    private Group group(String state) {
+        return groups.computeIfAbsent(state, key -> new Group());
+    }
+
+    private static class Contribution {
+        final String state;
+        final double[] values; // NaN where the reading has no value
+
+        Contribution(String state, double[] values) {
+            this.state = state;
+            this.values = values;
+        }
+    }
+
+    /**
+     * The running summary of one state. Counts and sums are adjusted directly; the values are
+     * also kept as a sorted multiset so the min and max survive the removal of the extreme reading.
+     */
+    private static class Group {
+        private int stations = 0;
+        private final int[] counts = new int[FIELDS.length];
+        private final double[] sums = new double[FIELDS.length];
+        private final List<TreeMap<Double, Integer>> values = new ArrayList<>();
+
+        Group() {
+            for (int f = 0; f < FIELDS.length; f++) {
+                values.add(new TreeMap<>());
+            }
+        }
+
+        synchronized void add(double[] reading) {
+            stations++;
+            for (int f = 0; f < FIELDS.length; f++) {
+                if (!Double.isNaN(reading[f])) {
+                    counts[f]++;
+                    sums[f] += reading[f];
+                    values.get(f).merge(reading[f], 1, Integer::sum);
+                }
+            }
+        }
+
+        synchronized void subtract(double[] reading) {
+            stations--;
+            for (int f = 0; f < FIELDS.length; f++) {
+                if (!Double.isNaN(reading[f])) {
+                    counts[f]--;
+                    // Restart the sum from zero once empty, so rounding errors don't accumulate
+                    sums[f] = counts[f] == 0 ? 0 : sums[f] - reading[f];
+                    values.get(f).computeIfPresent(reading[f], (value, count) -> count == 1 ? null : count - 1);
+                }
+            }
+        }
+
+        synchronized String toJson(String state) {
+            if (stations == 0) {
+                return null;
+            }
+            StringBuilder json = new StringBuilder();
+            json.append("  {\"state\": \"").append(JSONParser.escape(state)).append("\", \"stations\": \"").append(stations).append("\"");
+            for (int f = 0; f < FIELDS.length; f++) {
+                if (counts[f] == 0) {
+                    continue;
+                }
+                json.append(", \"").append(FIELDS[f]).append("_count\": \"").append(counts[f]).append("\"");
+                json.append(", \"").append(FIELDS[f]).append("_mean\": \"").append(StationHistory.formatValue(sums[f] / counts[f])).append("\"");
+                json.append(", \"").append(FIELDS[f]).append("_min\": \"").append(StationHistory.formatValue(values.get(f).firstKey())).append("\"");
+                json.append(", \"").append(FIELDS[f]).append("_max\": \"").append(StationHistory.formatValue(values.get(f).lastKey())).append("\"");
+            }
+            json.append("}");
+            return json.toString();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+import java.io.PrintWriter;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.Set;
+
+public class StationHistory {
+    // Numeric fields kept for every reading, in column order
+    public static final String[] FIELDS = {"lat", "lon", "air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh", "wind_spd_kt"};
+
+    // Bounds shared by every station, so memory per station is fixed up front
+    public static final int CAPACITY = Integer.getInteger("history.size", 100);
+    public static final int MAX_AGE_HOURS = Integer.getInteger("history.hours", 0); // 0 keeps readings until CAPACITY is reached
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    private final long[] times = new long[CAPACITY]; // local_date_time_full as a yyyyMMddHHmmss number
+    private final int[] lamports = new int[CAPACITY];
+    private final float[] values = new float[CAPACITY * FIELDS.length]; // One row of FIELDS per reading, NaN if missing
+    private int head = 0; // Slot of the oldest reading
+    private int size = 0;
+
+    /**
+     * Adds a reading to the history. Readings are kept sorted by local_date_time_full and
+     * Lamport timestamp, so a late reading is slotted into place. Once the ring is full the
+     * oldest reading is evicted, and readings more than MAX_AGE_HOURS older than the newest
+     * one are dropped.
+     *
+     * @param time The reading's local_date_time_full as a number.
+     * @param lamport The Lamport timestamp of the PUT that carried the reading.
+     * @param fields The reading's fields.
+     */
+    public synchronized void add(long time, int lamport, Map<String, String> fields) {
+        if (size == CAPACITY) {
+            if (compare(time, lamport, 0) < 0) {
+                return; // Older than everything kept, so it would be evicted straight away
+            }
+            head = (head + 1) % CAPACITY; // Evict the oldest reading
+            size--;
+        }
+
+        // Shift newer readings up by one until the new reading's position is found
+        int pos = size;
+        while (pos > 0 && compare(time, lamport, pos - 1) < 0) {
+            copy(slot(pos - 1), slot(pos));
+            pos--;
+        }
+
+        int slot = slot(pos);
+        times[slot] = time;
+        lamports[slot] = lamport;
+        for (int f = 0; f < FIELDS.length; f++) {
+            values[slot * FIELDS.length + f] = parseValue(fields.get(FIELDS[f]));
+        }
+        size++;
+
+        evictExpired();
+    }
+
+    /**
+     * Returns the number of readings held.
+     *
+     * @return The reading count.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Writes the readings with from <= local_date_time_full <= to as a JSON array, ordered by
+     * local_date_time_full and Lamport timestamp. The matching rows are copied under the lock and
+     * streamed afterwards, so a slow client never holds up writers.
+     *
+     * @param id The station ID, repeated in every reading.
+     * @param from The lower bound, inclusive.
+     * @param to The upper bound, inclusive.
+     * @param fields The numeric fields to write, or null for all of them.
+     * @param out The writer to stream the readings to.
+     */
+    public void writeRange(String id, long from, long to, Set<String> fields, PrintWriter out) {
+        long[] rangeTimes;
+        int[] rangeLamports;
+        float[] rangeValues;
+
+        synchronized (this) {
+            int start = 0;
+            while (start < size && times[slot(start)] < from) {
+                start++;
+            }
+            int end = start;
+            while (end < size && times[slot(end)] <= to) {
+                end++;
+            }
+
+            int count = end - start;
+            rangeTimes = new long[count];
+            rangeLamports = new int[count];
+            rangeValues = new float[count * FIELDS.length];
+            for (int i = 0; i < count; i++) {
+                int slot = slot(start + i);
+                rangeTimes[i] = times[slot];
+                rangeLamports[i] = lamports[slot];
+                System.arraycopy(values, slot * FIELDS.length, rangeValues, i * FIELDS.length, FIELDS.length);
+            }
+        }
+
+        out.println("[");
+        for (int i = 0; i < rangeTimes.length; i++) {
+            out.print("  {\"id\": \"" + id + "\", \"local_date_time_full\": \"" + rangeTimes[i] + "\", \"lamport\": \"" + rangeLamports[i] + "\"");
+            for (int f = 0; f < FIELDS.length; f++) {
+                float value = rangeValues[i * FIELDS.length + f];
+                if (!Float.isNaN(value) && (fields == null || fields.contains(FIELDS[f]))) {
+                    out.print(", \"" + FIELDS[f] + "\": \"" + formatValue(value) + "\"");
+                }
+            }
+            out.println(i < rangeTimes.length - 1 ? "}," : "}");
+        }
+        out.println("]");
+    }
+
+    /**
+     * Parses a local_date_time_full value.
+     *
+     * @param value The value, e.g. "20230715160000".
+     * @return The value as a number, or -1 if it is missing or malformed.
+     */
+    public static long parseTime(String value) {
+        if (value == null || value.length() != 14) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Formats a numeric value the way it appears in station files, so whole numbers
+     * such as rel_hum print as "60" rather than "60.0".
+     *
+     * @param value The value to format.
+     * @return The formatted value.
+     */
+    public static String formatValue(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Float.toString((float) value);
+    }
+
+    private static float parseValue(String value) {
+        if (value == null) {
+            return Float.NaN;
+        }
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+    }
+
+    private void evictExpired() {
+        if (MAX_AGE_HOURS <= 0 || size == 0) {
+            return;
+        }
+        long newest = toEpochSecond(times[slot(size - 1)]);
+        long threshold = newest - MAX_AGE_HOURS * 3600L;
+        while (size > 0 && toEpochSecond(times[head]) < threshold) {
+            head = (head + 1) % CAPACITY;
+            size--;
+        }
+    }
+
+    /**
+     * Converts a local_date_time_full number to seconds, treating the local time as UTC
+     * so that differences between readings of a station are exact.
+     *
+     * @param time The local_date_time_full number.
+     * @return The seconds since the epoch, or 0 if the value is not a valid date.
+     */
+    static long toEpochSecond(long time) {
+        try {
+            return LocalDateTime.parse(Long.toString(time), TIME_FORMAT).toEpochSecond(ZoneOffset.UTC);
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Converts seconds produced by toEpochSecond back to a local_date_time_full number.
+     *
+     * @param epochSecond The seconds since the epoch.
+     * @return The local_date_time_full number.
+     */
+    static long fromEpochSecond(long epochSecond) {
+        return Long.parseLong(LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC).format(TIME_FORMAT));
+    }
+
+    private int compare(long time, int lamport, int index) {
+        int slot = slot(index);
+        if (time != times[slot]) {
+            return Long.compare(time, times[slot]);
+        }
+        return Integer.compare(lamport, lamports[slot]);
+    }
+
+    private void copy(int from, int to) {
+        times[to] = times[from];
+        lamports[to] = lamports[from];
+        System.arraycopy(values, from * FIELDS.length, values, to * FIELDS.length, FIELDS.length);
+    }
+
+    private int slot(int index) {
+        return (head + index) % CAPACITY;
+    }
+}
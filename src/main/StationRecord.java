@@ -0,0 +1,116 @@
+import java.util.Collection;
+import java.util.Map;
+
+public class StationRecord {
+    private final String json; // The document as it was received
+    private final String[] keys;
+    private final String[] values;
+
+    /**
+     * Creates an immutable, pre-parsed record of a station's JSON document.
+     *
+     * @param json The JSON document.
+     * @param fields The document's fields in order, as returned by JSONParser.parseJSON.
+     */
+    public StationRecord(String json, Map<String, String> fields) {
+        this.json = json;
+        this.keys = fields.keySet().toArray(new String[0]);
+        this.values = fields.values().toArray(new String[0]);
+    }
+
+    /**
+     * Parses a JSON document into a record.
+     *
+     * @param json The JSON document.
+     * @return The parsed record.
+     */
+    public static StationRecord parse(String json) {
+        return new StationRecord(json, JSONParser.parseJSON(json));
+    }
+
+    /**
+     * Returns the JSON document as it was received.
+     *
+     * @return The JSON document.
+     */
+    public String getJson() {
+        return json;
+    }
+
+    /**
+     * Returns the value of a field.
+     *
+     * @param key The field name.
+     * @return The value, or null if the record has no such field.
+     */
+    public String get(String key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of fields in the record.
+     *
+     * @return The field count.
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the name of a field, in document order.
+     *
+     * @param index The field's position, from 0 to size() - 1.
+     * @return The field name.
+     */
+    public String key(int index) {
+        return keys[index];
+    }
+
+    /**
+     * Returns the value of a field, in document order.
+     *
+     * @param index The field's position, from 0 to size() - 1.
+     * @return The field value.
+     */
+    public String value(int index) {
+        return values[index];
+    }
+
+    /**
+     * Builds a JSON document holding only the requested fields, in document order and in
+     * the same layout and escaping as JSONParser.convertFileToJSON. Requested fields the record
+     * does not have are left out.
+     *
+     * @param fields The fields to keep, or null to keep every field.
+     * @return The projected JSON document.
+     */
+    public String project(Collection<String> fields) {
+        if (fields == null) {
+            return json.trim();
+        }
+        StringBuilder jsonBuilder = new StringBuilder();
+        jsonBuilder.append("{\n");
+        boolean first = true;
+        for (int i = 0; i < keys.length; i++) {
+            if (!fields.contains(keys[i])) {
+                continue;
+            }
+            if (!first) {
+                jsonBuilder.append(",\n");
+            }
+            first = false;
+            jsonBuilder.append("  \"").append(JSONParser.escape(keys[i]))
+                    .append("\": \"").append(JSONParser.escape(values[i])).append("\""); // Parsed values are unescaped
+        }
+        if (!first) {
+            jsonBuilder.append("\n");
+        }
+        jsonBuilder.append("}");
+        return jsonBuilder.toString();
+    }
+}
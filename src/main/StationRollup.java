@@ -0,0 +1,193 @@
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Map;
+
+public class StationRollup {
+    // Numeric fields rolled up for every window
+    public static final String[] FIELDS = {"air_temp", "press", "rel_hum", "wind_spd_kmh"};
+
+    // Tumbling window sizes in minutes, e.g. -Drollup.windows=60,1440 for hourly and daily rollups
+    public static final int[] WINDOWS = parseWindows(System.getProperty("rollup.windows", "60"));
+    public static final int BUCKETS = Integer.getInteger("rollup.buckets", 24); // Past windows kept per size
+
+    private final long[] starts = new long[WINDOWS.length * BUCKETS]; // Window start in epoch minutes, -1 if unused
+    private final int[] counts = new int[WINDOWS.length * BUCKETS * FIELDS.length];
+    private final double[] mins = new double[WINDOWS.length * BUCKETS * FIELDS.length];
+    private final double[] maxs = new double[WINDOWS.length * BUCKETS * FIELDS.length];
+    private final double[] sums = new double[WINDOWS.length * BUCKETS * FIELDS.length];
+
+    // The last reading counted and each window's count/min/max before it, so a re-PUT of that reading can replace it
+    private long lastTime = -1;
+    private double[] lastValues;
+    private final int[] priorCounts = new int[WINDOWS.length * BUCKETS * FIELDS.length];
+    private final double[] priorMins = new double[WINDOWS.length * BUCKETS * FIELDS.length];
+    private final double[] priorMaxs = new double[WINDOWS.length * BUCKETS * FIELDS.length];
+
+    public StationRollup() {
+        Arrays.fill(starts, -1);
+    }
+
+    /**
+     * Folds a reading into the window of every configured size that contains its
+     * local_date_time_full. A reading that starts a new window recycles the oldest
+     * bucket, and a reading for a window that was already recycled is ignored, so
+     * every update is a constant amount of work.
+     *
+     * A reading with the same local_date_time_full as the last one counted, e.g. a
+     * corrected re-PUT, replaces that reading's contribution instead of being counted
+     * a second time. The min and max go back to what they were before that reading,
+     * which is kept for every window it was counted in.
+     *
+     * @param time The reading's local_date_time_full as a number.
+     * @param fields The reading's fields.
+     */
+    public void add(long time, Map<String, String> fields) {
+        long minute = StationHistory.toEpochSecond(time) / 60;
+        double[] values = new double[FIELDS.length];
+        for (int f = 0; f < FIELDS.length; f++) {
+            values[f] = JSONParser.parseDouble(fields.get(FIELDS[f]));
+        }
+
+        synchronized (this) {
+            boolean replacing = time == lastTime;
+            for (int w = 0; w < WINDOWS.length; w++) {
+                long start = Math.floorDiv(minute, WINDOWS[w]) * WINDOWS[w];
+                int bucket = w * BUCKETS + (int) Math.floorMod(start / WINDOWS[w], (long) BUCKETS);
+
+                if (starts[bucket] > start) {
+                    continue; // The window has already been recycled for a newer one
+                }
+                boolean replace = replacing;
+                if (starts[bucket] != start) {
+                    starts[bucket] = start;
+                    Arrays.fill(counts, bucket * FIELDS.length, (bucket + 1) * FIELDS.length, 0);
+                    replace = false; // Nothing of the last reading is left in a recycled window
+                }
+
+                for (int f = 0; f < FIELDS.length; f++) {
+                    int i = bucket * FIELDS.length + f;
+                    if (replace) { // Take the last reading back out
+                        counts[i] = priorCounts[i];
+                        mins[i] = priorMins[i];
+                        maxs[i] = priorMaxs[i];
+                        if (!Double.isNaN(lastValues[f])) {
+                            sums[i] -= lastValues[f];
+                        }
+                    } else {
+                        priorCounts[i] = counts[i];
+                        priorMins[i] = mins[i];
+                        priorMaxs[i] = maxs[i];
+                    }
+                    if (Double.isNaN(values[f])) {
+                        continue;
+                    }
+                    if (counts[i] == 0) {
+                        mins[i] = values[f];
+                        maxs[i] = values[f];
+                        sums[i] = 0;
+                    } else {
+                        mins[i] = Math.min(mins[i], values[f]);
+                        maxs[i] = Math.max(maxs[i], values[f]);
+                    }
+                    sums[i] += values[f];
+                    counts[i]++;
+                }
+            }
+            lastTime = time;
+            lastValues = values;
+        }
+    }
+
+    /**
+     * Writes the rollups of the station as JSON, oldest window first.
+     *
+     * @param id The station ID.
+     * @param windowMinutes The window size to write, or 0 for every configured size.
+     * @param out The writer to send the rollups to.
+     */
+    public void writeTo(String id, int windowMinutes, PrintWriter out) {
+        long[] startsCopy;
+        int[] countsCopy;
+        double[] minsCopy, maxsCopy, sumsCopy;
+        synchronized (this) {
+            startsCopy = starts.clone();
+            countsCopy = counts.clone();
+            minsCopy = mins.clone();
+            maxsCopy = maxs.clone();
+            sumsCopy = sums.clone();
+        }
+
+        out.println("{");
+        out.println("  \"id\": \"" + id + "\",");
+        out.println("  \"rollups\": [");
+        boolean firstWindow = true;
+        for (int w = 0; w < WINDOWS.length; w++) {
+            if (windowMinutes != 0 && WINDOWS[w] != windowMinutes) {
+                continue;
+            }
+            if (!firstWindow) {
+                out.println(",");
+            }
+            firstWindow = false;
+
+            // Order the used buckets of this window size by start time
+            Integer[] buckets = new Integer[BUCKETS];
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets[b] = w * BUCKETS + b;
+            }
+            Arrays.sort(buckets, (a, b) -> Long.compare(startsCopy[a], startsCopy[b]));
+
+            out.println("    {\"window_minutes\": \"" + WINDOWS[w] + "\", \"windows\": [");
+            boolean firstBucket = true;
+            for (int bucket : buckets) {
+                if (startsCopy[bucket] < 0) {
+                    continue;
+                }
+                if (!firstBucket) {
+                    out.println(",");
+                }
+                firstBucket = false;
+                out.print("      {\"start\": \"" + StationHistory.fromEpochSecond(startsCopy[bucket] * 60) + "\"");
+                for (int f = 0; f < FIELDS.length; f++) {
+                    int i = bucket * FIELDS.length + f;
+                    if (countsCopy[i] == 0) {
+                        continue;
+                    }
+                    out.print(", \"" + FIELDS[f] + "_count\": \"" + countsCopy[i] + "\"");
+                    out.print(", \"" + FIELDS[f] + "_min\": \"" + StationHistory.formatValue(minsCopy[i]) + "\"");
+                    out.print(", \"" + FIELDS[f] + "_max\": \"" + StationHistory.formatValue(maxsCopy[i]) + "\"");
+                    out.print(", \"" + FIELDS[f] + "_avg\": \"" + StationHistory.formatValue(sumsCopy[i] / countsCopy[i]) + "\"");
+                }
+                out.print("}");
+            }
+            out.println();
+            out.print("    ]}");
+        }
+        out.println();
+        out.println("  ]");
+        out.println("}");
+    }
+
+    /**
+     * Checks whether a window size is one of the configured sizes.
+     *
+     * @param windowMinutes The window size in minutes.
+     * @return True if rollups are kept for this size.
+     */
+    public static boolean isWindow(int windowMinutes) {
+        for (int window : WINDOWS) {
+            if (window == windowMinutes) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] parseWindows(String spec) {
+        return Arrays.stream(spec.split(","))
+                .map(String::trim)
+                .mapToInt(Integer::parseInt)
+                .filter(window -> window > 0)
+                .toArray();
+    }
+}
@@ -0,0 +1,40 @@
+public final class StationVersion implements Comparable<StationVersion> {
+    public final int lamport; // Lamport timestamp the PUT was sent with
+    public final String sender; // ID of the content server that sent it, "" if it did not say
+
+    /**
+     * Creates the version of a station's data, as written by one PUT.
+     *
+     * @param lamport The Lamport timestamp of the PUT.
+     * @param sender The sender's ID, or null if it did not send one.
+     */
+    public StationVersion(int lamport, String sender) {
+        this.lamport = lamport;
+        this.sender = sender == null ? "" : sender;
+    }
+
+    /**
+     * Orders versions by Lamport timestamp, breaking ties by sender ID so that concurrent
+     * PUTs from different senders still have a total order.
+     */
+    @Override
+    public int compareTo(StationVersion other) {
+        int order = Integer.compare(lamport, other.lamport);
+        return order != 0 ? order : sender.compareTo(other.sender);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof StationVersion && compareTo((StationVersion) other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * lamport + sender.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return sender.isEmpty() ? String.valueOf(lamport) : lamport + " " + sender;
+    }
+}
@@ -0,0 +1,33 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+public class StripedLocks {
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /**
+     * Creates a fixed set of locks shared out among keys by hash. Memory stays constant however
+     * many stations there are, and with enough stripes two stations rarely share a lock.
+     *
+     * @param stripes The number of locks, rounded up to a power of two.
+     */
+    public StripedLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the lock guarding a key. The same key always gets the same lock.
+     *
+     * @param key The key, e.g. a station ID.
+     * @return The key's lock.
+     */
+    public ReentrantLock forKey(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16; // Spread the high bits, as the low bits pick the stripe
+        return locks[hash & mask];
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class VersionTable {
+    private final Map<String, AtomicReference<StationVersion>> versions = new ConcurrentHashMap<>();
+
+    /**
+     * Moves a station to a newer version if no newer or equal version has been accepted. The
+     * check and the update are a single compare-and-set on the station's entry, so concurrent
+     * PUTs never block each other and exactly one of two racing writers wins.
+     *
+     * @param id The station ID.
+     * @param version The version of the PUT.
+     * @return Null if the version was accepted, otherwise the station's current version.
+     */
+    public StationVersion advance(String id, StationVersion version) {
+        AtomicReference<StationVersion> entry = versions.get(id);
+        if (entry == null) {
+            entry = versions.computeIfAbsent(id, key -> new AtomicReference<>());
+        }
+        while (true) {
+            StationVersion current = entry.get();
+            if (current != null && version.compareTo(current) <= 0) {
+                return current;
+            }
+            if (entry.compareAndSet(current, version)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Undoes an accepted version whose data could not be stored, unless a newer version has
+     * been accepted since.
+     *
+     * @param id The station ID.
+     * @param version The version that was accepted.
+     * @param previous The station's version before it, or null if it had none.
+     */
+    public void rollBack(String id, StationVersion version, StationVersion previous) {
+        AtomicReference<StationVersion> entry = versions.get(id);
+        if (entry != null) {
+            entry.compareAndSet(version, previous);
+        }
+    }
+
+    /**
+     * Sets a station's version unconditionally, e.g. when restoring saved state.
+     *
+     * @param id The station ID.
+     * @param version The version.
+     */
+    public void set(String id, StationVersion version) {
+        versions.computeIfAbsent(id, key -> new AtomicReference<>()).set(version);
+    }
+
+    /**
+     * Returns the version of a station's latest accepted PUT.
+     *
+     * @param id The station ID.
+     * @return The version, or null for an unknown station.
+     */
+    public StationVersion get(String id) {
+        AtomicReference<StationVersion> entry = versions.get(id);
+        return entry == null ? null : entry.get();
+    }
+
+    /**
+     * Forgets a station.
+     *
+     * @param id The station ID.
+     */
+    public void remove(String id) {
+        versions.remove(id);
+    }
+
+    /**
+     * Forgets every station.
+     */
+    public void clear() {
+        versions.clear();
+    }
+}
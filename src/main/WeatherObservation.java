@@ -0,0 +1,158 @@
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+public class WeatherObservation {
+    private String id;
+    private String name;
+    private String state;
+    private String timeZone;
+    private double lat = Double.NaN;
+    private double lon = Double.NaN;
+    private String localDateTime;
+    private long localDateTimeFull = -1;
+    private double airTemp = Double.NaN;
+    private double apparentT = Double.NaN;
+    private String cloud;
+    private double dewpt = Double.NaN;
+    private double press = Double.NaN;
+    private double relHum = Double.NaN;
+    private String windDir;
+    private double windSpdKmh = Double.NaN;
+    private double windSpdKt = Double.NaN;
+
+    /**
+     * Sets a field from its JSON key and string value. Numeric fields are parsed into primitives,
+     * left as NaN (or -1 for the timestamp) when missing or not a number; unknown keys are ignored.
+     *
+     * @param key The JSON key, e.g. "air_temp".
+     * @param value The value as sent.
+     */
+    void set(String key, String value) {
+        switch (key) {
+            case "id" -> id = value;
+            case "name" -> name = value;
+            case "state" -> state = value;
+            case "time_zone" -> timeZone = value;
+            case "lat" -> lat = parseDouble(value);
+            case "lon" -> lon = parseDouble(value);
+            case "local_date_time" -> localDateTime = value;
+            case "local_date_time_full" -> localDateTimeFull = parseLong(value);
+            case "air_temp" -> airTemp = parseDouble(value);
+            case "apparent_t" -> apparentT = parseDouble(value);
+            case "cloud" -> cloud = value;
+            case "dewpt" -> dewpt = parseDouble(value);
+            case "press" -> press = parseDouble(value);
+            case "rel_hum" -> relHum = parseDouble(value);
+            case "wind_dir" -> windDir = value;
+            case "wind_spd_kmh" -> windSpdKmh = parseDouble(value);
+            case "wind_spd_kt" -> windSpdKt = parseDouble(value);
+            default -> { } // Not an observation field, e.g. the distance of a spatial query
+        }
+    }
+
+    /**
+     * Parses a single JSON document into an observation.
+     *
+     * @param json The JSON document, e.g. the body of a GET of one station.
+     * @return The observation, or null if the document holds no object.
+     */
+    public static WeatherObservation parse(String json) {
+        try (ObservationReader reader = new ObservationReader(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))) {
+            return reader.hasNext() ? reader.next() : null;
+        }
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public String getTimeZone() {
+        return timeZone;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+
+    public String getLocalDateTime() {
+        return localDateTime;
+    }
+
+    /**
+     * Returns the observation time as a number, e.g. 20230715160000.
+     *
+     * @return The time, or -1 if the observation has none.
+     */
+    public long getLocalDateTimeFull() {
+        return localDateTimeFull;
+    }
+
+    public double getAirTemp() {
+        return airTemp;
+    }
+
+    public double getApparentT() {
+        return apparentT;
+    }
+
+    public String getCloud() {
+        return cloud;
+    }
+
+    public double getDewpt() {
+        return dewpt;
+    }
+
+    public double getPress() {
+        return press;
+    }
+
+    public double getRelHum() {
+        return relHum;
+    }
+
+    public String getWindDir() {
+        return windDir;
+    }
+
+    public double getWindSpdKmh() {
+        return windSpdKmh;
+    }
+
+    public double getWindSpdKt() {
+        return windSpdKt;
+    }
+
+    @Override
+    public String toString() {
+        return "WeatherObservation{id=" + id + ", localDateTimeFull=" + localDateTimeFull + ", airTemp=" + airTemp + "}";
+    }
+}
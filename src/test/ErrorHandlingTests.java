@@ -9,6 +9,7 @@ import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
 import java.util.logging.Logger;
 
 public class ErrorHandlingTests {
@@ -196,5 +197,98 @@ public class ErrorHandlingTests {
 
 
 
-}
+    // Tests that a content server given several aggregation servers fails over when the preferred one is down.
+    @Test
+    public void testFailover() {
+        String port = "1237";
+        String contentFilePath = "src/main/content/IDS60902.txt";
+
+        // Only the second server in the list is running
+        Thread serverThread = new Thread(() -> {
+            try {
+                AggregationServer.main(new String[]{port});
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        serverThread.start();
+        waitForServerToStart();
+
+        try {
+            runContentServer("1298,localhost:" + port, contentFilePath);
+            Thread.sleep(1000);
+
+            String clientResponse = captureClientOutput(port, "IDS60902");
+            System.err.println("Client Response: " + clientResponse);
+            Assert.assertTrue("Client did not receive the failed over data", clientResponse.contains("HTTP/1.1 200 OK"));
+            Assert.assertTrue("Client did not receive the failed over data", clientResponse.contains("IDS60902"));
+
+            ContentServer.shutdown();
+            AggregationServer.shutdown();
+            serverThread.join();
+        } catch (Exception e) {
+            Assert.fail("Test failed: " + e.getMessage());
+        }
+    }
 
+    // Tests that a restart restores stations from the snapshot with their saved last contact times, and picks up files written after it.
+    // Also tests that an unchanged data directory is not listed at all, and that a changed one is.
+    @Test
+    public void testSnapshotRestore() throws Exception {
+        AggregationServer.RemoveTextFiles();
+        String json = new String(Files.readAllBytes(Paths.get("src/test/weather0check.txt")), StandardCharsets.UTF_8);
+        long lastContact = System.currentTimeMillis() - 120000;
+
+        // A station that was last heard from two minutes ago, with its file unchanged since
+        Path snapshotted = Paths.get("src/main/aggr_data/IDS60901.json");
+        Files.writeString(snapshotted, json);
+        Files.setLastModifiedTime(snapshotted, FileTime.fromMillis(lastContact));
+        AggregationServer.lamportClock = new LamportClock();
+        AggregationServer.lamportClock.update(41);
+        AggregationServer.recordContact("IDS60901", lastContact);
+        AggregationServer.recordReading("IDS60901", new StationVersion(7, "sender-a"), json);
+        AggregationServer.saveSnapshot();
+
+        // A station stored after the snapshot was taken
+        Files.writeString(Paths.get("src/main/aggr_data/IDS60902.json"), json.replace("IDS60901", "IDS60902"));
+
+        AggregationServer.lamportClock = new LamportClock();
+        AggregationServer.restoreState();
+        try {
+            Assert.assertEquals("Last contact should come from the snapshot", lastContact, (long) AggregationServer.lastContactMap.get("IDS60901"));
+            Assert.assertEquals(new StationVersion(7, "sender-a"), AggregationServer.versionMap.get("IDS60901"));
+            Assert.assertTrue("Lamport clock should resume from the snapshot", AggregationServer.getClock() > 41);
+            Assert.assertEquals(json, AggregationServer.recordMap.get("IDS60901").getJson());
+            Assert.assertNotNull("Files newer than the snapshot should be indexed", AggregationServer.recordMap.get("IDS60902"));
+            Assert.assertEquals(2, AggregationServer.columnStore.size());
+
+            // With the data directory as it was when the snapshot was taken, no station file is looked at:
+            // a file removed behind the directory's back still comes back from the snapshot
+            Path directory = Paths.get("src/main/aggr_data");
+            FileTime settled = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+            Files.setLastModifiedTime(directory, settled);
+            long hash = AggregationServer.contentHashMap.get("IDS60902");
+            AggregationServer.saveSnapshot();
+            Files.delete(Paths.get("src/main/aggr_data/IDS60902.json"));
+            Files.setLastModifiedTime(directory, settled);
+            AggregationServer.lamportClock = new LamportClock();
+            AggregationServer.restoreState();
+            Assert.assertNotNull("An unchanged directory should not be listed", AggregationServer.recordMap.get("IDS60902"));
+            Assert.assertEquals(hash, (long) AggregationServer.contentHashMap.get("IDS60902"));
+            Assert.assertEquals(lastContact, (long) AggregationServer.lastContactMap.get("IDS60901"));
+            Assert.assertEquals(new StationVersion(7, "sender-a"), AggregationServer.versionMap.get("IDS60901"));
+            Assert.assertEquals("13.3", AggregationServer.recordMap.get("IDS60901").get("air_temp"));
+            Assert.assertEquals(2, AggregationServer.columnStore.size());
+            Assert.assertEquals(2, AggregationServer.spatialIndex.nearest(-30, 138.7, 5).size());
+
+            // Any change to the directory makes the restore list it again
+            Files.setLastModifiedTime(directory, FileTime.fromMillis(System.currentTimeMillis()));
+            AggregationServer.restoreState();
+            Assert.assertNull("A removed file should be noticed once the directory changed", AggregationServer.recordMap.get("IDS60902"));
+            Assert.assertEquals(1, AggregationServer.columnStore.size());
+        } finally {
+            AggregationServer.RemoveTextFiles();
+        }
+    }
+
+}
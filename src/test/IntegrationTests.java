@@ -261,7 +261,71 @@ public class IntegrationTests {
         }
     }
 
+    // Test concurrent PUTs of the same station while it is being read
+    @Test
+    public void testConcurrentPuts() throws Exception {
+        String port = "1241";
+        Thread serverThread = new Thread(() -> AggregationServer.main(new String[]{port}));
+        serverThread.start();
+        waitForServerToStart();
+        AggregationServer.RemoveTextFiles();
+
+        int writers = 8;
+        int putsPerWriter = 25;
+        List<String> torn = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            threads.add(new Thread(() -> {
+                for (int i = 1; i <= putsPerWriter; i++) {
+                    // Pad the documents so a partly written file would be noticed
+                    String json = "{\n  \"id\": \"IDS70003\",\n  \"air_temp\": \"" + i + "." + writer
+                            + "\",\n  \"padding\": \"" + "x".repeat(4000) + "\"\n}\n";
+                    try (java.net.Socket socket = new java.net.Socket("localhost", Integer.parseInt(port));
+                         RequestReader in = new RequestReader(socket.getInputStream())) {
+                        socket.getOutputStream().write(("PUT HTTP/1.1\n" + i + "\nSender-ID: writer-" + writer
+                                + "\nConnection: close\nContent-Length: " + json.length() + "\n\n" + json).getBytes(StandardCharsets.UTF_8));
+                        in.readLineString();
+                    } catch (IOException e) {
+                        torn.add("PUT failed: " + e);
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            for (int i = 0; i < 200; i++) {
+                try {
+                    Path file = Paths.get("src/main/aggr_data/IDS70003.json");
+                    if (Files.exists(file)) {
+                        String stored = Files.readString(file);
+                        if (!stored.endsWith("}\n")) {
+                            torn.add(stored.length() + " bytes");
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    // Not stored yet
+                } catch (IOException e) {
+                    torn.add("Read failed: " + e);
+                }
+            }
+        }));
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
 
-
+        try {
+            Assert.assertTrue("Readers should never see a partly written file: " + torn, torn.isEmpty());
+            StationVersion version = AggregationServer.versionMap.get("IDS70003");
+            Assert.assertEquals("The newest version should win", putsPerWriter, version.lamport);
+            Assert.assertEquals("writer-" + (writers - 1), version.sender);
+            String stored = Files.readString(Paths.get("src/main/aggr_data/IDS70003.json"));
+            Assert.assertEquals("The file should hold the newest version", stored, AggregationServer.recordMap.get("IDS70003").getJson());
+            Assert.assertEquals(putsPerWriter + "." + (writers - 1), AggregationServer.recordMap.get("IDS70003").get("air_temp"));
+        } finally {
+            AggregationServer.shutdown();
+            serverThread.join();
+        }
+    }
 
 }
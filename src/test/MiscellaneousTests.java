@@ -6,6 +6,13 @@ import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.Path;
 import java.nio.file.Files;
@@ -253,6 +260,989 @@ public class MiscellaneousTests {
         }
     }
 
+    // Tests that station history returns readings within the requested range, ordered by time and Lamport timestamp.
+    @Test
+    public void testHistoryRange() {
+        StationHistory history = new StationHistory();
+        history.add(20230715160000L, 3, Map.of("air_temp", "13.3"));
+        history.add(20230715150000L, 5, Map.of("air_temp", "12.1")); // Arrives late
+        history.add(20230715160000L, 2, Map.of("air_temp", "13.1")); // Same time, older Lamport timestamp
+        history.add(20230715170000L, 7, Map.of("air_temp", "14.2"));
+
+        StringWriter range = new StringWriter();
+        history.writeRange("IDS60901", 20230715150000L, 20230715160000L, null, new PrintWriter(range, true));
+        String json = range.toString();
+        System.err.println("History: " + json);
+
+        Assert.assertEquals("History should hold all readings", 4, history.size());
+        Assert.assertTrue("Range should include the late reading", json.contains("\"air_temp\": \"12.1\""));
+        Assert.assertFalse("Range should exclude readings after 'to'", json.contains("14.2"));
+        Assert.assertTrue("Readings should be ordered by time and Lamport timestamp",
+                json.indexOf("12.1") < json.indexOf("13.1") && json.indexOf("13.1") < json.indexOf("13.3"));
+    }
+
+    // Tests that rollups aggregate readings into hourly tumbling windows, and that a re-PUT of the
+    // last reading replaces it.
+    @Test
+    public void testRollupWindows() {
+        StationRollup rollup = new StationRollup();
+        rollup.add(20230715160000L, Map.of("air_temp", "13.0"));
+        rollup.add(20230715163000L, Map.of("air_temp", "15.0"));
+        rollup.add(20230715171000L, Map.of("air_temp", "11.5"));
+
+        StringWriter output = new StringWriter();
+        rollup.writeTo("IDS60901", 60, new PrintWriter(output, true));
+        String json = output.toString();
+        System.err.println("Rollups: " + json);
+
+        Assert.assertTrue("The 16:00 window should hold two readings", json.contains(
+                "{\"start\": \"20230715160000\", \"air_temp_count\": \"2\", \"air_temp_min\": \"13\", \"air_temp_max\": \"15\", \"air_temp_avg\": \"14\"}"));
+        Assert.assertTrue("The 17:00 window should hold one reading", json.contains(
+                "{\"start\": \"20230715170000\", \"air_temp_count\": \"1\", \"air_temp_min\": \"11.5\""));
+
+        // A re-PUT of the last reading replaces it rather than being counted again
+        rollup.add(20230715163000L, Map.of("air_temp", "12.0"));
+        rollup.add(20230715163000L, Map.of("air_temp", "17.0", "press", "1020"));
+        rollup.add(20230715163000L, Map.of("air_temp", "14.0", "press", "1021"));
+        output = new StringWriter();
+        rollup.writeTo("IDS60901", 60, new PrintWriter(output, true));
+        json = output.toString();
+        Assert.assertTrue("The corrected reading should replace the earlier copies", json.contains(
+                "{\"start\": \"20230715160000\", \"air_temp_count\": \"3\", \"air_temp_min\": \"13\", \"air_temp_max\": \"15\", \"air_temp_avg\": \"14\", "
+                        + "\"press_count\": \"1\", \"press_min\": \"1021\", \"press_max\": \"1021\", \"press_avg\": \"1021\"}"));
+    }
+
+    // Tests nearest-neighbour and bounding box queries on the spatial index.
+    @Test
+    public void testSpatialQueries() {
+        SpatialIndex index = new SpatialIndex();
+        index.put("IDS60901", -30, 138.7);   // Adelaide
+        index.put("IDS60904", -27.5, 153.0); // Brisbane
+        index.put("IDS60906", -35.3, 149.1); // Canberra
+        index.put("IDS60907", 51.5, -0.1);   // London
+
+        Assert.assertEquals("Nearest stations should be ordered by distance",
+                List.of("IDS60906", "IDS60904"), index.nearest(-33.9, 151.2, 2)); // From Sydney
+        Assert.assertEquals("The box should only contain eastern stations",
+                List.of("IDS60904"), index.withinBox(-30, 150, -20, 155));
+
+        index.remove("IDS60906");
+        Assert.assertEquals("Removed stations should not be returned",
+                List.of("IDS60904", "IDS60901"), index.nearest(-33.9, 151.2, 2));
+
+        Assert.assertEquals("A k beyond the station count should return every station",
+                List.of("IDS60904", "IDS60901", "IDS60907"), index.nearest(-33.9, 151.2, 1000));
+        Assert.assertEquals("Longitudes below -180 should wrap like those above 180",
+                index.nearest(-33.9, 151.2, 2), index.nearest(-33.9, 151.2 - 360, 2));
+    }
+
+    // Tests that a fields= projection keeps only the requested fields, in document order.
+    @Test
+    public void testFieldProjection() throws Exception {
+        String json = new String(Files.readAllBytes(Paths.get("src/test/weather0check.txt")), StandardCharsets.UTF_8);
+        StationRecord record = StationRecord.parse(json);
+
+        String projected = record.project(JSONParser.parseFields("local_date_time_full,air_temp,missing"));
+        Assert.assertEquals("Projection should only hold the requested fields",
+                "{\n  \"local_date_time_full\": \"20230715160000\",\n  \"air_temp\": \"13.3\"\n}", projected);
+        Assert.assertEquals("No projection should return the whole document", json.trim(), record.project(null));
+
+        // A projected value holding quotes or backslashes is escaped as in the whole document
+        Map<String, String> fields = new java.util.LinkedHashMap<>();
+        fields.put("id", "IDS60901");
+        fields.put("name", "Adelaide \"West\" Terrace \\ CBD");
+        StationRecord quoted = StationRecord.parse(JSONParser.convertToJSON(fields));
+        String name = quoted.project(Arrays.asList("name"));
+        Assert.assertEquals("{\n  \"name\": \"Adelaide \\\"West\\\" Terrace \\\\ CBD\"\n}", name);
+        Assert.assertEquals(fields.get("name"), JSONParser.parseJSON(name).get("name"));
+    }
+
+    /**
+     * Tests that the column store scans numeric and categorical columns, skips missing values and reuses freed rows
+     */
+    @Test
+    public void testColumnStore() {
+        ColumnStore store = new ColumnStore();
+        Map<String, String> fields = new HashMap<>();
+        fields.put("air_temp", "10.5");
+        fields.put("state", "SA");
+        store.put("A", fields);
+        fields.put("air_temp", "20.5");
+        store.put("B", fields);
+        fields.put("air_temp", "-");
+        fields.put("state", "VIC");
+        store.put("C", fields);
+
+        double[] aggregate = store.aggregate("air_temp");
+        Assert.assertEquals("Missing values should not be counted", 2, (int) aggregate[0]);
+        Assert.assertEquals(10.5, aggregate[1], 0);
+        Assert.assertEquals(20.5, aggregate[2], 0);
+        Assert.assertEquals(31.0, aggregate[3], 0);
+        Assert.assertEquals(2, (int) store.countBy("state").get("SA"));
+
+        store.remove("A");
+        int row = store.put("D", fields);
+        Assert.assertEquals("A freed row should be reused", 0, row);
+        Assert.assertEquals(3, store.size());
+        Assert.assertEquals(1, (int) store.aggregate("air_temp")[0]);
+        Assert.assertEquals(2, (int) store.countBy("state").get("VIC"));
+        Assert.assertNull("Only known columns can be scanned", store.aggregate("state"));
+    }
+
+    /**
+     * Tests that filtered queries use the secondary indexes correctly, that the indexes follow updates and removals,
+     * and that streamed matches see changes made while they are read
+     */
+    @Test
+    public void testWhereQuery() {
+        ColumnStore store = new ColumnStore();
+        String[][] stations = {{"A", "SA", "31.5"}, {"B", "SA", "25"}, {"C", "VIC", "35"}, {"D", "SA", "30"}};
+        for (String[] station : stations) {
+            Map<String, String> fields = new HashMap<>();
+            fields.put("state", station[1]);
+            fields.put("air_temp", station[2]);
+            store.put(station[0], fields);
+        }
+
+        Assert.assertEquals(Arrays.asList("A"), where(store, "state=SA AND air_temp>30"));
+        Assert.assertEquals(Arrays.asList("A", "D"), where(store, "state=SA and air_temp>=30"));
+        Assert.assertEquals(Arrays.asList("B", "D"), where(store, "air_temp<=30"));
+        Assert.assertEquals(Arrays.asList("C"), where(store, "state!=SA"));
+        Assert.assertTrue(where(store, "state=NSW").isEmpty());
 
+        Map<String, String> update = new HashMap<>();
+        update.put("state", "SA");
+        update.put("air_temp", "40");
+        store.put("C", update);
+        store.remove("A");
+        Assert.assertEquals(Arrays.asList("C"), where(store, "state=SA AND air_temp>30"));
+
+        // Streamed matches hold no lock between stations, so the store can change under the iterator
+        java.util.Iterator<String> matches = store.matching(ColumnStore.parseWhere("state=SA"));
+        Assert.assertEquals("B", matches.next());
+        store.remove("D"); // Would deadlock if the iterator still held the read lock
+        Assert.assertEquals("C", matches.next());
+        Assert.assertFalse("A station removed during the iteration should be skipped", matches.hasNext());
+
+        try {
+            ColumnStore.parseWhere("state>SA");
+            fail("Categorical fields should only support equality");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests that the top-K rankings follow updates and removals, and that the staleness ranking puts the oldest contact first
+     */
+    @Test
+    public void testTopK() {
+        ColumnStore store = new ColumnStore();
+        String[][] stations = {{"A", "31.5"}, {"B", "25"}, {"C", "35"}, {"D", "-"}};
+        for (String[] station : stations) {
+            Map<String, String> fields = new HashMap<>();
+            fields.put("air_temp", station[1]);
+            store.put(station[0], fields);
+        }
+        Assert.assertEquals(Arrays.asList("C", "A"), new ArrayList<>(store.top("air_temp", 2).keySet()));
+
+        Map<String, String> update = new HashMap<>();
+        update.put("air_temp", "20");
+        store.put("C", update);
+        store.remove("A");
+        Assert.assertEquals(Arrays.asList("B", "C"), new ArrayList<>(store.top("air_temp", 5).keySet()));
+
+        ContactIndex contacts = new ContactIndex();
+        contacts.touch("A", 100);
+        contacts.touch("B", 200);
+        contacts.touch("C", 300);
+        contacts.touch("A", 400); // A checks in again and is no longer the stalest
+        contacts.remove("B");
+        Assert.assertEquals(Arrays.asList("C", "A"), new ArrayList<>(contacts.stalest(5).keySet()));
+    }
+
+    /**
+     * Tests that the per-state summaries are adjusted when a station's reading is replaced, moves state or is removed,
+     * and that state names are escaped
+     */
+    @Test
+    public void testStateAggregates() {
+        StateAggregates aggregates = new StateAggregates();
+        String[][] stations = {{"A", "SA", "10", "1000"}, {"B", "SA", "20", "1010"}, {"C", "VIC", "15", "1020"}};
+        for (String[] station : stations) {
+            Map<String, String> fields = new HashMap<>();
+            fields.put("state", station[1]);
+            fields.put("air_temp", station[2]);
+            fields.put("press", station[3]);
+            aggregates.put(station[0], fields);
+        }
+        Map<String, String> update = new HashMap<>();
+        update.put("state", "SA");
+        update.put("air_temp", "30");
+        aggregates.put("B", update); // Replaces B's reading, which had the highest pressure
+        aggregates.remove("C");
+
+        StringWriter writer = new StringWriter();
+        aggregates.writeTo(null, new PrintWriter(writer));
+        String expected = "[\n  {\"state\": \"SA\", \"stations\": \"2\""
+                + ", \"air_temp_count\": \"2\", \"air_temp_mean\": \"20\", \"air_temp_min\": \"10\", \"air_temp_max\": \"30\""
+                + ", \"press_count\": \"1\", \"press_mean\": \"1000\", \"press_min\": \"1000\", \"press_max\": \"1000\"}\n]\n";
+        Assert.assertEquals(expected, writer.toString().replace(System.lineSeparator(), "\n"));
+
+        // A state name is escaped like any other value
+        Map<String, String> quoted = new HashMap<>();
+        quoted.put("state", "S\"A");
+        aggregates.put("D", quoted);
+        writer = new StringWriter();
+        aggregates.writeTo(null, new PrintWriter(writer));
+        Assert.assertTrue(writer.toString().contains("{\"state\": \"S\\\"A\", \"stations\": \"1\"}"));
+    }
+
+    /**
+     * Tests that the byte-level request reader decodes the request type, clock, headers and a body larger than its buffer,
+     * and that bodies over the reader's limit are refused, by the reader and by the server
+     */
+    @Test
+    public void testRequestReader() throws Exception {
+        StringBuilder body = new StringBuilder("{\n");
+        for (int i = 0; i < 1000; i++) {
+            body.append("  \"field").append(i).append("\": \"").append(i).append("\",\n");
+        }
+        body.append("  \"id\": \"IDS60901\"\n}\n");
+        String request = "PUT\r\n42\r\nUser-Agent: ATOMClient/1/0\r\ncontent-length: " + body.length() + "\r\n\r\n"
+                + body.toString().replace("\n", "\r\n") + "\r\nHEARTBEAT\nsrc/main/content/IDS60901.txt";
+
+        try (RequestReader reader = new RequestReader(new java.io.ByteArrayInputStream(request.getBytes(StandardCharsets.UTF_8)))) {
+            Assert.assertSame("PUT", reader.readRequestType());
+            Assert.assertEquals(42, reader.readInt());
+            Assert.assertEquals(2, reader.readHeaders());
+            Assert.assertEquals(body.length(), reader.getContentLength());
+            Assert.assertTrue("Body should be larger than the buffer", reader.readBody() > RequestReader.BUFFER_SIZE);
+            Assert.assertEquals("Line endings should be normalised", body.toString(), reader.sliceString());
+            Assert.assertSame("HEARTBEAT", reader.readRequestType());
+            Assert.assertEquals("A last line without a terminator should still be read", "IDS60901", reader.readFileId());
+            Assert.assertNull(reader.readRequestType());
+        }
+
+        // Bodies over the limit are refused before a buffer is grown for them
+        String huge = "PUT HTTP/1.1\n1\nContent-Length: 2000000000\n\n{}";
+        try (RequestReader reader = new RequestReader(new java.io.ByteArrayInputStream(huge.getBytes(StandardCharsets.UTF_8)), 100)) {
+            reader.readRequestType();
+            reader.readInt();
+            reader.readHeaders();
+            Assert.assertThrows(RequestReader.BodyTooLargeException.class, reader::readFramedBody);
+        }
+        String chunks = "PUT HTTP/1.1\n1\nTransfer-Encoding: chunked\n\n40\n" + "x".repeat(64) + "\n40\n" + "x".repeat(64) + "\n0\n\n";
+        try (RequestReader reader = new RequestReader(new java.io.ByteArrayInputStream(chunks.getBytes(StandardCharsets.UTF_8)), 100)) {
+            reader.readRequestType();
+            reader.readInt();
+            reader.readHeaders();
+            Assert.assertThrows("Chunks should count towards the limit together", RequestReader.BodyTooLargeException.class, reader::readFramedBody);
+        }
+        try (RequestReader reader = new RequestReader(new java.io.ByteArrayInputStream(("PUT\n1\n\n" + body).getBytes(StandardCharsets.UTF_8)), 100)) {
+            reader.readRequestType();
+            reader.readInt();
+            reader.readHeaders();
+            Assert.assertThrows(RequestReader.BodyTooLargeException.class, reader::readBody);
+        }
+
+        // The server answers 413 and closes the connection, without reading the body
+        String port = "1249";
+        Thread serverThread = startServer(() -> AggregationServer.main(new String[]{port}));
+        Thread.sleep(500); // Wait for the server to start
+        try (java.net.Socket socket = new java.net.Socket("localhost", Integer.parseInt(port));
+             RequestReader reader = new RequestReader(socket.getInputStream())) {
+            socket.getOutputStream().write(huge.getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+            Assert.assertEquals("HTTP/1.1 413 Payload Too Large", reader.readLineString());
+            reader.readHeaders();
+            Assert.assertTrue(reader.isConnectionClose());
+            reader.readBody(reader.getContentLength());
+            Assert.assertNull("The server should close the connection", reader.readRequestType());
+        } finally {
+            AggregationServer.shutdown();
+            serverThread.join();
+        }
+    }
+
+    // Tests that responses without a Content-Length are chunked and read back intact, that
+    // responses on the same connection follow each other without a gap, and that stored files
+    // sent into a chunked multi-station response are chunked with the rest of the body.
+    @Test
+    public void testChunkedResponse() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            body.append("  {\"id\": \"IDS").append(i).append("\", \"air_temp\": \"13.3\"},\n");
+        }
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        ResponseFramer framer = new ResponseFramer(wire);
+        PrintWriter out = framer.newWriter();
+        framer.setFraming(true);
+        out.println("HTTP/1.1 200 OK");
+        out.println("Content-Type: application/json");
+        out.println();
+        out.print(body);
+        out.flush();
+        framer.finish();
+        out.println("HTTP/1.1 200 OK");
+        out.println("Content-Length: 3");
+        out.println();
+        out.println("ok");
+        out.flush();
+        framer.finish();
+        out.println("HTTP/1.1 404 Not Found");
+        out.flush();
+        framer.finish();
+
+        try (RequestReader reader = new RequestReader(new java.io.ByteArrayInputStream(wire.toByteArray()))) {
+            Assert.assertEquals("HTTP/1.1 200 OK", reader.readLineString());
+            reader.readHeaders();
+            Assert.assertTrue("A response without Content-Length should be chunked", reader.isChunked());
+            Assert.assertTrue("Body should span several chunks", reader.readChunkedBody() > RequestReader.BUFFER_SIZE);
+            Assert.assertEquals(body.toString(), reader.sliceString());
+
+            Assert.assertEquals("HTTP/1.1 200 OK", reader.readLineString());
+            reader.readHeaders();
+            Assert.assertFalse(reader.isChunked());
+            reader.readBody(reader.getContentLength());
+            Assert.assertEquals("ok\n", reader.sliceString());
+
+            Assert.assertEquals("HTTP/1.1 404 Not Found", reader.readLineString());
+            reader.readHeaders();
+            Assert.assertEquals("A response without headers should get an empty body", 0, reader.getContentLength());
+        }
+
+        // Stored files sent into a chunked multi-station response must be chunked too
+        String port = "1248";
+        Thread serverThread = startServer(() -> AggregationServer.main(new String[]{port}));
+        AggregationServer.RemoveTextFiles();
+        Thread.sleep(500); // Wait for the server to start
+        String first = JSONParser.convertFileToJSON("src/main/content/IDS60901.txt") + "\n";
+        String second = JSONParser.convertFileToJSON("src/main/content/IDS60902.txt") + "\n";
+        Files.writeString(Paths.get("src/main/aggr_data/IDS60901.json"), first);
+        Files.writeString(Paths.get("src/main/aggr_data/IDS60902.json"), second);
+        String requests = "GET HTTP/1.1\n1\nIDS60901,IDS60902\n\nGET HTTP/1.1\n2\nIDS60902\nConnection: close\n\n";
+
+        try (java.net.Socket socket = new java.net.Socket("localhost", Integer.parseInt(port));
+             RequestReader reader = new RequestReader(socket.getInputStream())) {
+            socket.getOutputStream().write(requests.getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+
+            Assert.assertEquals("HTTP/1.1 200 OK", reader.readLineString());
+            reader.readHeaders();
+            Assert.assertTrue("A multi-station response should be chunked", reader.isChunked());
+            reader.readChunkedBody();
+            Assert.assertEquals("[\n" + first.trim() + ",\n" + second.trim() + "\n]\n\n", reader.sliceString());
+
+            Assert.assertEquals("The next response should follow the chunked body", "HTTP/1.1 200 OK", reader.readLineString());
+            reader.readHeaders();
+            reader.readBody(reader.getContentLength());
+            Assert.assertEquals(second + "\n\n", reader.sliceString());
+        } finally {
+            AggregationServer.shutdown();
+            serverThread.join();
+            AggregationServer.RemoveTextFiles();
+        }
+    }
+
+    // Tests that stored station files sent straight from their channel to the socket arrive byte
+    // for byte: a single station with its Content-Length, over a plain and a kept-alive
+    // connection, and several stations joined into an array without their trailing whitespace.
+    @Test
+    public void testStoredFileTransfer() throws Exception {
+        String port = "1250";
+        Thread serverThread = startServer(() -> AggregationServer.main(new String[]{port}));
+        AggregationServer.RemoveTextFiles();
+        Thread.sleep(500); // Wait for the server to start
+        byte[] first = (JSONParser.convertFileToJSON("src/main/content/IDS60901.txt") + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] second = "{\n  \"id\": \"IDS60902\",\n  \"name\": \"C\u00f4te \\\"Nord\\\"\"\n}  \n\n".getBytes(StandardCharsets.UTF_8);
+        Files.write(Paths.get("src/main/aggr_data/IDS60901.json"), first);
+        Files.write(Paths.get("src/main/aggr_data/IDS60902.json"), second);
+
+        try {
+            try (java.net.Socket socket = new java.net.Socket("localhost", Integer.parseInt(port));
+                 RequestReader reader = new RequestReader(socket.getInputStream())) {
+                socket.getOutputStream().write("GET\n1\nIDS60902\n".getBytes(StandardCharsets.UTF_8));
+                socket.getOutputStream().flush();
+                Assert.assertEquals("HTTP/1.1 200 OK", reader.readLineString());
+                reader.readHeaders();
+                Assert.assertEquals(second.length + 2, reader.getContentLength());
+                reader.readBody(reader.getContentLength());
+                Assert.assertArrayEquals(concat(second, "\n\n"), bytes(reader));
+            }
+
+            try (java.net.Socket socket = new java.net.Socket("localhost", Integer.parseInt(port));
+                 RequestReader reader = new RequestReader(socket.getInputStream())) {
+                socket.getOutputStream().write("GET HTTP/1.1\n2\nIDS60901\n\nGET HTTP/1.1\n3\nIDS60902\nConnection: close\n\n".getBytes(StandardCharsets.UTF_8));
+                socket.getOutputStream().flush();
+                for (byte[] stored : new byte[][]{first, second}) {
+                    Assert.assertEquals("HTTP/1.1 200 OK", reader.readLineString());
+                    reader.readHeaders();
+                    reader.readBody(reader.getContentLength());
+                    Assert.assertArrayEquals(concat(stored, "\n\n"), bytes(reader));
+                }
+            }
+
+            try (java.net.Socket socket = new java.net.Socket("localhost", Integer.parseInt(port));
+                 RequestReader reader = new RequestReader(socket.getInputStream())) {
+                socket.getOutputStream().write("GET\n4\nIDS60901,IDS60999,IDS60902\n".getBytes(StandardCharsets.UTF_8));
+                socket.getOutputStream().flush();
+                Assert.assertEquals("HTTP/1.1 200 OK", reader.readLineString());
+                reader.readHeaders();
+                reader.readToEnd();
+                String expected = "[\n" + new String(first, StandardCharsets.UTF_8).trim() + ",\n"
+                        + new String(second, StandardCharsets.UTF_8).trim() + "\n]\n\n";
+                Assert.assertArrayEquals("Missing stations should be skipped", expected.getBytes(StandardCharsets.UTF_8), bytes(reader));
+            }
+        } finally {
+            AggregationServer.shutdown();
+            serverThread.join();
+            AggregationServer.RemoveTextFiles();
+        }
+    }
+
+    private static List<String> where(ColumnStore store, String filter) {
+        List<String> ids = new ArrayList<>();
+        store.matching(ColumnStore.parseWhere(filter)).forEachRemaining(ids::add);
+        return ids;
+    }
+
+    private static byte[] bytes(RequestReader reader) {
+        java.nio.ByteBuffer slice = reader.sliceBuffer();
+        byte[] bytes = new byte[slice.remaining()];
+        slice.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] bytes, String suffix) {
+        byte[] end = suffix.getBytes(StandardCharsets.UTF_8);
+        byte[] joined = Arrays.copyOf(bytes, bytes.length + end.length);
+        System.arraycopy(end, 0, joined, bytes.length, end.length);
+        return joined;
+    }
+
+    // Tests that a PUT of the same document again only refreshes the station's contact time,
+    // without rewriting its file, and is counted as deduplicated.
+    @Test
+    public void testDuplicatePut() throws Exception {
+        String port = "1239";
+        Thread serverThread = startServer(() -> AggregationServer.main(new String[]{port}));
+        AggregationServer.RemoveTextFiles();
+        Thread.sleep(500); // Wait for the server to start
+
+        String json = "{\n  \"id\": \"IDS70001\",\n  \"state\": \"SA\",\n  \"air_temp\": \"13.3\"\n}\n";
+        String put = "PUT HTTP/1.1\n1\nContent-Type: application/json\nContent-Length: "
+                + json.getBytes(StandardCharsets.UTF_8).length + "\n\n" + json;
+        long deduplicated = AggregationServer.metrics.get("puts_deduplicated");
+        Path file = Paths.get("src/main/aggr_data/IDS70001.json");
+
+        try (java.net.Socket socket = new java.net.Socket("localhost", Integer.parseInt(port));
+             RequestReader in = new RequestReader(socket.getInputStream())) {
+            java.io.OutputStream out = socket.getOutputStream();
+            out.write(put.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Assert.assertEquals("HTTP/1.1 201 Created", in.readLineString());
+            in.readHeaders();
+            in.readBody(in.getContentLength());
+            long written = Files.getLastModifiedTime(file).toMillis();
+            long firstContact = AggregationServer.lastContactMap.get("IDS70001");
+
+            Thread.sleep(50);
+            out.write(put.replace("\n1\n", "\n2\n").replace("Content-Type", "Connection: close\nContent-Type").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Assert.assertEquals("HTTP/1.1 200 OK", in.readLineString());
+            in.readHeaders();
+            in.readBody(in.getContentLength());
+            Assert.assertEquals("The data should be echoed back", json + "\n", in.sliceString());
+
+            Assert.assertEquals(deduplicated + 1, AggregationServer.metrics.get("puts_deduplicated"));
+            Assert.assertEquals("An unchanged PUT should not rewrite the file", written, Files.getLastModifiedTime(file).toMillis());
+            Assert.assertTrue("An unchanged PUT should still count as contact",
+                    AggregationServer.lastContactMap.get("IDS70001") > firstContact);
+            Assert.assertEquals(2, AggregationServer.versionMap.get("IDS70001").lamport);
+        } finally {
+            AggregationServer.shutdown();
+            serverThread.join();
+        }
+    }
+
+    // Tests that a PUT older than the station's current version is rejected with 409 Conflict,
+    // and that PUTs with the same Lamport timestamp are ordered by sender ID.
+    @Test
+    public void testStalePut() throws Exception {
+        String port = "1240";
+        Thread serverThread = startServer(() -> AggregationServer.main(new String[]{port}));
+        AggregationServer.RemoveTextFiles();
+        Thread.sleep(500); // Wait for the server to start
+
+        try (java.net.Socket socket = new java.net.Socket("localhost", Integer.parseInt(port));
+             RequestReader in = new RequestReader(socket.getInputStream())) {
+            java.io.OutputStream out = socket.getOutputStream();
+            String[][] puts = {{"5", "sender-a", "13.3"}, {"3", "sender-b", "14.0"}, {"5", "sender-b", "15.1"}, {"5", "sender-a", "16.2"}};
+            for (String[] put : puts) {
+                String json = "{\n  \"id\": \"IDS70002\",\n  \"air_temp\": \"" + put[2] + "\"\n}\n";
+                out.write(("PUT HTTP/1.1\n" + put[0] + "\nSender-ID: " + put[1] + "\nContent-Length: " + json.length() + "\n\n" + json)
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+
+            String[] statuses = new String[puts.length];
+            String[] versions = new String[puts.length];
+            for (int i = 0; i < puts.length; i++) {
+                statuses[i] = in.readLineString();
+                in.readHeaders();
+                versions[i] = in.header("Station-Version");
+                in.readBody(in.getContentLength());
+            }
+            Assert.assertEquals("HTTP/1.1 201 Created", statuses[0]);
+            Assert.assertEquals("An older PUT should be rejected", "HTTP/1.1 409 Conflict", statuses[1]);
+            Assert.assertEquals("5 sender-a", versions[1]);
+            Assert.assertEquals("A tie should go to the higher sender ID", "HTTP/1.1 200 OK", statuses[2]);
+            Assert.assertEquals("HTTP/1.1 409 Conflict", statuses[3]);
+            Assert.assertEquals("5 sender-b", versions[3]);
+            Assert.assertEquals("15.1", AggregationServer.recordMap.get("IDS70002").get("air_temp"));
+        } finally {
+            AggregationServer.shutdown();
+            serverThread.join();
+        }
+    }
+
+    // Tests that batched heartbeats over a kept-alive connection and over UDP update the contact
+    // times of the listed stations, and that stations without data or expired are reported back.
+    @Test
+    public void testBatchedHeartbeats() throws Exception {
+        String port = "1242";
+        Thread serverThread = startServer(() -> AggregationServer.main(new String[]{port}));
+        AggregationServer.RemoveTextFiles();
+        Thread.sleep(500); // Wait for the server to start
+        AggregationServer.startHeartbeatListener(Integer.parseInt(port));
+
+        long old = System.currentTimeMillis() - 60000;
+        for (String id : new String[]{"IDS70004", "IDS70005"}) {
+            AggregationServer.recordContact(id, old);
+            AggregationServer.recordReading(id, new StationVersion(1, ""), "{\n  \"id\": \"" + id + "\"\n}\n");
+        }
+        long frames = AggregationServer.metrics.get("heartbeat_frames");
+
+        try {
+            HeartbeatChannel channel = HeartbeatChannel.to("localhost", Integer.parseInt(port));
+            List<String> unknown = channel.send(Arrays.asList("IDS70004", "IDS70005", "IDS79999"));
+            Assert.assertEquals("Stations without data should be reported", Arrays.asList("IDS79999"), unknown);
+            Assert.assertTrue(AggregationServer.lastContactMap.get("IDS70004") > old);
+            Assert.assertTrue(AggregationServer.lastContactMap.get("IDS70005") > old);
+            Assert.assertNull("Stations without data should not be tracked", AggregationServer.lastContactMap.get("IDS79999"));
+            Assert.assertTrue(channel.send(Arrays.asList("IDS70004")).isEmpty());
+            Assert.assertEquals(frames + 2, AggregationServer.metrics.get("heartbeat_frames"));
+
+            // A datagram is applied in the background, so wait for it
+            AggregationServer.recordContact("IDS70005", old);
+            channel.sendDatagram(Arrays.asList("IDS70005"));
+            for (int i = 0; i < 50 && AggregationServer.lastContactMap.get("IDS70005") == old; i++) {
+                Thread.sleep(20);
+            }
+            Assert.assertTrue("A UDP heartbeat should update the contact time", AggregationServer.lastContactMap.get("IDS70005") > old);
+            channel.close();
+
+            // Once a station has expired, a late heartbeat must not bring it back, nor touch the
+            // station that reuses its contact slot
+            AggregationServer.recordMap.remove("IDS70004");
+            AggregationServer.lastContactMap.remove("IDS70004");
+            AggregationServer.contactIndex.remove("IDS70004");
+            AggregationServer.recordContact("IDS70006", old);
+            Assert.assertEquals(Arrays.asList("IDS70004"), AggregationServer.applyHeartbeats(Arrays.asList("IDS70004")));
+            Assert.assertNull(AggregationServer.lastContactMap.get("IDS70004"));
+            Assert.assertFalse(AggregationServer.contactIndex.stalest(10).containsKey("IDS70004"));
+            Assert.assertEquals(old, (long) AggregationServer.lastContactMap.get("IDS70006"));
+        } finally {
+            AggregationServer.shutdown();
+            serverThread.join();
+            AggregationServer.RemoveTextFiles();
+        }
+    }
+
+    // Tests that one content server publishes every station file in a directory, including files
+    // added while it runs, over the shared connection pool.
+    @Test
+    public void testStationDirectory() throws Exception {
+        String port = "1243";
+        Thread serverThread = startServer(() -> AggregationServer.main(new String[]{port}));
+        AggregationServer.RemoveTextFiles();
+        Thread.sleep(500); // Wait for the server to start
+
+        Path directory = Files.createTempDirectory("stations");
+        Files.copy(Paths.get("src/main/content/IDS60901.txt"), directory.resolve("IDS60901.txt"));
+        Files.copy(Paths.get("src/main/content/IDS60902.txt"), directory.resolve("IDS60902.txt"));
+        try {
+            runContentServer(port, directory.toString());
+            for (int i = 0; i < 50 && AggregationServer.recordMap.size() < 2; i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertNotNull(AggregationServer.recordMap.get("IDS60901"));
+            Assert.assertNotNull(AggregationServer.recordMap.get("IDS60902"));
+
+            // A station file added to the directory is picked up by change detection
+            Files.copy(Paths.get("src/main/content/IDS60905.txt"), directory.resolve("IDS60905.txt"));
+            for (int i = 0; i < 100 && AggregationServer.recordMap.get("IDS60905") == null; i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertNotNull("A new station file should be published", AggregationServer.recordMap.get("IDS60905"));
+        } finally {
+            ContentServer.shutdown();
+            AggregationServer.shutdown();
+            serverThread.join();
+            AggregationServer.RemoveTextFiles();
+            Files.deleteIfExists(ContentServer.outboxPath(directory.toString()));
+            for (String name : new String[]{"IDS60901.txt", "IDS60902.txt", "IDS60905.txt"}) {
+                Files.deleteIfExists(directory.resolve(name));
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    // Tests that a change to a station file reaches the aggregation server well within the old
+    // 5 second polling interval, through the shared file watcher.
+    @Test
+    public void testFileWatch() throws Exception {
+        String port = "1244";
+        Thread serverThread = startServer(() -> AggregationServer.main(new String[]{port}));
+        AggregationServer.RemoveTextFiles();
+        Thread.sleep(500); // Wait for the server to start
+
+        Path directory = Files.createTempDirectory("watched");
+        Path station = directory.resolve("station.txt");
+        String data = new String(Files.readAllBytes(Paths.get("src/main/content/IDS60901.txt")), StandardCharsets.UTF_8);
+        Files.writeString(station, data);
+        try {
+            runContentServer(port, station.toString());
+            for (int i = 0; i < 50 && AggregationServer.recordMap.get("IDS60901") == null; i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertNotNull(AggregationServer.recordMap.get("IDS60901"));
+
+            // Rewrite the file in a burst of writes, the last of which should be published
+            Files.writeString(station, data.replaceAll("air_temp:.*", "air_temp:30.1"));
+            Files.writeString(station, data.replaceAll("air_temp:.*", "air_temp:30.2"));
+            long start = System.currentTimeMillis();
+            while (System.currentTimeMillis() - start < 2000
+                    && !"30.2".equals(AggregationServer.recordMap.get("IDS60901").get("air_temp"))) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals("The change should be published within 2 seconds", "30.2",
+                    AggregationServer.recordMap.get("IDS60901").get("air_temp"));
+        } finally {
+            ContentServer.shutdown();
+            AggregationServer.shutdown();
+            serverThread.join();
+            AggregationServer.RemoveTextFiles();
+            Files.deleteIfExists(ContentServer.outboxPath(station.toString()));
+            Files.deleteIfExists(station);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    // Tests that a delta PUT is applied to the station's stored document when its base version and
+    // document hash match, rejected with 412 Precondition Failed otherwise, and answered with 500
+    // without advancing the station's version when it cannot be stored.
+    @Test
+    public void testDeltaPut() throws Exception {
+        String port = "1245";
+        Thread serverThread = startServer(() -> AggregationServer.main(new String[]{port}));
+        AggregationServer.RemoveTextFiles();
+        Thread.sleep(500); // Wait for the server to start
+
+        Map<String, String> fields = new java.util.LinkedHashMap<>();
+        fields.put("id", "IDS70003");
+        fields.put("air_temp", "13.3");
+        fields.put("rel_hum", "60");
+        String json = JSONParser.convertToJSON(fields) + "\n";
+        fields.put("air_temp", "14.1");
+        byte[] merged = (JSONParser.convertToJSON(fields) + "\n").getBytes(StandardCharsets.UTF_8);
+        String hash = Long.toHexString(RequestReader.hash(merged, 0, merged.length));
+        Path blocked = Paths.get("src/main/aggr_data/IDS70003.tmp"); // A directory in the way of the next write
+
+        try (java.net.Socket socket = new java.net.Socket("localhost", Integer.parseInt(port));
+             RequestReader in = new RequestReader(socket.getInputStream())) {
+            java.io.OutputStream out = socket.getOutputStream();
+            String delta = "{\n  \"id\": \"IDS70003\",\n  \"air_temp\": \"14.1\"\n}\n";
+            String unknownField = "{\n  \"id\": \"IDS70003\",\n  \"cloud\": \"Clear\"\n}\n";
+            out.write(("PUT HTTP/1.1\n5\nSender-ID: sender-a\nContent-Length: " + json.length() + "\n\n" + json
+                    + "PATCH HTTP/1.1\n6\nSender-ID: sender-a\nBase-Version: 5 sender-a\nDocument-Hash: " + hash
+                    + "\nContent-Length: " + delta.length() + "\n\n" + delta
+                    + "PATCH HTTP/1.1\n7\nSender-ID: sender-a\nBase-Version: 5 sender-a\nDocument-Hash: " + hash
+                    + "\nContent-Length: " + delta.length() + "\n\n" + delta
+                    + "PATCH HTTP/1.1\n7\nSender-ID: sender-a\nBase-Version: 6 sender-a\nDocument-Hash: " + hash
+                    + "\nContent-Length: " + unknownField.length() + "\n\n" + unknownField).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            String[] statuses = new String[4];
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = in.readLineString();
+                in.readHeaders();
+                in.readBody(in.getContentLength());
+            }
+            Assert.assertEquals("HTTP/1.1 201 Created", statuses[0]);
+            Assert.assertEquals("A delta on the current version should be applied", "HTTP/1.1 200 OK", statuses[1]);
+            Assert.assertEquals("A delta on an old version should be rejected", "HTTP/1.1 412 Precondition Failed", statuses[2]);
+            Assert.assertEquals("A delta adding a field should be rejected", "HTTP/1.1 412 Precondition Failed", statuses[3]);
+            Assert.assertEquals("14.1", AggregationServer.recordMap.get("IDS70003").get("air_temp"));
+            Assert.assertEquals("60", AggregationServer.recordMap.get("IDS70003").get("rel_hum"));
+            Assert.assertArrayEquals("The stored file should be the merged document", merged,
+                    Files.readAllBytes(Paths.get("src/main/aggr_data/IDS70003.json")));
+
+            // A delta that cannot be written is answered 500 and leaves the station at its version
+            Files.createDirectory(blocked);
+            fields.put("air_temp", "15.0");
+            byte[] unstored = (JSONParser.convertToJSON(fields) + "\n").getBytes(StandardCharsets.UTF_8);
+            String change = "{\n  \"id\": \"IDS70003\",\n  \"air_temp\": \"15.0\"\n}\n";
+            out.write(("PATCH HTTP/1.1\n8\nSender-ID: sender-a\nBase-Version: 6 sender-a\nDocument-Hash: "
+                    + Long.toHexString(RequestReader.hash(unstored, 0, unstored.length))
+                    + "\nContent-Length: " + change.length() + "\n\n" + change).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Assert.assertEquals("HTTP/1.1 500 Internal Server Error", in.readLineString());
+            in.readHeaders();
+            Assert.assertEquals(new StationVersion(6, "sender-a"), AggregationServer.versionMap.get("IDS70003"));
+            Assert.assertEquals("14.1", AggregationServer.recordMap.get("IDS70003").get("air_temp"));
+        } finally {
+            AggregationServer.shutdown();
+            serverThread.join();
+            Files.deleteIfExists(blocked);
+            AggregationServer.RemoveTextFiles();
+        }
+    }
+
+    // Tests that one GETClient instance pipelines concurrent asynchronous requests over its kept-alive
+    // connection, and that a request to an unreachable server fails its future after the retries.
+    @Test
+    public void testAsyncGetClient() throws Exception {
+        String port = "1246";
+        Thread serverThread = startServer(() -> AggregationServer.main(new String[]{port}));
+        AggregationServer.RemoveTextFiles();
+        Thread.sleep(500); // Wait for the server to start
+        for (String id : new String[]{"IDS70006", "IDS70007"}) {
+            AggregationServer.recordReading(id, new StationVersion(1, ""), "{\n  \"id\": \"" + id + "\"\n}\n");
+        }
+
+        try (GETClient client = new GETClient("localhost", Integer.parseInt(port))) {
+            List<java.util.concurrent.CompletableFuture<GETClient.Response>> responses = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                responses.add(client.get(i % 2 == 0 ? "IDS70006" : "IDS70007"));
+            }
+            for (int i = 0; i < responses.size(); i++) {
+                GETClient.Response response = responses.get(i).get(5, java.util.concurrent.TimeUnit.SECONDS);
+                Assert.assertEquals(200, response.getStatus());
+                Assert.assertTrue("Responses should complete in request order",
+                        response.getBody().contains(i % 2 == 0 ? "IDS70006" : "IDS70007"));
+            }
+            Assert.assertEquals(404, client.get("IDS79999").get(5, java.util.concurrent.TimeUnit.SECONDS).getStatus());
+        } finally {
+            AggregationServer.shutdown();
+            serverThread.join();
+            AggregationServer.RemoveTextFiles();
+        }
+
+        try (GETClient unreachable = new GETClient("localhost", 1222, 500, 2)) {
+            unreachable.get("IDS70006").get(5, java.util.concurrent.TimeUnit.SECONDS);
+            Assert.fail("A request to an unreachable server should fail");
+        } catch (java.util.concurrent.ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof java.io.IOException);
+        }
+    }
+
+    // Tests the near cache: concurrent misses share one load, stale values are served while a single
+    // background reload runs, and frequently read keys survive a burst of one-off keys.
+    @Test
+    public void testNearCache() throws Exception {
+        NearCache<String> cache = new NearCache<>(50, 200, 5000);
+        List<java.util.concurrent.CompletableFuture<String>> loads = new ArrayList<>();
+        java.util.function.Function<String, java.util.concurrent.CompletableFuture<String>> loader = key -> {
+            java.util.concurrent.CompletableFuture<String> load = new java.util.concurrent.CompletableFuture<>();
+            loads.add(load);
+            return load;
+        };
+
+        List<java.util.concurrent.CompletableFuture<String>> reads = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            reads.add(cache.get("IDS60901", loader));
+        }
+        Assert.assertEquals("Concurrent misses should share one load", 1, loads.size());
+        loads.get(0).complete("v1");
+        for (java.util.concurrent.CompletableFuture<String> read : reads) {
+            Assert.assertEquals("v1", read.getNow(null));
+        }
+        Assert.assertEquals("v1", cache.get("IDS60901", loader).getNow(null));
+        Assert.assertEquals("A fresh value should not be loaded again", 1, loads.size());
+
+        // Once past its TTL the value is still served, while one reload runs in the background
+        Thread.sleep(250);
+        Assert.assertEquals("v1", cache.get("IDS60901", loader).getNow(null));
+        Assert.assertEquals("v1", cache.get("IDS60901", loader).getNow(null));
+        Assert.assertEquals("Only one reload should be in flight", 2, loads.size());
+        loads.get(1).complete("v2");
+        Assert.assertEquals("v2", cache.get("IDS60901", loader).getNow(null));
+        Assert.assertEquals(2, cache.metrics.get("loads"));
+        Assert.assertEquals(2, cache.metrics.get("stale_hits"));
+
+        // A frequently read key is not flushed out by many keys read once
+        for (int i = 0; i < 20; i++) {
+            cache.get("IDS60901", loader);
+        }
+        for (int i = 0; i < 200; i++) {
+            cache.get("ONCE" + i, loader);
+            loads.get(loads.size() - 1).complete("x");
+        }
+        int before = loads.size();
+        Assert.assertEquals("v2", cache.get("IDS60901", loader).getNow(null));
+        Assert.assertEquals("The frequently read key should still be cached", before, loads.size());
+        Assert.assertTrue(cache.size() <= 50);
+    }
+
+    // Tests that responses are parsed into typed observations: a single station through the async
+    // client, and a chunked multi-station response as a stream.
+    @Test
+    public void testObservationStream() throws Exception {
+        String port = "1247";
+        Thread serverThread = startServer(() -> AggregationServer.main(new String[]{port}));
+        AggregationServer.RemoveTextFiles();
+        Thread.sleep(500); // Wait for the server to start
+        for (String file : new String[]{"IDS60901", "IDS60902", "IDS60905"}) {
+            String json = JSONParser.convertFileToJSON("src/main/content/" + file + ".txt");
+            AggregationServer.recordReading(file, new StationVersion(1, ""), json + "\n");
+            Files.writeString(Paths.get("src/main/aggr_data/" + file + ".json"), json + "\n"); // Bulk GETs send the stored files
+        }
+
+        try (GETClient client = new GETClient("localhost", Integer.parseInt(port))) {
+            WeatherObservation observation = client.getObservation("IDS60901").get(5, java.util.concurrent.TimeUnit.SECONDS);
+            Assert.assertEquals("IDS60901", observation.getId());
+            Assert.assertEquals(13.3, observation.getAirTemp(), 0.0);
+            Assert.assertEquals(20230715160000L, observation.getLocalDateTimeFull());
+
+            List<String> ids = new ArrayList<>();
+            try (ObservationReader stations = client.observations("IDS60901,IDS60902,IDS60905")) {
+                while (stations.hasNext()) {
+                    WeatherObservation station = stations.next();
+                    Assert.assertFalse(Double.isNaN(station.getPress()));
+                    ids.add(station.getId());
+                }
+            }
+            Assert.assertEquals(Arrays.asList("IDS60901", "IDS60902", "IDS60905"), ids);
+        } finally {
+            AggregationServer.shutdown();
+            serverThread.join();
+            AggregationServer.RemoveTextFiles();
+        }
+    }
+
+    // Tests that station files are converted in file order, that values holding colons are kept
+    // whole, that malformed lines are skipped, and that quotes survive the round trip through JSON
+    // whichever reader reads them back.
+    @Test
+    public void testStationFileParsing() throws Exception {
+        String station = "id:IDS60901\r\n  name : Adelaide \"West\" Terrace\nno colon here\n:no key\nempty:\n"
+                + "local_date_time:15/04:00pm\nair_temp:13.3\nair_temp:14.1";
+        Map<String, String> fields = JSONParser.parseStation(new java.io.StringReader(station));
+        Assert.assertEquals(Arrays.asList("id", "name", "local_date_time", "air_temp"), new ArrayList<>(fields.keySet()));
+        Assert.assertEquals("Adelaide \"West\" Terrace", fields.get("name"));
+        Assert.assertEquals("15/04:00pm", fields.get("local_date_time"));
+        Assert.assertEquals("The last value of a repeated key should win", "14.1", fields.get("air_temp"));
+        Assert.assertEquals(fields, JSONParser.parseJSON(JSONParser.convertToJSON(fields)));
+
+        // Every reader honours the escapes convertToJSON writes, in keys as well as values
+        Map<String, String> quoted = new java.util.LinkedHashMap<>();
+        quoted.put("id", "ID\"S\\1");
+        quoted.put("odd \"key\"", "a, \"b\": c}");
+        quoted.put("air_temp", "13.3");
+        String escaped = JSONParser.convertToJSON(quoted);
+        Assert.assertEquals(quoted, JSONParser.parseJSON(escaped));
+        Assert.assertEquals("ID\"S\\1", JSONParser.getValue(escaped, "id"));
+        Assert.assertEquals("13.3", JSONParser.getValue(escaped, "air_temp"));
+        Assert.assertEquals("a, \"b\": c}", JSONParser.getValue(escaped, "odd \"key\""));
+        Assert.assertNull("A key inside a value is not a field", JSONParser.getValue(escaped, "b"));
+        Assert.assertEquals("ID\"S\\1", WeatherObservation.parse(escaped).getId());
+        Assert.assertEquals("A bare value is kept as written", "5", JSONParser.getValue("{\"n\": 5, \"id\": \"x\"}", "n"));
+
+        String json = JSONParser.convertFileToJSON("src/main/content/IDS60901.txt");
+        Assert.assertTrue(json.startsWith("{\n  \"id\": \"IDS60901\",\n  \"name\""));
+        Assert.assertEquals("15/04:00pm", JSONParser.getValue(json, "local_date_time"));
+        Assert.assertNull(JSONParser.convertFileToJSON("src/main/content/missing.txt"));
+    }
+
+    // Tests that the content server's outbox replays unacknowledged entries after a restart,
+    // coalesces readings of the same station, drops a record torn by a crash, and is compacted
+    // once superseded or delivered readings pile up, keeping the Lamport clock.
+    @Test
+    public void testOutbox() throws Exception {
+        Path dir = Files.createTempDirectory("outbox");
+        Path log = dir.resolve("test.outbox");
+        String senderId;
+        try {
+            try (Outbox outbox = new Outbox(log)) {
+                senderId = outbox.getSenderId();
+                Assert.assertNotNull(senderId);
+                outbox.append("A", 1, "{a1}");
+                Outbox.Entry b = outbox.append("B", 2, "{b}");
+                outbox.append("A", 3, "{a3}");
+                Assert.assertEquals("Readings of the same station should coalesce", 2, outbox.size());
+                outbox.acknowledge(b);
+            }
+
+            try (Outbox outbox = new Outbox(log)) {
+                List<Outbox.Entry> pending = outbox.pending(10);
+                Assert.assertEquals("Only the unacknowledged station should be replayed", 1, pending.size());
+                Assert.assertEquals("{a3}", pending.get(0).jsonData);
+                Assert.assertEquals(3, outbox.getMaxLamport());
+                Assert.assertEquals("The sender ID should survive a restart", senderId, outbox.getSenderId());
+                outbox.append("C", 4, "{c}");
+            }
+
+            // A crash in the middle of an append leaves a torn record at the end of the log
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(log, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 3);
+            }
+            try (Outbox outbox = new Outbox(log)) {
+                Assert.assertEquals("The torn record should be dropped", 1, outbox.size());
+                Assert.assertEquals("A", outbox.pending(10).get(0).stationId);
+                outbox.append("C", 5, "{c5}");
+            }
+
+            try (Outbox outbox = new Outbox(log)) {
+                Assert.assertEquals("A record appended after the torn one should be read", "{c5}", outbox.pending(10).get(1).jsonData);
+                long before = Files.size(log);
+                for (int i = 0; i < Outbox.COMPACT_RECORDS + 10; i++) {
+                    outbox.append("A", 10 + i, "{a" + i + "}");
+                }
+                Assert.assertTrue("Superseded readings should be compacted away", Files.size(log) < before + 20L * 40);
+                Assert.assertFalse(Files.exists(dir.resolve("test.outbox.tmp")));
+            }
+
+            int clock = 10 + Outbox.COMPACT_RECORDS + 9;
+            try (Outbox outbox = new Outbox(log)) {
+                List<Outbox.Entry> pending = outbox.pending(10);
+                Assert.assertEquals(Arrays.asList("C", "A"), Arrays.asList(pending.get(0).stationId, pending.get(1).stationId));
+                Assert.assertEquals("{a" + (Outbox.COMPACT_RECORDS + 9) + "}", pending.get(1).jsonData);
+                Assert.assertEquals(clock, outbox.getMaxLamport());
+                long before = Files.size(log);
+                for (Outbox.Entry entry : pending) {
+                    outbox.acknowledge(entry);
+                }
+                Assert.assertEquals("Emptying the outbox should only append acknowledgements", before + 2 * 9, Files.size(log));
+
+                // Delivered readings are compacted away once enough of them pile up
+                long compacted = 5 + 5 + senderId.length();
+                for (int i = 0; i < Outbox.COMPACT_RECORDS && Files.size(log) > compacted; i++) {
+                    outbox.acknowledge(outbox.append("B", ++clock, "{b}"));
+                }
+            }
+            try (Outbox outbox = new Outbox(log)) {
+                Assert.assertEquals(0, outbox.size());
+                Assert.assertEquals("The clock should survive compacting an empty outbox", clock, outbox.getMaxLamport());
+                Assert.assertEquals("The sender ID should survive compaction", senderId, outbox.getSenderId());
+                Assert.assertEquals("An empty outbox should hold only its clock and sender ID", 5 + 5 + senderId.length(), Files.size(log));
+            }
+        } finally {
+            Files.deleteIfExists(log);
+            Files.deleteIfExists(dir.resolve("test.outbox.tmp"));
+            Files.delete(dir);
+        }
+    }
 
-}
\ No newline at end of file
+}